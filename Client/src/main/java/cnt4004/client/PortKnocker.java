@@ -109,7 +109,9 @@ public class PortKnocker {
 
             }
 
-            config.setProperty("nonce", String.valueOf((nonce + ports.size())));
+            // Every packet uses a new nonce, so a retry never reuses the nonces of a previous attempt
+            nonce += ports.size();
+            config.setProperty("nonce", String.valueOf(nonce));
 
             LOGGER.info("Updating nonce in configuration to " + config.getProperty("nonce"));
 
@@ -5,7 +5,6 @@ import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 
 /**
@@ -15,6 +14,12 @@ import java.time.Instant;
  */
 public abstract class AuthenticatedPacket implements Packet {
 
+    /**
+     * The amount of bytes used by the identifier field on the wire.
+     * Shorter identifiers are padded with zero bytes.
+     */
+    static final int IDENTIFIER_LENGTH = 4;
+
     private String clientIdentifier;
     private long nonce;
     private Instant timestamp;
@@ -42,7 +47,7 @@ public abstract class AuthenticatedPacket implements Packet {
      * @throws IllegalArgumentException If the client identifier is over 4 characters in length
      */
     public void setClientIdentifier(String clientIdentifier) {
-        if (clientIdentifier.length() > 4)
+        if (clientIdentifier.length() > IDENTIFIER_LENGTH)
             throw new IllegalArgumentException("Client identifier is too long, max is 4 characters");
 
         this.clientIdentifier = clientIdentifier;
@@ -89,14 +94,18 @@ public abstract class AuthenticatedPacket implements Packet {
 
     @Override
     public void read(DataInputStream in) throws IOException {
-        byte[] buffer = new byte[4];
+        byte[] buffer = new byte[IDENTIFIER_LENGTH];
 
         int result = in.read(buffer);
 
         if (result == -1)
             throw new EOFException();
 
-        clientIdentifier = StandardCharsets.US_ASCII.decode(ByteBuffer.wrap(buffer)).toString();
+        clientIdentifier = decodeIdentifier(ByteBuffer.wrap(buffer), 0);
+
+        if (clientIdentifier == null)
+            throw new IOException("Client identifier is not ASCII");
+
         // Convert to unsigned 4-byte integer
         timestamp = Instant.ofEpochSecond((in.readInt() & 0x00000000FFFFFFFFL));
         nonce = (in.readInt() & 0x00000000FFFFFFFFL);
@@ -105,14 +114,61 @@ public abstract class AuthenticatedPacket implements Packet {
     @Override
     public void write(DataOutputStream out) throws IOException {
         // Use ASCII encoding, because 1 character is 1 byte
-        out.write(StandardCharsets.US_ASCII.encode(clientIdentifier).array());
+        for (int i = 0; i < IDENTIFIER_LENGTH; i++)
+            out.writeByte(i < clientIdentifier.length() ? clientIdentifier.charAt(i) : 0);
+
         out.writeInt((int) timestamp.getEpochSecond());
         out.writeInt((int) nonce);
     }
 
+    @Override
+    public void read(ByteBuffer in) {
+        clientIdentifier = decodeIdentifier(in, in.position());
+        in.position(in.position() + IDENTIFIER_LENGTH);
+        // Convert to unsigned 4-byte integer
+        timestamp = Instant.ofEpochSecond((in.getInt() & 0x00000000FFFFFFFFL));
+        nonce = (in.getInt() & 0x00000000FFFFFFFFL);
+    }
+
+    @Override
+    public void write(ByteBuffer out) {
+        // Use ASCII encoding, because 1 character is 1 byte
+        for (int i = 0; i < IDENTIFIER_LENGTH; i++)
+            out.put(i < clientIdentifier.length() ? (byte) clientIdentifier.charAt(i) : 0);
+
+        out.putInt((int) timestamp.getEpochSecond());
+        out.putInt((int) nonce);
+    }
+
+    /**
+     * Reads the fixed-length identifier field without going through a charset decoder.
+     * Trailing zero bytes are padding and are not part of the identifier.
+     *
+     * @param in    The buffer containing the identifier field
+     * @param index The absolute index of the identifier field
+     * @return The identifier, or null if the field contains a byte outside of ASCII
+     */
+    static String decodeIdentifier(ByteBuffer in, int index) {
+        char[] identifier = new char[IDENTIFIER_LENGTH];
+        int length = 0;
+        boolean invalid = false;
+
+        for (int i = 0; i < IDENTIFIER_LENGTH; i++) {
+            byte b = in.get(index + i);
+            if (b < 0)
+                invalid = true;
+            if (b != 0)
+                length = i + 1;
+            identifier[i] = (char) b;
+        }
+
+        // Bytes outside of ASCII are rejected rather than masked, so distinct fields never decode to the same identifier
+        return invalid ? null : new String(identifier, 0, length);
+    }
+
     @Override
     public int length() {
-        return 12;
+        return IDENTIFIER_LENGTH + 8;
     }
 
 }
@@ -0,0 +1,67 @@
+package cnt4004.protocol;
+
+/**
+ * A source of the current time, for everything that depends on it: the port schedule, the timestamp filter,
+ * and the timers and rate limits of the server.
+ * <p>
+ * {@link Clock#system()} reads the system clock on every call. {@link CoarseClock} caches the time and refreshes it
+ * on a fixed tick, so reading it is a volatile read. {@link ManualClock} only moves when told to, so behavior
+ * that depends on the time, such as the minute rolling over, can be tested without waiting for it.
+ */
+public interface Clock {
+
+    /**
+     * The wall-clock time
+     *
+     * @return The milliseconds since the unix epoch
+     */
+    long millis();
+
+    /**
+     * A monotonic time, only meaningful relative to another value of the same clock
+     *
+     * @return The current value of the clock in nanoseconds
+     */
+    long nanos();
+
+    /**
+     * The wall-clock time in seconds
+     *
+     * @return The seconds since the unix epoch
+     */
+    default long epochSecond() {
+        return millis() / 1000;
+    }
+
+    /**
+     * The wall-clock time in minutes
+     *
+     * @return The minutes since the unix epoch
+     */
+    default long currentMinute() {
+        return millis() / 60000;
+    }
+
+    /**
+     * Waits until the wall-clock time of this clock reaches a point in time
+     *
+     * @param millis The milliseconds since the unix epoch to wait for
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    default void sleepUntil(long millis) throws InterruptedException {
+        long remaining;
+
+        while ((remaining = millis - millis()) > 0)
+            Thread.sleep(remaining);
+    }
+
+    /**
+     * The clock that reads the system time on every call
+     *
+     * @return The system clock
+     */
+    static Clock system() {
+        return SystemClock.INSTANCE;
+    }
+
+}
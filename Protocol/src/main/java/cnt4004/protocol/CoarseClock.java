@@ -0,0 +1,85 @@
+package cnt4004.protocol;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A clock that reads the system time once per tick, on a daemon thread, and returns the cached values in between.
+ * Reading the time is a volatile read, and is at most about one tick behind the system clock.
+ * <p>
+ * The ticker thread is started by the constructor and runs until the clock is {@link CoarseClock#close() closed}.
+ * Once closed, the clock stops advancing.
+ */
+public final class CoarseClock implements Clock, AutoCloseable {
+
+    private final long tickNanos;
+    private final Thread ticker;
+
+    private volatile long millis;
+    private volatile long nanos;
+    private volatile boolean closed;
+
+    /**
+     * Creates a new coarse clock, and starts its ticker thread
+     *
+     * @param tickMillis The amount of milliseconds between two reads of the system time
+     * @throws IllegalArgumentException If the tick is less than 1 ms
+     */
+    public CoarseClock(long tickMillis) {
+        if (tickMillis < 1)
+            throw new IllegalArgumentException("Tick must be at least 1 ms");
+
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        update();
+
+        this.ticker = new Thread(this::tick, "coarse-clock");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    private void tick() {
+        while (!closed) {
+            LockSupport.parkNanos(this, tickNanos);
+            update();
+        }
+    }
+
+    private void update() {
+        nanos = System.nanoTime();
+        millis = System.currentTimeMillis();
+    }
+
+    @Override
+    public long millis() {
+        return millis;
+    }
+
+    @Override
+    public long nanos() {
+        return nanos;
+    }
+
+    /**
+     * The amount of milliseconds between two reads of the system time
+     *
+     * @return The tick
+     */
+    public long getTickMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(tickNanos);
+    }
+
+    /**
+     * Stops the ticker thread
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(ticker);
+    }
+
+    @Override
+    public String toString() {
+        return "CoarseClock{tick=" + getTickMillis() + "ms}";
+    }
+
+}
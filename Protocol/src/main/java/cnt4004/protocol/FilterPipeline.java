@@ -0,0 +1,166 @@
+package cnt4004.protocol;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An ordered list of {@link PacketFilter} stages that every received packet must pass.
+ * Packets are dropped by the first stage that rejects them, so later (more expensive) stages
+ * never see them. Each stage has its own reject counter.
+ */
+public class FilterPipeline {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FilterPipeline.class);
+
+    private final PacketFilter[] stages;
+    private final LongAdder[] rejected;
+    private final LongAdder accepted = new LongAdder();
+    private volatile RejectListener rejectListener;
+
+    /**
+     * Creates a new pipeline
+     *
+     * @param stages The stages, in the order they should be checked
+     */
+    public FilterPipeline(List<PacketFilter> stages) {
+        this.stages = stages.toArray(new PacketFilter[0]);
+        this.rejected = new LongAdder[this.stages.length];
+
+        for (int i = 0; i < rejected.length; i++)
+            rejected[i] = new LongAdder();
+    }
+
+    /**
+     * Creates the standard pipeline, checking timestamps against the {@link Clock#system() system clock}
+     *
+     * @param timestampSkew The maximum amount of seconds a packet timestamp may differ from the current time
+     * @return A new pipeline
+     * @see FilterPipeline#standard(long, Clock)
+     */
+    public static FilterPipeline standard(long timestampSkew) {
+        return standard(timestampSkew, Clock.system());
+    }
+
+    /**
+     * Creates the standard pipeline. The stages are checked in the following order:
+     * magic, packet ID, exact length, client lookup, timestamp, nonce, and finally the MAC.
+     *
+     * @param timestampSkew The maximum amount of seconds a packet timestamp may differ from the current time
+     * @param clock         The clock that decides the current time
+     * @return A new pipeline
+     */
+    public static FilterPipeline standard(long timestampSkew, Clock clock) {
+        List<PacketFilter> stages = new ArrayList<>();
+
+        stages.add(PacketFilters.magic());
+        stages.add(PacketFilters.packetID());
+        stages.add(PacketFilters.length());
+        stages.add(PacketFilters.client());
+        stages.add(PacketFilters.timestamp(timestampSkew, clock));
+        stages.add(PacketFilters.nonce());
+        stages.add(PacketFilters.mac());
+        stages.add(PacketFilters.replay());
+
+        return new FilterPipeline(stages);
+    }
+
+    /**
+     * Runs a packet through every stage
+     *
+     * @param packet The view over the received packet
+     * @return True if every stage accepted the packet, false if it should be dropped
+     */
+    public boolean accept(KnockPacketView packet) {
+
+        for (int i = 0; i < stages.length; i++) {
+
+            if (!stages[i].accept(packet)) {
+                rejected[i].increment();
+                LOGGER.debug("Discarding packet rejected by the {} filter", stages[i].getName());
+
+                RejectListener listener = rejectListener;
+                if (listener != null)
+                    listener.rejected(stages[i], packet);
+
+                return false;
+            }
+
+        }
+
+        accepted.increment();
+        return true;
+
+    }
+
+    /**
+     * Sets the listener that is told about every rejected packet
+     *
+     * @param rejectListener The listener, or null to remove it
+     */
+    public void setRejectListener(RejectListener rejectListener) {
+        this.rejectListener = rejectListener;
+    }
+
+    /**
+     * The stages of this pipeline, in order
+     *
+     * @return An unmodifiable list of stages
+     */
+    public List<PacketFilter> getStages() {
+        List<PacketFilter> list = new ArrayList<>(stages.length);
+        Collections.addAll(list, stages);
+        return Collections.unmodifiableList(list);
+    }
+
+    /**
+     * The amount of packets dropped by a stage
+     *
+     * @param stage The index of the stage, see {@link FilterPipeline#getStages()}
+     * @return The amount of packets rejected by the stage
+     */
+    public long getRejectCount(int stage) {
+        return rejected[stage].sum();
+    }
+
+    /**
+     * The amount of packets that passed every stage
+     *
+     * @return The amount of accepted packets
+     */
+    public long getAcceptCount() {
+        return accepted.sum();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("FilterPipeline{");
+
+        for (int i = 0; i < stages.length; i++)
+            builder.append(stages[i].getName()).append('=').append(getRejectCount(i)).append(", ");
+
+        return builder.append("accepted=").append(getAcceptCount()).append('}').toString();
+    }
+
+    /**
+     * Listens for packets rejected by a pipeline. Called on the thread that decoded the packet,
+     * so implementations must be thread-safe and cheap.
+     */
+    @FunctionalInterface
+    public interface RejectListener {
+
+        /**
+         * Called when a stage rejects a packet
+         *
+         * @param stage  The stage that rejected the packet
+         * @param packet The view over the rejected packet, which is only valid during the call
+         */
+        void rejected(PacketFilter stage, KnockPacketView packet);
+
+    }
+
+}
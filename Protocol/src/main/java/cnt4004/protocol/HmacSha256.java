@@ -0,0 +1,137 @@
+package cnt4004.protocol;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * HMAC-SHA256 with a cached key schedule.
+ * <p>
+ * An HMAC hashes the padded key block before both the inner and outer message. Because the key never changes,
+ * the padded key blocks are hashed once when this object is created, and the resulting digest states (midstates)
+ * are kept as prototypes. Every MAC resumes from copies of those prototypes, which saves two of the four
+ * SHA-256 compressions needed for a short payload such as a Knock packet.
+ * <p>
+ * The prototypes are never modified after construction, so instances are thread-safe.
+ */
+final class HmacSha256 {
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    /**
+     * The amount of bytes in a SHA-256 block
+     */
+    private static final int BLOCK_LENGTH = 64;
+
+    /**
+     * The amount of bytes in a SHA-256 digest
+     */
+    static final int DIGEST_LENGTH = 32;
+
+    /**
+     * Output buffers for each thread, shared by every key
+     */
+    private static final ThreadLocal<byte[][]> SCRATCH =
+            ThreadLocal.withInitial(() -> new byte[][]{new byte[DIGEST_LENGTH], new byte[DIGEST_LENGTH]});
+
+    private final MessageDigest innerPrototype;
+    private final MessageDigest outerPrototype;
+
+    /**
+     * Creates a new HMAC and precomputes the inner and outer midstates of the key
+     *
+     * @param key The key
+     * @throws NoSuchAlgorithmException If SHA-256 is not available, or its state cannot be copied
+     */
+    HmacSha256(byte[] key) throws NoSuchAlgorithmException {
+
+        if (key.length > BLOCK_LENGTH)
+            key = MessageDigest.getInstance(DIGEST_ALGORITHM).digest(key);
+
+        byte[] innerBlock = new byte[BLOCK_LENGTH];
+        byte[] outerBlock = new byte[BLOCK_LENGTH];
+
+        for (int i = 0; i < BLOCK_LENGTH; i++) {
+            byte b = i < key.length ? key[i] : 0;
+            innerBlock[i] = (byte) (b ^ 0x36);
+            outerBlock[i] = (byte) (b ^ 0x5c);
+        }
+
+        innerPrototype = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        innerPrototype.update(innerBlock);
+
+        outerPrototype = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        outerPrototype.update(outerBlock);
+
+        // Make sure the provider supports copying the digest state
+        try {
+            innerPrototype.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new NoSuchAlgorithmException(DIGEST_ALGORITHM + " digest state cannot be copied", e);
+        }
+
+    }
+
+    /**
+     * Calculates the MAC of a region of a buffer. The position and limit of the buffer are not modified.
+     *
+     * @param buffer The buffer containing the message
+     * @param offset The absolute index of the first byte of the message
+     * @param length The amount of bytes in the message
+     * @return The MAC, stored in an array owned by the calling thread.
+     * The contents are only valid until the next MAC is calculated on the same thread.
+     */
+    byte[] mac(ByteBuffer buffer, int offset, int length) {
+
+        byte[][] scratch = SCRATCH.get();
+
+        // Inner hash: H((K ^ ipad) || message), resuming after the key block
+        MessageDigest inner = copy(innerPrototype);
+
+        if (buffer.hasArray()) {
+
+            inner.update(buffer.array(), buffer.arrayOffset() + offset, length);
+
+        } else {
+
+            int position = buffer.position();
+            int limit = buffer.limit();
+
+            buffer.limit(offset + length).position(offset);
+            inner.update(buffer);
+            buffer.limit(limit).position(position);
+
+        }
+
+        // Outer hash: H((K ^ opad) || inner hash), resuming after the key block
+        MessageDigest outer = copy(outerPrototype);
+
+        try {
+            inner.digest(scratch[0], 0, DIGEST_LENGTH);
+            outer.update(scratch[0]);
+            outer.digest(scratch[1], 0, DIGEST_LENGTH);
+        } catch (DigestException e) {
+            // The output buffers are always DIGEST_LENGTH bytes
+            throw new IllegalStateException(e);
+        }
+
+        return scratch[1];
+
+    }
+
+    /**
+     * Copies the state of a digest
+     *
+     * @param prototype The digest to copy
+     * @return A new digest with the same state
+     */
+    private static MessageDigest copy(MessageDigest prototype) {
+        try {
+            return (MessageDigest) prototype.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(DIGEST_ALGORITHM + " digest state cannot be copied", e);
+        }
+    }
+
+}
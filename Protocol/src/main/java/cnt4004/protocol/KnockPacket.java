@@ -3,6 +3,7 @@ package cnt4004.protocol;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * A knock packet is used for sending a single knock to a specific UDP port.
@@ -12,6 +13,11 @@ import java.io.IOException;
  */
 public class KnockPacket extends AuthenticatedPacket implements Comparable<KnockPacket> {
 
+    /**
+     * The packet ID of a Knock packet
+     */
+    public static final byte ID = 0;
+
     /**
      * Sequence ID
      */
@@ -79,7 +85,7 @@ public class KnockPacket extends AuthenticatedPacket implements Comparable<Knock
 
     @Override
     public byte getID() {
-        return 0;
+        return ID;
     }
 
     @Override
@@ -96,6 +102,20 @@ public class KnockPacket extends AuthenticatedPacket implements Comparable<Knock
         super.write(out);
     }
 
+    @Override
+    public void read(ByteBuffer in) {
+        sequence = in.get();
+        maxSequence = in.get();
+        super.read(in);
+    }
+
+    @Override
+    public void write(ByteBuffer out) {
+        out.put(sequence);
+        out.put(maxSequence);
+        super.write(out);
+    }
+
     @Override
     public int length() {
         return super.length() + 2;
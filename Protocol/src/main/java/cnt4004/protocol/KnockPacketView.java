@@ -0,0 +1,226 @@
+package cnt4004.protocol;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * A read-only, reusable view over an encoded Knock packet in a receive buffer.
+ * The fields are read from the buffer on demand as primitives, so that a single instance can be
+ * reused for every datagram received on a thread without allocating.
+ * A {@link KnockPacket} is only created by {@link KnockPacketView#materialize()}, which should
+ * be called once the packet has been verified.
+ * <p>
+ * This class is not thread-safe. Each receiving thread should use its own instance.
+ */
+public final class KnockPacketView {
+
+    /* Absolute offsets of each field, relative to the start of the datagram (including the magic) */
+    static final int SEQUENCE_OFFSET = ProtocolMap.HEADER_LENGTH;
+    static final int MAX_SEQUENCE_OFFSET = SEQUENCE_OFFSET + 1;
+    static final int IDENTIFIER_OFFSET = MAX_SEQUENCE_OFFSET + 1;
+    static final int TIMESTAMP_OFFSET = IDENTIFIER_OFFSET + AuthenticatedPacket.IDENTIFIER_LENGTH;
+    static final int NONCE_OFFSET = TIMESTAMP_OFFSET + 4;
+
+    /**
+     * The amount of bytes covered by the MAC
+     */
+    static final int SIGNED_LENGTH = NONCE_OFFSET + 4;
+
+    /**
+     * The total amount of bytes of an encoded Knock packet, including the MAC
+     */
+    public static final int ENCODED_LENGTH = SIGNED_LENGTH + TrustedClient.MAC_LENGTH;
+
+    private ByteBuffer buffer;
+    private int offset;
+    private int length;
+    private SocketAddress source;
+    private TrustedClient client;
+
+    /**
+     * Points this view at the datagram between the buffer's position and limit.
+     * The buffer's position and limit are not modified.
+     *
+     * @param buffer The buffer containing a single datagram
+     * @return This view
+     */
+    public KnockPacketView wrap(ByteBuffer buffer) {
+        return wrap(buffer, null);
+    }
+
+    /**
+     * Points this view at the datagram between the buffer's position and limit.
+     * The buffer's position and limit are not modified.
+     *
+     * @param buffer The buffer containing a single datagram
+     * @param source The source address of the datagram, or null if it is not known
+     * @return This view
+     */
+    public KnockPacketView wrap(ByteBuffer buffer, SocketAddress source) {
+        this.buffer = buffer;
+        this.offset = buffer.position();
+        this.length = buffer.remaining();
+        this.source = source;
+        this.client = null;
+        return this;
+    }
+
+    /**
+     * The buffer this view is currently wrapping
+     *
+     * @return The buffer
+     */
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * The absolute index of the first byte of the datagram in {@link KnockPacketView#buffer()}
+     *
+     * @return The offset
+     */
+    int offset() {
+        return offset;
+    }
+
+    /**
+     * The length of the datagram being viewed
+     *
+     * @return The amount of bytes received
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * The source address of the datagram being viewed
+     *
+     * @return The source address, or null if it is not known
+     */
+    public SocketAddress getSource() {
+        return source;
+    }
+
+    /**
+     * The trusted client that sent this packet, as resolved by {@link PacketFilters#client()}
+     *
+     * @return The trusted client, or null if it has not been resolved (or is unknown)
+     */
+    public TrustedClient getClient() {
+        return client;
+    }
+
+    /**
+     * Attaches the trusted client identified by this packet
+     *
+     * @param client The trusted client
+     */
+    void setClient(TrustedClient client) {
+        this.client = client;
+    }
+
+    /**
+     * The packet ID from the header
+     *
+     * @return The packet ID
+     */
+    public byte getPacketID() {
+        return buffer.get(offset + ProtocolMap.ID_OFFSET);
+    }
+
+    /**
+     * Sequence ID
+     *
+     * @return The sequence ID
+     */
+    public byte getSequence() {
+        return buffer.get(offset + SEQUENCE_OFFSET);
+    }
+
+    /**
+     * Maximum sequence ID
+     *
+     * @return The maximum sequence ID
+     */
+    public byte getMaxSequence() {
+        return buffer.get(offset + MAX_SEQUENCE_OFFSET);
+    }
+
+    /**
+     * Returns a single byte of the client identifier
+     *
+     * @param index The index of the byte, from 0 to 3
+     * @return The identifier byte, or 0 if it is padding
+     */
+    public byte getIdentifierByte(int index) {
+        if (index < 0 || index >= AuthenticatedPacket.IDENTIFIER_LENGTH)
+            throw new IndexOutOfBoundsException("Identifier index: " + index);
+
+        return buffer.get(offset + IDENTIFIER_OFFSET + index);
+    }
+
+    /**
+     * The client identifier bytes packed into a big endian integer
+     *
+     * @return The packed identifier
+     */
+    public int getPackedIdentifier() {
+        return buffer.getInt(offset + IDENTIFIER_OFFSET);
+    }
+
+    /**
+     * The client identifier decoded into a String. This allocates, so it should only be used
+     * once the packet has been verified or for logging.
+     *
+     * @return The client identifier, or null if it contains a byte outside of ASCII
+     */
+    public String getClientIdentifier() {
+        return AuthenticatedPacket.decodeIdentifier(buffer, offset + IDENTIFIER_OFFSET);
+    }
+
+    /**
+     * The unsigned timestamp of when the packet was transmitted
+     *
+     * @return Seconds after the unix epoch
+     */
+    public long getEpochSecond() {
+        return buffer.getInt(offset + TIMESTAMP_OFFSET) & 0x00000000FFFFFFFFL;
+    }
+
+    /**
+     * The unsigned nonce
+     *
+     * @return The nonce
+     */
+    public long getNonce() {
+        return buffer.getInt(offset + NONCE_OFFSET) & 0x00000000FFFFFFFFL;
+    }
+
+    /**
+     * Creates a heap {@link KnockPacket} with the fields of the viewed packet
+     *
+     * @return A new Knock packet
+     */
+    public KnockPacket materialize() {
+        KnockPacket packet = new KnockPacket();
+
+        int position = buffer.position();
+
+        buffer.position(offset + SEQUENCE_OFFSET);
+        packet.read(buffer);
+        buffer.position(position);
+
+        return packet;
+    }
+
+    @Override
+    public String toString() {
+        return "KnockPacketView{" +
+                "sequence=" + getSequence() +
+                ", maxSequence=" + getMaxSequence() +
+                ", identifier=" + getClientIdentifier() +
+                ", timestamp=" + getEpochSecond() +
+                '}';
+    }
+
+}
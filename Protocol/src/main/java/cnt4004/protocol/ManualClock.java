@@ -0,0 +1,81 @@
+package cnt4004.protocol;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A clock that only moves when it is {@link ManualClock#advance(long, TimeUnit) advanced} or
+ * {@link ManualClock#setMillis(long) set}, for tests and offline replays.
+ * <p>
+ * Threads waiting in {@link ManualClock#sleepUntil(long)} wake up as soon as the clock reaches their deadline.
+ * All methods are thread-safe.
+ */
+public final class ManualClock implements Clock {
+
+    private long millis;
+    private long nanos;
+
+    /**
+     * Creates a new manual clock
+     *
+     * @param millis The initial wall-clock time, in milliseconds since the unix epoch
+     */
+    public ManualClock(long millis) {
+        this.millis = millis;
+    }
+
+    @Override
+    public synchronized long millis() {
+        return millis;
+    }
+
+    @Override
+    public synchronized long nanos() {
+        return nanos;
+    }
+
+    /**
+     * Moves the clock forward. The wall-clock time only moves by whole milliseconds, the nanoseconds that
+     * do not make up a whole millisecond are carried over to the next call.
+     *
+     * @param amount The amount of time
+     * @param unit   The unit of the amount
+     * @throws IllegalArgumentException If the amount is negative
+     */
+    public synchronized void advance(long amount, TimeUnit unit) {
+        if (amount < 0)
+            throw new IllegalArgumentException("Cannot advance by a negative amount");
+
+        long before = nanos;
+        nanos += unit.toNanos(amount);
+        millis += TimeUnit.NANOSECONDS.toMillis(nanos) - TimeUnit.NANOSECONDS.toMillis(before);
+
+        notifyAll();
+    }
+
+    /**
+     * Sets the wall-clock time, like a system clock being adjusted. The monotonic time moves forward by the
+     * same amount, or stays where it is if the wall-clock time is set backwards.
+     *
+     * @param millis The milliseconds since the unix epoch
+     */
+    public synchronized void setMillis(long millis) {
+        if (millis > this.millis)
+            nanos += TimeUnit.MILLISECONDS.toNanos(millis - this.millis);
+
+        this.millis = millis;
+
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void sleepUntil(long millis) throws InterruptedException {
+        while (this.millis < millis)
+            wait();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ManualClock{millis=" + millis + ", nanos=" + nanos + '}';
+    }
+
+}
@@ -3,6 +3,7 @@ package cnt4004.protocol;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Packet interface, used for stream serializing
@@ -31,6 +32,24 @@ public interface Packet {
      */
     void write(DataOutputStream out) throws IOException;
 
+    /**
+     * Deserializes the packet fields from a buffer, starting at the buffer's current position.
+     * The position is advanced by {@link Packet#length()} bytes.
+     *
+     * @param in The buffer to read from
+     * @throws java.nio.BufferUnderflowException If there are less than {@link Packet#length()} bytes remaining
+     */
+    void read(ByteBuffer in);
+
+    /**
+     * Serializes the packet fields into a buffer, starting at the buffer's current position.
+     * The position is advanced by {@link Packet#length()} bytes.
+     *
+     * @param out The buffer to write to
+     * @throws java.nio.BufferOverflowException If there are less than {@link Packet#length()} bytes remaining
+     */
+    void write(ByteBuffer out);
+
     /**
      * The amount of bytes the packet fields
      * requires for reading and writing to a stream
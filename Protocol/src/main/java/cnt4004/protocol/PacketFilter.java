@@ -0,0 +1,25 @@
+package cnt4004.protocol;
+
+/**
+ * A single stage of a {@link FilterPipeline}. Each stage inspects a received packet
+ * and decides if the packet may continue on to the next stage.
+ * Stages should be ordered from the cheapest to the most expensive check.
+ */
+public interface PacketFilter {
+
+    /**
+     * A short name of the stage, used for logging and statistics
+     *
+     * @return The name of the stage
+     */
+    String getName();
+
+    /**
+     * Checks a received packet
+     *
+     * @param packet The view over the received packet
+     * @return True if the packet passes this stage, false if it should be dropped
+     */
+    boolean accept(KnockPacketView packet);
+
+}
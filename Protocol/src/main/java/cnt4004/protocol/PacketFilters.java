@@ -0,0 +1,137 @@
+package cnt4004.protocol;
+
+import java.util.function.Predicate;
+
+/**
+ * Factory methods for the standard {@link PacketFilter} stages used by {@link FilterPipeline#standard(long, Clock)}
+ */
+public final class PacketFilters {
+
+    private PacketFilters() {
+    }
+
+    /**
+     * Rejects packets that do not start with the protocol magic
+     *
+     * @return A new filter
+     */
+    public static PacketFilter magic() {
+        return new Stage("magic", packet -> ProtocolMap.hasMagic(packet.buffer(), packet.offset(), packet.length()));
+    }
+
+    /**
+     * Rejects packets with an ID that is not registered in the {@link ProtocolMap}
+     *
+     * @return A new filter
+     */
+    public static PacketFilter packetID() {
+        return new Stage("packet-id", packet -> ProtocolMap.isRegistered(packet.getPacketID()));
+    }
+
+    /**
+     * Rejects packets that are not exactly the length of an encoded Knock packet
+     *
+     * @return A new filter
+     */
+    public static PacketFilter length() {
+        return new Stage("length", packet -> packet.length() == KnockPacketView.ENCODED_LENGTH);
+    }
+
+    /**
+     * Rejects packets from an unknown client. If the client is known, it is attached to the packet
+     * for the stages that follow.
+     *
+     * @return A new filter
+     */
+    public static PacketFilter client() {
+        return new Stage("client", packet -> {
+            TrustedClient client = ProtocolMap.getTrustedClient(packet.getPackedIdentifier());
+            packet.setClient(client);
+            return client != null;
+        });
+    }
+
+    /**
+     * Rejects packets with a timestamp too far from the current time of the {@link Clock#system() system clock},
+     * in either direction
+     *
+     * @param maxSkew The maximum amount of seconds the timestamp may differ by
+     * @return A new filter
+     * @throws IllegalArgumentException If {@code maxSkew} is negative
+     */
+    public static PacketFilter timestamp(long maxSkew) {
+        return timestamp(maxSkew, Clock.system());
+    }
+
+    /**
+     * Rejects packets with a timestamp too far from the current time of a clock, in either direction
+     *
+     * @param maxSkew The maximum amount of seconds the timestamp may differ by
+     * @param clock   The clock to compare the timestamps with
+     * @return A new filter
+     * @throws IllegalArgumentException If {@code maxSkew} is negative
+     */
+    public static PacketFilter timestamp(long maxSkew, Clock clock) {
+        if (maxSkew < 0)
+            throw new IllegalArgumentException("Timestamp skew cannot be negative");
+
+        return new Stage("timestamp", packet -> Math.abs(clock.epochSecond() - packet.getEpochSecond()) <= maxSkew);
+    }
+
+    /**
+     * Rejects packets with a nonce that has already been used (a possible replay) or that is below
+     * the client's {@link ReplayWindow}. The nonce is not marked as used.
+     * Must be placed after {@link PacketFilters#client()}.
+     *
+     * @return A new filter
+     */
+    public static PacketFilter nonce() {
+        return new Stage("nonce", packet -> packet.getClient().getReplayWindow().isFresh(packet.getNonce()));
+    }
+
+    /**
+     * Rejects packets with an invalid MAC. Must be placed after {@link PacketFilters#client()}.
+     *
+     * @return A new filter
+     */
+    public static PacketFilter mac() {
+        return new Stage("mac", packet ->
+                packet.getClient().verifyMAC(packet.buffer(), packet.offset(), KnockPacketView.SIGNED_LENGTH));
+    }
+
+    /**
+     * Marks the nonce of a verified packet as used in the client's {@link ReplayWindow}. Rejects the packet
+     * if another thread marked the same nonce first. Must be placed after {@link PacketFilters#mac()}.
+     *
+     * @return A new filter
+     */
+    public static PacketFilter replay() {
+        return new Stage("replay", packet -> packet.getClient().getReplayWindow().mark(packet.getNonce()));
+    }
+
+    /**
+     * A named filter backed by a predicate
+     */
+    private static final class Stage implements PacketFilter {
+
+        private final String name;
+        private final Predicate<KnockPacketView> predicate;
+
+        Stage(String name, Predicate<KnockPacketView> predicate) {
+            this.name = name;
+            this.predicate = predicate;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public boolean accept(KnockPacketView packet) {
+            return predicate.test(packet);
+        }
+
+    }
+
+}
@@ -0,0 +1,180 @@
+package cnt4004.protocol;
+
+import java.util.List;
+
+/**
+ * A cache of the ports generated by {@link Utils#generatePortSequence(String, int, long)} for a port secret and port count.
+ * <p>
+ * The schedules of the previous, current and next minute are precomputed and published together through a
+ * volatile reference. Looking up any of those minutes is wait-free and does not allocate. When the minute rolls
+ * over, the first caller to notice computes the new snapshot, reusing the schedules that overlap.
+ */
+public class PortSchedule {
+
+    private final String portSecret;
+    private final int portCount;
+    private final Clock clock;
+    private volatile Snapshot snapshot;
+
+    /**
+     * Creates a new port schedule that follows the {@link Clock#system() system clock}
+     *
+     * @param portSecret The port secret
+     * @param portCount  The amount of ports to generate for each minute
+     * @throws IllegalArgumentException If the port secret is null, or the port count is negative
+     *                                  or larger than {@link Utils#MAX_PORT_COUNT}
+     */
+    public PortSchedule(String portSecret, int portCount) {
+        this(portSecret, portCount, Clock.system());
+    }
+
+    /**
+     * Creates a new port schedule
+     *
+     * @param portSecret The port secret
+     * @param portCount  The amount of ports to generate for each minute
+     * @param clock      The clock that decides the current minute
+     * @throws IllegalArgumentException If the port secret is null, or the port count is negative
+     *                                  or larger than {@link Utils#MAX_PORT_COUNT}
+     */
+    public PortSchedule(String portSecret, int portCount, Clock clock) {
+        this.portSecret = portSecret;
+        this.portCount = portCount;
+        this.clock = clock;
+        this.snapshot = compute(clock.currentMinute(), null);
+    }
+
+    /**
+     * The current unix time in minutes, by the {@link Clock#system() system clock}
+     *
+     * @return The minutes since the unix epoch
+     * @see Clock#currentMinute()
+     */
+    public static long currentMinute() {
+        return Clock.system().currentMinute();
+    }
+
+    /**
+     * The ports of the current minute
+     *
+     * @return An unmodifiable list of {@link PortSchedule#getPortCount()} distinct ports
+     */
+    public List<Integer> getPorts() {
+        return getSequence().asList();
+    }
+
+    /**
+     * The ports of a specific minute
+     *
+     * @param unixMinute The minutes since the unix epoch
+     * @return An unmodifiable list of {@link PortSchedule#getPortCount()} distinct ports
+     * @see PortSchedule#getSequence(long)
+     */
+    public List<Integer> getPorts(long unixMinute) {
+        return getSequence(unixMinute).asList();
+    }
+
+    /**
+     * The port sequence of the current minute
+     *
+     * @return A sequence of {@link PortSchedule#getPortCount()} distinct ports
+     */
+    public PortSequence getSequence() {
+        return getSequence(clock.currentMinute());
+    }
+
+    /**
+     * The port sequence of a specific minute. The previous, current and next minute are cached,
+     * any other minute is generated on every call.
+     *
+     * @param unixMinute The minutes since the unix epoch
+     * @return A sequence of {@link PortSchedule#getPortCount()} distinct ports
+     */
+    public PortSequence getSequence(long unixMinute) {
+        Snapshot snapshot = this.snapshot;
+        long current = clock.currentMinute();
+
+        if (snapshot.minute != current) {
+            snapshot = compute(current, snapshot);
+            this.snapshot = snapshot;
+        }
+
+        PortSequence ports = snapshot.get(unixMinute);
+
+        return ports != null ? ports : Utils.generatePortSequence(portSecret, portCount, unixMinute);
+    }
+
+    /**
+     * The port secret
+     *
+     * @return The port secret
+     */
+    public String getPortSecret() {
+        return portSecret;
+    }
+
+    /**
+     * The amount of ports generated for each minute
+     *
+     * @return The port count
+     */
+    public int getPortCount() {
+        return portCount;
+    }
+
+    /**
+     * The clock that decides the current minute
+     *
+     * @return The clock
+     */
+    public Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * Computes the snapshot of a minute, reusing the schedules of an older snapshot when they overlap
+     *
+     * @param minute The current minute
+     * @param old    The previous snapshot, or null
+     * @return The new snapshot
+     */
+    private Snapshot compute(long minute, Snapshot old) {
+        PortSequence previous = old == null ? null : old.get(minute - 1);
+        PortSequence current = old == null ? null : old.get(minute);
+        PortSequence next = old == null ? null : old.get(minute + 1);
+
+        if (previous == null)
+            previous = Utils.generatePortSequence(portSecret, portCount, minute - 1);
+        if (current == null)
+            current = Utils.generatePortSequence(portSecret, portCount, minute);
+        if (next == null)
+            next = Utils.generatePortSequence(portSecret, portCount, minute + 1);
+
+        return new Snapshot(minute, previous, current, next);
+    }
+
+    /**
+     * The schedules of three consecutive minutes
+     */
+    private static final class Snapshot {
+
+        private final long minute;
+        private final PortSequence previous;
+        private final PortSequence current;
+        private final PortSequence next;
+
+        Snapshot(long minute, PortSequence previous, PortSequence current, PortSequence next) {
+            this.minute = minute;
+            this.previous = previous;
+            this.current = current;
+            this.next = next;
+        }
+
+        PortSequence get(long unixMinute) {
+            long offset = unixMinute - minute;
+            return offset == -1 ? previous : offset == 0 ? current : offset == 1 ? next : null;
+        }
+
+    }
+
+}
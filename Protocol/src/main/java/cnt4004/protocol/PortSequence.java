@@ -0,0 +1,135 @@
+package cnt4004.protocol;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * An immutable, ordered sequence of distinct ports, backed by a primitive array.
+ * <p>
+ * Knock sequences can be up to {@link Utils#MAX_PORT_COUNT} ports long, so the ports are kept unboxed and compared
+ * without allocating. {@link PortSequence#asList()} provides a boxed view for code that needs a {@link List}.
+ */
+public final class PortSequence {
+
+    private final int[] ports;
+    private final List<Integer> list;
+
+    /**
+     * Creates a new port sequence. The array is not copied and must not be modified afterwards.
+     *
+     * @param ports The ports
+     */
+    PortSequence(int[] ports) {
+        this.ports = ports;
+        this.list = new ListView();
+    }
+
+    /**
+     * The amount of ports in the sequence
+     *
+     * @return The amount of ports
+     */
+    public int size() {
+        return ports.length;
+    }
+
+    /**
+     * Returns the port at a position in the sequence
+     *
+     * @param index The position, starting at 0
+     * @return The port
+     * @throws ArrayIndexOutOfBoundsException If the index is negative or not less than {@link PortSequence#size()}
+     */
+    public int get(int index) {
+        return ports[index];
+    }
+
+    /**
+     * Returns the position of a port in the sequence
+     *
+     * @param port The port
+     * @return The position, starting at 0, or -1 if the port is not in the sequence
+     */
+    public int indexOf(int port) {
+        for (int i = 0; i < ports.length; i++) {
+            if (ports[i] == port)
+                return i;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Determines if the first {@code length} elements of an array are exactly this sequence
+     *
+     * @param ports  The ports to compare, in order
+     * @param length The amount of ports to compare
+     * @return True if the ports match this sequence, false otherwise
+     */
+    public boolean matches(int[] ports, int length) {
+        if (length != this.ports.length || length > ports.length)
+            return false;
+
+        for (int i = 0; i < length; i++) {
+            if (ports[i] != this.ports[i])
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * A copy of the ports
+     *
+     * @return A new array containing the ports
+     */
+    public int[] toArray() {
+        return ports.clone();
+    }
+
+    /**
+     * A boxed view of the ports
+     *
+     * @return An unmodifiable list backed by this sequence
+     */
+    public List<Integer> asList() {
+        return list;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return Arrays.equals(ports, ((PortSequence) o).ports);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(ports);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(ports);
+    }
+
+    /**
+     * An unmodifiable list view of the ports
+     */
+    private final class ListView extends AbstractList<Integer> implements RandomAccess {
+
+        @Override
+        public Integer get(int index) {
+            return ports[index];
+        }
+
+        @Override
+        public int size() {
+            return ports.length;
+        }
+
+    }
+
+}
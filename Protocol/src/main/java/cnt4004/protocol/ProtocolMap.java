@@ -3,15 +3,11 @@ package cnt4004.protocol;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.*;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
 
 public class ProtocolMap {
 
@@ -27,6 +23,16 @@ public class ProtocolMap {
             'P', 'K'
     };
 
+    /**
+     * The index of the packet ID, which follows the magic
+     */
+    static final int ID_OFFSET = MAGIC.length;
+
+    /**
+     * The amount of bytes before the packet fields (the magic and the packet ID)
+     */
+    static final int HEADER_LENGTH = ID_OFFSET + 1;
+
     /**
      * The expected amount of bytes to read and write for a DatagramSocket
      * This value is used for the SO_RCVBUF datagram option/
@@ -34,25 +40,46 @@ public class ProtocolMap {
     public static final int MAX_BUFFER = 100;
 
     /**
-     * A map of Trusted clients. Each client is indexed by its identifier.
-     * The key is the client identifier.
+     * The registry of Trusted clients. Each client is indexed by its packed identifier.
+     */
+    private static volatile TrustedClientRegistry TRUSTED_CLIENTS = new TrustedClientRegistry();
+
+    /**
+     * The default maximum amount of seconds a packet timestamp may differ from the current time
+     */
+    public static final long DEFAULT_TIMESTAMP_SKEW = 60;
+
+    /**
+     * The filter pipeline every received packet must pass before it is accepted
      */
-    private static ConcurrentMap<String, TrustedClient> TRUSTED_CLIENTS;
+    private static volatile FilterPipeline PIPELINE = FilterPipeline.standard(DEFAULT_TIMESTAMP_SKEW);
 
     /**
-     * Packet ID mappings. Used for initializing new packet objects given a packet ID
+     * Packet factories, indexed by the unsigned packet ID. Used for initializing new packet objects given a packet ID
      */
-    private static final Map<Byte, Constructor<? extends Packet>> PACKET_MAP = new HashMap<>();
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final Supplier<? extends Packet>[] PACKET_FACTORIES = new Supplier[256];
 
     static {
+        register(KnockPacket.ID, KnockPacket::new);
+    }
+
+    /**
+     * Maps a packet ID to a packet factory
+     *
+     * @param id      The packet ID
+     * @param factory The factory creating packet objects for the ID
+     * @throws IllegalArgumentException If the ID is already registered, or does not match the packets created
+     */
+    private static void register(byte id, Supplier<? extends Packet> factory) {
         // Make sure that the byte is unique for each packet
-        try {
+        if (PACKET_FACTORIES[id & 0xFF] != null)
+            throw new IllegalArgumentException("Packet ID " + id + " is already registered");
 
-            PACKET_MAP.put((byte) 0, KnockPacket.class.getDeclaredConstructor());
+        if (factory.get().getID() != id)
+            throw new IllegalArgumentException("Packet ID " + id + " does not match the ID of the created packet");
 
-        } catch (NoSuchMethodException e) {
-            throw new RuntimeException(e);
-        }
+        PACKET_FACTORIES[id & 0xFF] = factory;
     }
 
     /**
@@ -62,11 +89,81 @@ public class ProtocolMap {
      */
     public static void setTrustedClients(Set<TrustedClient> trustedClients) {
 
-        TRUSTED_CLIENTS = new ConcurrentHashMap<>();
+        TrustedClientRegistry registry = new TrustedClientRegistry();
 
         if (trustedClients != null)
-            trustedClients.forEach(client -> TRUSTED_CLIENTS.put(client.getIdentifier(), client));
+            trustedClients.forEach(registry::add);
+
+        setTrustedClients(registry);
+
+    }
+
+    /**
+     * Sets the registry of trusted clients that the decoder will consider when verifying an {@link AuthenticatedPacket}.
+     * The registry is shared, so clients added to it later are also considered.
+     *
+     * @param trustedClients The trusted client registry
+     */
+    public static void setTrustedClients(TrustedClientRegistry trustedClients) {
+
+        if (trustedClients == null)
+            throw new IllegalArgumentException("Trusted client registry cannot be null");
+
+        TRUSTED_CLIENTS = trustedClients;
+
+    }
+
+    /**
+     * Returns the trusted client associated with a packed identifier
+     *
+     * @param packedIdentifier The packed client identifier
+     * @return The trusted client, or null if the client is not trusted
+     */
+    static TrustedClient getTrustedClient(int packedIdentifier) {
+        return TRUSTED_CLIENTS.get(packedIdentifier);
+    }
+
+    /**
+     * Sets the filter pipeline used for verifying received packets
+     *
+     * @param pipeline The filter pipeline
+     */
+    public static void setPipeline(FilterPipeline pipeline) {
+        if (pipeline == null)
+            throw new IllegalArgumentException("Pipeline cannot be null");
+
+        PIPELINE = pipeline;
+    }
+
+    /**
+     * The filter pipeline used for verifying received packets
+     *
+     * @return The filter pipeline
+     */
+    public static FilterPipeline getPipeline() {
+        return PIPELINE;
+    }
+
+    /**
+     * Determines if a packet ID has a packet object mapped
+     *
+     * @param id The packet ID
+     * @return True if the packet ID is known, false otherwise
+     */
+    static boolean isRegistered(byte id) {
+        return PACKET_FACTORIES[id & 0xFF] != null;
+    }
 
+    /**
+     * Determines if a datagram starts with the magic header, and is long enough to contain the packet ID
+     *
+     * @param buffer The buffer containing the datagram
+     * @param offset The absolute index of the start of the datagram
+     * @param length The length of the datagram
+     * @return True if the header is present, false otherwise
+     */
+    static boolean hasMagic(ByteBuffer buffer, int offset, int length) {
+        return length >= HEADER_LENGTH && buffer.get(offset) == MAGIC[0] && buffer.get(offset + 1) == MAGIC[1];
     }
 
     /**
@@ -76,15 +173,8 @@ public class ProtocolMap {
      * @return A new packet object associated with the id, or null if there is no packet object mapped
      */
     private static Packet createFromID(byte id) {
-        Constructor<? extends Packet> constructor = PACKET_MAP.get(id);
-        if (constructor != null) {
-            try {
-                return constructor.newInstance();
-            } catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
-                LOGGER.error("Failed to create a new Packet object instance for ID " + id, e);
-            }
-        }
-        return null;
+        Supplier<? extends Packet> factory = PACKET_FACTORIES[id & 0xFF];
+        return factory == null ? null : factory.get();
     }
 
     /**
@@ -99,76 +189,73 @@ public class ProtocolMap {
         if (payload == null)
             return null;
 
-        ByteArrayInputStream inBuffer = new ByteArrayInputStream(payload);
-        DataInputStream in = new DataInputStream(inBuffer);
+        return decode(ByteBuffer.wrap(payload));
+
+    }
+
+    /**
+     * Decodes a buffer to a Packet object. The datagram is read from the buffer's position up to its limit,
+     * so the limit should be set to the length of the received datagram. The datagram must pass the
+     * {@link ProtocolMap#getPipeline() filter pipeline} before the packet object is created.
+     *
+     * @param buffer The buffer containing a single datagram
+     * @return A packet object deserialized from the buffer, or null if the packet is corrupt.
+     */
+    public static Packet decode(ByteBuffer buffer) {
 
-        byte[] receivedMagic = new byte[MAGIC.length];
-        int read = in.read(receivedMagic, 0, MAGIC.length);
+        KnockPacketView view = new KnockPacketView();
 
-        if (read != MAGIC.length || !Arrays.equals(receivedMagic, MAGIC)) {
-            LOGGER.debug("Received a bad magic packet");
+        if (!decode(buffer, view))
             return null;
-        }
 
-        Packet packet = createFromID((byte) 0);
+        Packet packet = createFromID(view.getPacketID());
 
         if (packet == null) {
             LOGGER.debug("Failed to create packet object (unknown ID?)");
             return null;
         }
 
-        packet.read(in);
-
-        // If the packet is supposed to be authenticated, check it
-        if (packet instanceof AuthenticatedPacket) {
-
-            AuthenticatedPacket authenticatedPacket = (AuthenticatedPacket) packet;
+        buffer.position(buffer.position() + HEADER_LENGTH);
+        packet.read(buffer);
 
-            // Identify the client
-            String identifier = authenticatedPacket.getClientIdentifier();
+        if (packet instanceof AuthenticatedPacket)
+            buffer.position(buffer.position() + TrustedClient.MAC_LENGTH);
 
-            LOGGER.debug("Received client identifier for authenticated packet: " + identifier);
-
-            TrustedClient client = TRUSTED_CLIENTS.get(identifier);
-
-            // No trusted client for identifier
-            if (client == null) {
-                LOGGER.debug("No public key found for identifier (client not trusted): " + identifier);
-                return null;
-            }
-
-            // Check for replay attack possibility
-            if (authenticatedPacket.getNonce() <= client.getLargestNonceReceived()) {
-                LOGGER.debug("Denied a possible replayed packet (or out-of-order)." +
-                        " Received nonce vs. largest nonce received: "
-                        + authenticatedPacket.getNonce() + " - " + client.getLargestNonceReceived());
-                return null;
-            }
-
-            // Read MAC
-            byte[] mac = new byte[TrustedClient.MAC_LENGTH];
-            int result = in.read(mac);
-
-            if (result != mac.length) {
-                LOGGER.debug("Buffer underflow for MAC, discarding packet " +
-                        "(read " + result + ", expected " + TrustedClient.MAC_LENGTH + ")");
-                return null;
-            }
+        return packet;
 
-            // Verify MAC
-            byte[] packetPayload = new byte[MAGIC.length + packet.length()];
-            System.arraycopy(payload, 0, packetPayload, 0, packetPayload.length);
+    }
 
-            if (!Arrays.equals(mac, client.createMAC(packetPayload))) {
+    /**
+     * Verifies a Knock packet in place, without creating a packet object.
+     * The view is pointed at the datagram between the buffer's position and limit, and is run through
+     * the {@link ProtocolMap#getPipeline() filter pipeline}. The view can be
+     * {@link KnockPacketView#materialize() materialized} if this method returns true.
+     * The buffer's position and limit are not modified.
+     *
+     * @param buffer The buffer containing a single datagram
+     * @param view   The reusable view to wrap the buffer with
+     * @return True if the datagram is an authentic Knock packet, false if it should be dropped
+     */
+    public static boolean decode(ByteBuffer buffer, KnockPacketView view) {
 
-                LOGGER.debug("Invalid MAC, discarding packet");
-                return null;
+        return decode(buffer, null, view);
 
-            }
+    }
 
-        }
+    /**
+     * Verifies a Knock packet in place, without creating a packet object.
+     * Same as {@link ProtocolMap#decode(ByteBuffer, KnockPacketView)}, but the source address of the datagram
+     * is attached to the view, so that it is available to the
+     * {@link FilterPipeline#setRejectListener(FilterPipeline.RejectListener) reject listener} of the pipeline.
+     *
+     * @param buffer The buffer containing a single datagram
+     * @param source The source address of the datagram
+     * @param view   The reusable view to wrap the buffer with
+     * @return True if the datagram is an authentic Knock packet, false if it should be dropped
+     */
+    public static boolean decode(ByteBuffer buffer, SocketAddress source, KnockPacketView view) {
 
-        return packet;
+        return PIPELINE.accept(view.wrap(buffer, source));
 
     }
 
@@ -181,38 +268,44 @@ public class ProtocolMap {
      */
     public static byte[] encodePacket(Packet packet) throws IOException {
 
-        ByteArrayOutputStream outputBuffer = new ByteArrayOutputStream();
-        DataOutputStream out = new DataOutputStream(outputBuffer);
+        int length = HEADER_LENGTH + packet.length();
 
-        out.write(MAGIC);
-        packet.write(out);
+        if (packet instanceof AuthenticatedPacket)
+            length += TrustedClient.MAC_LENGTH;
 
-        out.close();
+        ByteBuffer buffer = ByteBuffer.allocate(length);
 
-        byte[] packetPayload = outputBuffer.toByteArray();
+        encode(packet, buffer);
 
-        if (packet instanceof AuthenticatedPacket) {
+        return buffer.array();
 
-            TrustedClient client = TRUSTED_CLIENTS.get(((AuthenticatedPacket) packet).getClientIdentifier());
+    }
 
-            if (client == null)
-                throw new IOException("No trusted client found to generate MAC for given identifier");
+    /**
+     * Encodes a packet object into a buffer, starting at the buffer's current position.
+     * If the packet is authenticated, the MAC is calculated over the written fields in place and appended.
+     *
+     * @param packet The packet object to encode
+     * @param buffer The buffer to write to
+     * @throws IOException If there is no trusted client to generate the MAC with
+     * @throws java.nio.BufferOverflowException If the buffer does not have enough space remaining
+     */
+    public static void encode(Packet packet, ByteBuffer buffer) throws IOException {
 
-            byte[] mac = client.createMAC(packetPayload);
+        int start = buffer.position();
 
-            if (mac.length != TrustedClient.MAC_LENGTH)
-                throw new IOException("Expected signature length of " + TrustedClient.MAC_LENGTH + ", actual is " + mac.length);
+        buffer.put(MAGIC);
+        buffer.put(packet.getID());
+        packet.write(buffer);
 
-            // Concat final payload
-            byte[] payload = new byte[packetPayload.length + mac.length];
-            System.arraycopy(packetPayload, 0, payload, 0, packetPayload.length);
-            System.arraycopy(mac, 0, payload, packetPayload.length, mac.length);
+        if (packet instanceof AuthenticatedPacket) {
 
-            return payload;
+            TrustedClient client = TRUSTED_CLIENTS.get(((AuthenticatedPacket) packet).getClientIdentifier());
 
-        } else {
+            if (client == null)
+                throw new IOException("No trusted client found to generate MAC for given identifier");
 
-            return packetPayload;
+            client.writeMAC(buffer, start, buffer.position() - start);
 
         }
 
@@ -0,0 +1,110 @@
+package cnt4004.protocol;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A sliding window of recently used nonces, used for rejecting replayed packets.
+ * <p>
+ * The window tracks the highest nonce seen and a bitmap of the {@link ReplayWindow#SIZE} nonces at and below it.
+ * A nonce is accepted once if it is above the highest nonce, or inside the window and not yet used.
+ * This allows the packets of a knock sequence to be received out of order, or verified by several threads
+ * in parallel, without being mistaken for replays. Nonces below the window are always rejected.
+ * <p>
+ * The window is updated lock-free with a compare-and-set.
+ */
+public class ReplayWindow {
+
+    /**
+     * The amount of nonces tracked by the window
+     */
+    public static final int SIZE = Long.SIZE;
+
+    private final AtomicReference<State> state;
+
+    /**
+     * Creates a new window where {@code highestNonce} and every nonce below it are considered used
+     *
+     * @param highestNonce The highest nonce used
+     */
+    public ReplayWindow(long highestNonce) {
+        this.state = new AtomicReference<>(new State(highestNonce, -1L));
+    }
+
+    /**
+     * Checks if a nonce has not been used yet, without marking it.
+     * This is a cheap check to run before verifying a packet.
+     *
+     * @param nonce The nonce
+     * @return True if the nonce can still be used, false if it is a possible replay
+     */
+    public boolean isFresh(long nonce) {
+        return state.get().isFresh(nonce);
+    }
+
+    /**
+     * Marks a nonce as used. This should be called once a packet has been verified.
+     *
+     * @param nonce The nonce
+     * @return True if the nonce was marked, false if it had already been used (or is below the window)
+     */
+    public boolean mark(long nonce) {
+        while (true) {
+            State current = state.get();
+
+            if (!current.isFresh(nonce))
+                return false;
+
+            State next;
+
+            if (nonce > current.highest) {
+
+                long shift = nonce - current.highest;
+                long bitmap = shift >= SIZE ? 0 : current.bitmap << shift;
+
+                next = new State(nonce, bitmap | 1);
+
+            } else {
+
+                next = new State(current.highest, current.bitmap | (1L << (current.highest - nonce)));
+
+            }
+
+            if (state.compareAndSet(current, next))
+                return true;
+        }
+    }
+
+    /**
+     * The highest nonce marked as used
+     *
+     * @return The highest nonce
+     */
+    public long getHighestNonce() {
+        return state.get().highest;
+    }
+
+    /**
+     * An immutable snapshot of the window. Bit {@code n} of the bitmap represents the nonce {@code highest - n}.
+     */
+    private static final class State {
+
+        private final long highest;
+        private final long bitmap;
+
+        State(long highest, long bitmap) {
+            this.highest = highest;
+            this.bitmap = bitmap;
+        }
+
+        boolean isFresh(long nonce) {
+            if (nonce > highest)
+                return true;
+
+            long offset = highest - nonce;
+
+            return offset < SIZE && (bitmap & (1L << offset)) == 0;
+        }
+
+    }
+
+}
@@ -0,0 +1,27 @@
+package cnt4004.protocol;
+
+/**
+ * Reads {@link System#currentTimeMillis()} and {@link System#nanoTime()} on every call
+ *
+ * @see Clock#system()
+ */
+enum SystemClock implements Clock {
+
+    INSTANCE;
+
+    @Override
+    public long millis() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public long nanos() {
+        return System.nanoTime();
+    }
+
+    @Override
+    public String toString() {
+        return "SystemClock";
+    }
+
+}
@@ -4,11 +4,13 @@ import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Objects;
 import java.util.concurrent.atomic.AtomicLong;
@@ -30,39 +32,91 @@ public class TrustedClient {
 
     private final String sharedSecret;
     private final String identifier;
-    private final Mac macAlgorithm;
+    private final int packedIdentifier;
+    private final HmacSha256 hmac;
     private AtomicLong largestNonceReceived;
+    private final ReplayWindow replayWindow;
 
     /**
-     * Creates a new TrustedClient object. This method will initialize a local MAC algorithm.
+     * Creates a new TrustedClient object. This method will precompute the MAC key schedule.
      *
      * @param identifier           The identifier
      * @param sharedSecret         The shared secret
      * @param largestNonceReceived The largest known nonce
      * @throws NoSuchAlgorithmException If the MAC algorithm required by the protocol is not found on the system
      * @throws InvalidKeyException      If the shared secret cannot be used for the MAC
-     * @throws IllegalArgumentException If the MAC length generated by the algorithm does not match {@link TrustedClient#MAC_LENGTH}
+     * @throws IllegalArgumentException If the MAC length generated by the algorithm does not match {@link TrustedClient#MAC_LENGTH},
+     *                                  or the identifier cannot be packed (see {@link TrustedClientRegistry#pack(String)})
      */
     public TrustedClient(String identifier, String sharedSecret, long largestNonceReceived) throws NoSuchAlgorithmException, InvalidKeyException {
         this.identifier = identifier;
+        this.packedIdentifier = TrustedClientRegistry.pack(identifier);
         this.largestNonceReceived = new AtomicLong(largestNonceReceived);
+        this.replayWindow = new ReplayWindow(largestNonceReceived);
         this.sharedSecret = sharedSecret;
 
-        this.macAlgorithm = Mac.getInstance(MAC_ALGORITHM);
-        this.macAlgorithm.init(new SecretKeySpec(this.sharedSecret.getBytes(StandardCharsets.UTF_8), MAC_ALGORITHM));
+        byte[] key = this.sharedSecret.getBytes(StandardCharsets.UTF_8);
 
-        if (this.macAlgorithm.doFinal("test".getBytes()).length != MAC_LENGTH)
+        // The key schedule is cached by HmacSha256, the system algorithm is only used to check it
+        Mac macAlgorithm = Mac.getInstance(MAC_ALGORITHM);
+        macAlgorithm.init(new SecretKeySpec(key, MAC_ALGORITHM));
+
+        byte[] test = "test".getBytes(StandardCharsets.US_ASCII);
+        byte[] expected = macAlgorithm.doFinal(test);
+
+        if (expected.length != MAC_LENGTH)
             throw new IllegalArgumentException("MAC algorithm does not generate the expected MAC_LENGTH");
+
+        this.hmac = new HmacSha256(key);
+
+        if (!Arrays.equals(expected, createMAC(test)))
+            throw new IllegalStateException("Cached MAC key schedule does not match " + MAC_ALGORITHM);
     }
 
     /**
-     * Synchronized method for creating the MAC using the algorithm {@link TrustedClient#MAC_ALGORITHM}
+     * Creates the MAC using the algorithm {@link TrustedClient#MAC_ALGORITHM}
      *
      * @param payload The payload to use for the MAC
      * @return The MAC. The length of the byte[] array is always {@link TrustedClient#MAC_LENGTH}
      */
-    public synchronized byte[] createMAC(byte[] payload) {
-        return macAlgorithm.doFinal(payload);
+    public byte[] createMAC(byte[] payload) {
+        return hmac.mac(ByteBuffer.wrap(payload), 0, payload.length).clone();
+    }
+
+    /**
+     * Verifies a MAC in place. The MAC is calculated over {@code length} bytes starting at {@code offset},
+     * and is compared against the {@link TrustedClient#MAC_LENGTH} bytes that immediately follow.
+     * The comparison takes the same amount of time regardless of where the MACs differ.
+     * The position and limit of the buffer are not modified.
+     *
+     * @param buffer The buffer containing the payload followed by the received MAC
+     * @param offset The absolute index of the first payload byte
+     * @param length The amount of payload bytes
+     * @return True if the received MAC matches the calculated MAC, false otherwise
+     */
+    public boolean verifyMAC(ByteBuffer buffer, int offset, int length) {
+        byte[] mac = hmac.mac(buffer, offset, length);
+
+        int macOffset = offset + length;
+        int difference = 0;
+
+        for (int i = 0; i < MAC_LENGTH; i++)
+            difference |= buffer.get(macOffset + i) ^ mac[i];
+
+        return difference == 0;
+    }
+
+    /**
+     * Writes a MAC into a buffer. The MAC is calculated over {@code length} bytes starting at {@code offset},
+     * and is written at the current position of the buffer.
+     *
+     * @param buffer The buffer containing the payload
+     * @param offset The absolute index of the first payload byte
+     * @param length The amount of payload bytes
+     * @throws java.nio.BufferOverflowException If there are less than {@link TrustedClient#MAC_LENGTH} bytes remaining
+     */
+    public void writeMAC(ByteBuffer buffer, int offset, int length) {
+        buffer.put(hmac.mac(buffer, offset, length));
     }
 
     /**
@@ -74,6 +128,16 @@ public class TrustedClient {
         return largestNonceReceived.get();
     }
 
+    /**
+     * The window of nonces recently received from this client, used for rejecting replayed packets.
+     * The window starts at the largest known nonce, so the nonces saved from a previous run are never reused.
+     *
+     * @return The replay window
+     */
+    public ReplayWindow getReplayWindow() {
+        return replayWindow;
+    }
+
     /**
      * Sets the largest known nonce received for this client
      *
@@ -96,6 +160,15 @@ public class TrustedClient {
         return identifier;
     }
 
+    /**
+     * The identifier packed into an integer, see {@link TrustedClientRegistry#pack(String)}
+     *
+     * @return The packed identifier
+     */
+    public int getPackedIdentifier() {
+        return packedIdentifier;
+    }
+
     /**
      * Sets the flat file path that {@link TrustedClient#saveTrustedClients(Collection)} uses
      *
@@ -106,12 +179,13 @@ public class TrustedClient {
     }
 
     /**
-     * Writes a collection of trusted clients to the path defined by {@link TrustedClient#setFlatFile(Path)}
+     * Writes a collection of trusted clients to the path defined by {@link TrustedClient#setFlatFile(Path)}.
+     * Concurrent calls are serialized, so the file is never written by two threads at once.
      *
      * @param trustedClients Collection of {@link TrustedClient}
      * @throws IOException IO Exception occurred while writing to file
      */
-    public static void saveTrustedClients(Collection<TrustedClient> trustedClients) throws IOException {
+    public static synchronized void saveTrustedClients(Collection<TrustedClient> trustedClients) throws IOException {
 
         try (PrintWriter writer = new PrintWriter(Files.newOutputStream(FLAT_FILE))) {
 
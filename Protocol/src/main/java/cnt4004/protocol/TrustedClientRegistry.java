@@ -0,0 +1,198 @@
+package cnt4004.protocol;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A registry of trusted clients, indexed by their packed identifier.
+ * Identifiers are at most 4 ASCII bytes, so each identifier is packed into a 32-bit integer
+ * (see {@link TrustedClientRegistry#pack(String)}) and used as the key of an open-addressing hash table.
+ * <p>
+ * Lookups are lock-free and do not allocate. Additions are serialized with each other, but never block lookups.
+ */
+public class TrustedClientRegistry {
+
+    /**
+     * The packed identifier of an empty slot. No valid identifier packs to 0, because identifiers cannot be empty.
+     */
+    private static final int EMPTY = 0;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private volatile Table table = new Table(INITIAL_CAPACITY);
+    private volatile int size;
+
+    /**
+     * Packs an identifier into a big endian integer. Identifiers shorter than 4 characters are padded with zeros,
+     * which matches how the identifier field is encoded on the wire.
+     *
+     * @param identifier The identifier
+     * @return The packed identifier
+     * @throws IllegalArgumentException If the identifier is empty, longer than 4 characters, or not ASCII
+     */
+    public static int pack(String identifier) {
+        if (identifier.isEmpty() || identifier.length() > AuthenticatedPacket.IDENTIFIER_LENGTH)
+            throw new IllegalArgumentException("Client identifier must be 1 to 4 characters: " + identifier);
+
+        int packed = 0;
+
+        for (int i = 0; i < AuthenticatedPacket.IDENTIFIER_LENGTH; i++) {
+            int c = i < identifier.length() ? identifier.charAt(i) : 0;
+
+            if (c > 0x7F || (c == 0 && i < identifier.length()))
+                throw new IllegalArgumentException("Client identifier must be ASCII: " + identifier);
+
+            packed = (packed << 8) | c;
+        }
+
+        return packed;
+    }
+
+    /**
+     * Returns the trusted client associated with a packed identifier
+     *
+     * @param packedIdentifier The packed identifier
+     * @return The trusted client, or null if the client is not trusted
+     */
+    public TrustedClient get(int packedIdentifier) {
+        if (packedIdentifier == EMPTY)
+            return null;
+
+        Table table = this.table;
+        int mask = table.values.length - 1;
+
+        for (int index = hash(packedIdentifier) & mask; ; index = (index + 1) & mask) {
+            int key = table.keys.get(index);
+
+            if (key == packedIdentifier)
+                return table.values[index];
+
+            if (key == EMPTY)
+                return null;
+        }
+    }
+
+    /**
+     * Returns the trusted client associated with an identifier
+     *
+     * @param identifier The identifier
+     * @return The trusted client, or null if the client is not trusted (or the identifier is invalid)
+     */
+    public TrustedClient get(String identifier) {
+        if (identifier == null)
+            return null;
+
+        try {
+            return get(pack(identifier));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Adds a trusted client
+     *
+     * @param client The trusted client
+     * @return True if the client was added, false if a client with the same identifier already exists
+     */
+    public synchronized boolean add(TrustedClient client) {
+        int packedIdentifier = client.getPackedIdentifier();
+
+        if (get(packedIdentifier) != null)
+            return false;
+
+        // Keep the load factor at or below 1/2 so probe sequences stay short
+        if ((size + 1) * 2 > table.values.length) {
+            Table resized = new Table(table.values.length * 2);
+
+            for (TrustedClient existing : table.values) {
+                if (existing != null)
+                    resized.insert(existing);
+            }
+
+            table = resized;
+        }
+
+        table.insert(client);
+        size++;
+
+        return true;
+    }
+
+    /**
+     * The amount of trusted clients
+     *
+     * @return The amount of trusted clients
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * A snapshot of every trusted client
+     *
+     * @return An unmodifiable collection of trusted clients
+     */
+    public Collection<TrustedClient> values() {
+        List<TrustedClient> values = new ArrayList<>(size);
+
+        for (TrustedClient client : table.values) {
+            if (client != null)
+                values.add(client);
+        }
+
+        return Collections.unmodifiableList(values);
+    }
+
+    /**
+     * Spreads the bits of a packed identifier, since identifiers often only differ in their last byte
+     *
+     * @param key The packed identifier
+     * @return The hash
+     */
+    private static int hash(int key) {
+        key ^= key >>> 16;
+        key *= 0x85ebca6b;
+        key ^= key >>> 13;
+        key *= 0xc2b2ae35;
+        key ^= key >>> 16;
+        return key;
+    }
+
+    /**
+     * A fixed-capacity table. The capacity is always a power of two.
+     */
+    private static final class Table {
+
+        private final AtomicIntegerArray keys;
+        private final TrustedClient[] values;
+
+        Table(int capacity) {
+            this.keys = new AtomicIntegerArray(capacity);
+            this.values = new TrustedClient[capacity];
+        }
+
+        /**
+         * Inserts a client into an empty slot. The value is written before the key is published,
+         * so a reader that sees the key also sees the value.
+         *
+         * @param client The client to insert
+         */
+        void insert(TrustedClient client) {
+            int packedIdentifier = client.getPackedIdentifier();
+            int mask = values.length - 1;
+            int index = hash(packedIdentifier) & mask;
+
+            while (keys.get(index) != EMPTY)
+                index = (index + 1) & mask;
+
+            values[index] = client;
+            keys.set(index, packedIdentifier);
+        }
+
+    }
+
+}
@@ -3,8 +3,6 @@ package cnt4004.protocol;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.time.Instant;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 
@@ -22,42 +20,107 @@ public class Utils {
      */
     private static final int MIN_PORT_NUMBER = 1025;
 
+    /**
+     * The maximum amount of ports in a knock sequence.
+     * The maximum sequence ID of a Knock packet is a signed byte, so a sequence has at most 128 packets.
+     */
+    public static final int MAX_PORT_COUNT = Byte.MAX_VALUE + 1;
+
     private Utils() {
     }
 
     /**
-     * The md5 hash algorithm
+     * The schedule used by the last call to {@link Utils#getPortSequence(String, int, Clock)}.
+     * Processes normally use a single port secret and port count, so one cached schedule is enough.
      */
-    private static final MessageDigest HASH_ALGORITHM;
+    private static volatile PortSchedule LAST_SCHEDULE;
 
-    static {
-        try {
-            HASH_ALGORITHM = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException e) {
-            // Every machine should have the MD5 algorithm...
-            // But if not, crash the program
-            throw new RuntimeException(e);
-        }
+    /**
+     * Generates {@code portCount} ports using the current unix time in minutes and a port secret.
+     * The result is cached, see {@link PortSchedule}.
+     *
+     * @param portSecret The port secret
+     * @param portCount  The amount of ports to generate
+     * @return An unmodifiable list of {@code portCount} distinct ports
+     */
+    public static List<Integer> getPorts(String portSecret, int portCount) {
+        return getPortSequence(portSecret, portCount).asList();
     }
 
     /**
      * Generates {@code portCount} ports using the current unix time in minutes and a port secret.
+     * The result is cached, see {@link PortSchedule}.
      *
      * @param portSecret The port secret
      * @param portCount  The amount of ports to generate
-     * @return A list of {@code portCount} distinct ports
+     * @return A sequence of {@code portCount} distinct ports
      */
-    public synchronized static List<Integer> getPorts(String portSecret, int portCount) {
+    public static PortSequence getPortSequence(String portSecret, int portCount) {
+        return getPortSequence(portSecret, portCount, Clock.system());
+    }
+
+    /**
+     * Generates {@code portCount} ports using the unix time in minutes of a clock and a port secret.
+     * The result is cached, see {@link PortSchedule}.
+     *
+     * @param portSecret The port secret
+     * @param portCount  The amount of ports to generate
+     * @param clock      The clock that decides the current minute
+     * @return A sequence of {@code portCount} distinct ports
+     */
+    public static PortSequence getPortSequence(String portSecret, int portCount, Clock clock) {
+
+        PortSchedule schedule = LAST_SCHEDULE;
+
+        if (schedule == null || schedule.getPortCount() != portCount || !schedule.getPortSecret().equals(portSecret)
+                || schedule.getClock() != clock) {
+            schedule = new PortSchedule(portSecret, portCount, clock);
+            LAST_SCHEDULE = schedule;
+        }
+
+        return schedule.getSequence();
+
+    }
+
+    /**
+     * Generates {@code portCount} ports using a unix time in minutes and a port secret.
+     *
+     * @param portSecret     The port secret
+     * @param portCount      The amount of ports to generate
+     * @param unixMinuteTime The minutes since the unix epoch
+     * @return An unmodifiable list of {@code portCount} distinct ports
+     */
+    public static List<Integer> generatePorts(String portSecret, int portCount, long unixMinuteTime) {
+        return generatePortSequence(portSecret, portCount, unixMinuteTime).asList();
+    }
+
+    /**
+     * Generates {@code portCount} ports using a unix time in minutes and a port secret.
+     *
+     * @param portSecret     The port secret
+     * @param portCount      The amount of ports to generate
+     * @param unixMinuteTime The minutes since the unix epoch
+     * @return A sequence of {@code portCount} distinct ports
+     * @throws IllegalArgumentException If the port secret is null, or the port count is negative
+     *                                  or larger than {@link Utils#MAX_PORT_COUNT}
+     */
+    public static PortSequence generatePortSequence(String portSecret, int portCount, long unixMinuteTime) {
 
         if (portSecret == null)
             throw new IllegalArgumentException("Port secret cannot be null");
 
-        if (portCount < 0)
-            throw new IllegalArgumentException("Port count must not be negative");
+        if (portCount < 0 || portCount > MAX_PORT_COUNT)
+            throw new IllegalArgumentException("Port count must be between 0 and " + MAX_PORT_COUNT + ": " + portCount);
 
-        long unixMinuteTime = Instant.now().getEpochSecond() / 60;
+        byte[] md5;
 
-        byte[] md5 = HASH_ALGORITHM.digest((portSecret + unixMinuteTime).getBytes(StandardCharsets.UTF_8));
+        try {
+            md5 = MessageDigest.getInstance("MD5").digest((portSecret + unixMinuteTime).getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            // Every machine should have the MD5 algorithm...
+            // But if not, crash the program
+            throw new RuntimeException(e);
+        }
 
         long a = md5[0] * 256 * md5[1] + 256 * 256 * md5[2] + 256 * 256 * 256 * md5[3];
         long b = md5[4] * 256 * md5[5] + 256 * 256 * md5[6] + 256 * 256 * 256 * md5[7];
@@ -65,18 +128,26 @@ public class Utils {
 
         Random random = new Random(result);
 
-        List<Integer> ports = new ArrayList<>();
+        int[] ports = new int[portCount];
+
+        // One bit for every possible port, so duplicates are found in constant time
+        long[] generated = new long[(MAX_PORT_NUMBER >>> 6) + 1];
+
+        int count = 0;
 
-        while (ports.size() != portCount) {
+        while (count != portCount) {
 
             int port = random.nextInt(MAX_PORT_NUMBER + 1);
+            long bit = 1L << port;
 
-            if (validPort(port) && !ports.contains(port))
-                ports.add(port);
+            if (validPort(port) && (generated[port >>> 6] & bit) == 0) {
+                generated[port >>> 6] |= bit;
+                ports[count++] = port;
+            }
 
         }
 
-        return ports;
+        return new PortSequence(ports);
 
     }
 
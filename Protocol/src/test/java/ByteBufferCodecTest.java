@@ -0,0 +1,136 @@
+import cnt4004.protocol.KnockPacket;
+import cnt4004.protocol.KnockPacketView;
+import cnt4004.protocol.ProtocolMap;
+import cnt4004.protocol.TrustedClient;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashSet;
+
+public class ByteBufferCodecTest {
+
+    private TrustedClient client;
+
+    @Before
+    public void setup() throws Exception {
+        client = new TrustedClient("com1", "testKey", 0);
+        ProtocolMap.setTrustedClients(new HashSet<>(Collections.singletonList(client)));
+    }
+
+    @Test
+    public void testDirectBufferRoundTrip() throws Exception {
+
+        KnockPacket packet = new KnockPacket(client.getIdentifier(), 5, (byte) 1, (byte) 2);
+        packet.setTimestamp(Instant.ofEpochSecond(Instant.now().getEpochSecond()));
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(ProtocolMap.MAX_BUFFER);
+        ProtocolMap.encode(packet, buffer);
+        buffer.flip();
+
+        Assert.assertArrayEquals("Direct and heap encodings differ", ProtocolMap.encodePacket(packet), toArray(buffer));
+
+        KnockPacket decoded = (KnockPacket) ProtocolMap.decode(buffer);
+
+        Assert.assertNotNull("Decoded packet is null", decoded);
+        Assert.assertEquals(packet.getClientIdentifier(), decoded.getClientIdentifier());
+        Assert.assertEquals(packet.getNonce(), decoded.getNonce());
+        Assert.assertEquals(packet.getTimestamp(), decoded.getTimestamp());
+        Assert.assertEquals(packet.getSequence(), decoded.getSequence());
+        Assert.assertEquals(packet.getMaxSequence(), decoded.getMaxSequence());
+
+    }
+
+    @Test
+    public void testDatagramLengthIsHonored() throws Exception {
+
+        byte[] payload = ProtocolMap.encodePacket(knock(1));
+
+        // Simulate a receive buffer that is larger than the datagram
+        byte[] receiveBuffer = new byte[ProtocolMap.MAX_BUFFER];
+        System.arraycopy(payload, 0, receiveBuffer, 0, payload.length);
+
+        Assert.assertNotNull(ProtocolMap.decode(ByteBuffer.wrap(receiveBuffer, 0, payload.length)));
+
+        // A truncated datagram must not be decoded using stale bytes left in the receive buffer
+        Assert.assertNull(ProtocolMap.decode(ByteBuffer.wrap(receiveBuffer, 0, payload.length - 1)));
+
+    }
+
+    @Test
+    public void testTamperedMacIsRejected() throws Exception {
+
+        byte[] payload = ProtocolMap.encodePacket(knock(1));
+        payload[payload.length - 1] ^= 1;
+
+        Assert.assertNull(ProtocolMap.decodePayload(payload));
+
+    }
+
+    @Test
+    public void testNonAsciiIdentifierIsRejected() throws Exception {
+
+        byte[] payload = ProtocolMap.encodePacket(knock(1));
+
+        // "com1" with the high bit set on its first character, signed with the key of "com1".
+        // The identifier follows the magic, the packet ID and the sequence IDs, and the 32-byte MAC is at the end.
+        payload[5] |= (byte) 0x80;
+        int signed = payload.length - 32;
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        buffer.position(signed);
+        client.writeMAC(buffer, 0, signed);
+
+        Assert.assertNull(ProtocolMap.decodePayload(payload));
+        Assert.assertFalse(ProtocolMap.decode(ByteBuffer.wrap(payload), new KnockPacketView()));
+
+        // Nor is it masked to ASCII for logging
+        Assert.assertNull(new KnockPacketView().wrap(ByteBuffer.wrap(payload)).getClientIdentifier());
+
+    }
+
+    @Test
+    public void testViewMatchesDecodedPacket() throws Exception {
+
+        KnockPacket packet = new KnockPacket(client.getIdentifier(), 7, (byte) 2, (byte) 2);
+        packet.setTimestamp(Instant.ofEpochSecond(Instant.now().getEpochSecond()));
+
+        ByteBuffer buffer = ByteBuffer.wrap(ProtocolMap.encodePacket(packet));
+        KnockPacketView view = new KnockPacketView();
+
+        Assert.assertTrue("View failed to verify", ProtocolMap.decode(buffer, view));
+        Assert.assertEquals("Buffer position was modified", 0, buffer.position());
+
+        Assert.assertEquals(packet.getSequence(), view.getSequence());
+        Assert.assertEquals(packet.getMaxSequence(), view.getMaxSequence());
+        Assert.assertEquals(packet.getNonce(), view.getNonce());
+        Assert.assertEquals(packet.getTimestamp().getEpochSecond(), view.getEpochSecond());
+        Assert.assertEquals('c', view.getIdentifierByte(0));
+        Assert.assertEquals(packet.getClientIdentifier(), view.getClientIdentifier());
+
+        KnockPacket materialized = view.materialize();
+
+        Assert.assertEquals(packet.getClientIdentifier(), materialized.getClientIdentifier());
+        Assert.assertEquals(packet.getTimestamp(), materialized.getTimestamp());
+        Assert.assertEquals(packet.getSequence(), materialized.getSequence());
+
+        buffer.put(buffer.limit() - 1, (byte) (buffer.get(buffer.limit() - 1) ^ 1));
+        Assert.assertFalse("View verified a tampered packet", ProtocolMap.decode(buffer, view));
+
+    }
+
+    private KnockPacket knock(long nonce) {
+        KnockPacket packet = new KnockPacket(client.getIdentifier(), nonce, (byte) 0, (byte) 0);
+        packet.setTimestamp(Instant.now());
+        return packet;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] array = new byte[buffer.remaining()];
+        buffer.duplicate().get(array);
+        return array;
+    }
+
+}
@@ -0,0 +1,83 @@
+import cnt4004.protocol.Clock;
+import cnt4004.protocol.CoarseClock;
+import cnt4004.protocol.ManualClock;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class ClockTest {
+
+    @Test
+    public void testManualClockAdvance() {
+
+        ManualClock clock = new ManualClock(TimeUnit.MINUTES.toMillis(25_000_000L));
+
+        Assert.assertEquals(25_000_000L, clock.currentMinute());
+        Assert.assertEquals(0, clock.nanos());
+
+        // Sub-millisecond steps add up on the wall clock
+        for (int i = 0; i < 4; i++)
+            clock.advance(250, TimeUnit.MICROSECONDS);
+
+        Assert.assertEquals(TimeUnit.MINUTES.toMillis(25_000_000L) + 1, clock.millis());
+        Assert.assertEquals(TimeUnit.MILLISECONDS.toNanos(1), clock.nanos());
+
+        clock.advance(59_999, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(25_000_001L, clock.currentMinute());
+        Assert.assertEquals(TimeUnit.MINUTES.toSeconds(25_000_001L), clock.epochSecond());
+
+    }
+
+    @Test
+    public void testManualClockSetBackwards() {
+
+        ManualClock clock = new ManualClock(10_000);
+
+        clock.setMillis(15_000);
+        Assert.assertEquals(TimeUnit.SECONDS.toNanos(5), clock.nanos());
+
+        // The wall clock can go back, the monotonic time cannot
+        clock.setMillis(1_000);
+        Assert.assertEquals(1_000, clock.millis());
+        Assert.assertEquals(TimeUnit.SECONDS.toNanos(5), clock.nanos());
+
+    }
+
+    @Test(timeout = 5000)
+    public void testManualClockWakesSleepers() throws Exception {
+
+        ManualClock clock = new ManualClock(0);
+        Thread sleeper = new Thread(() -> {
+            try {
+                clock.sleepUntil(TimeUnit.MINUTES.toMillis(1));
+            } catch (InterruptedException ignored) {
+            }
+        });
+
+        sleeper.start();
+        clock.advance(59, TimeUnit.SECONDS);
+        sleeper.join(100);
+        Assert.assertTrue("Woke up before the deadline", sleeper.isAlive());
+
+        clock.advance(1, TimeUnit.SECONDS);
+        sleeper.join();
+
+    }
+
+    @Test
+    public void testCoarseClockFollowsSystemClock() throws Exception {
+
+        try (CoarseClock clock = new CoarseClock(1)) {
+
+            long before = clock.nanos();
+            Thread.sleep(50);
+
+            Assert.assertTrue(clock.nanos() - before >= TimeUnit.MILLISECONDS.toNanos(40));
+            Assert.assertTrue(Math.abs(Clock.system().millis() - clock.millis()) < 1000);
+
+        }
+
+    }
+
+}
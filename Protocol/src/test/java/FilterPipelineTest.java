@@ -0,0 +1,174 @@
+import cnt4004.protocol.FilterPipeline;
+import cnt4004.protocol.KnockPacket;
+import cnt4004.protocol.KnockPacketView;
+import cnt4004.protocol.ManualClock;
+import cnt4004.protocol.PacketFilter;
+import cnt4004.protocol.ProtocolMap;
+import cnt4004.protocol.TrustedClient;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class FilterPipelineTest {
+
+    private TrustedClient client;
+    private FilterPipeline pipeline;
+    private final KnockPacketView view = new KnockPacketView();
+
+    @Before
+    public void setup() throws Exception {
+        client = new TrustedClient("com1", "testKey", 10);
+        ProtocolMap.setTrustedClients(new HashSet<>(Collections.singletonList(client)));
+
+        pipeline = FilterPipeline.standard(30);
+        ProtocolMap.setPipeline(pipeline);
+    }
+
+    @After
+    public void cleanup() {
+        ProtocolMap.setPipeline(FilterPipeline.standard(ProtocolMap.DEFAULT_TIMESTAMP_SKEW));
+    }
+
+    @Test
+    public void testRejectStages() throws Exception {
+
+        Assert.assertTrue(decode(knock(11, 0)));
+        Assert.assertEquals(1, pipeline.getAcceptCount());
+
+        // Garbage
+        byte[] payload;
+        Assert.assertFalse(decode(new byte[]{'X', 'Y', 0, 0}));
+        assertRejectedBy("magic");
+
+        // Unknown packet ID
+        payload = knock(11, 0);
+        payload[2] = 42;
+        Assert.assertFalse(decode(payload));
+        assertRejectedBy("packet-id");
+
+        // Truncated
+        payload = knock(11, 0);
+        Assert.assertFalse(decode(ByteBuffer.wrap(payload, 0, payload.length - 1)));
+        assertRejectedBy("length");
+
+        // Unknown client (the identifier follows the magic, packet ID and sequence IDs)
+        payload[5] = 'x';
+        Assert.assertFalse(decode(payload));
+        assertRejectedBy("client");
+
+        // Stale and future timestamps are dropped before the nonce and MAC are checked
+        Assert.assertFalse(decode(knock(11, -31)));
+        Assert.assertFalse(decode(knock(11, 31)));
+        assertRejectedBy("timestamp", 2);
+
+        // Within the window, but replayed
+        Assert.assertFalse(decode(knock(10, 30)));
+        assertRejectedBy("nonce");
+
+        payload = knock(12, 0);
+        payload[payload.length - 1] ^= 1;
+        Assert.assertFalse(decode(payload));
+        assertRejectedBy("mac");
+
+        Assert.assertEquals(1, pipeline.getAcceptCount());
+
+    }
+
+    @Test
+    public void testTimestampFollowsClock() throws Exception {
+
+        ManualClock clock = new ManualClock(System.currentTimeMillis());
+        pipeline = FilterPipeline.standard(30, clock);
+        ProtocolMap.setPipeline(pipeline);
+
+        Assert.assertTrue(decode(knock(11, 0)));
+
+        // The packets are timestamped with the system time, which the server clock has left behind
+        clock.advance(31, TimeUnit.SECONDS);
+        Assert.assertFalse(decode(knock(12, 0)));
+        assertRejectedBy("timestamp");
+
+        Assert.assertTrue(decode(knock(13, 31)));
+        Assert.assertEquals(2, pipeline.getAcceptCount());
+
+    }
+
+    @Test
+    public void testRejectListener() throws Exception {
+
+        List<String> rejects = new ArrayList<>();
+        List<SocketAddress> sources = new ArrayList<>();
+
+        pipeline.setRejectListener((stage, packet) -> {
+            rejects.add(stage.getName());
+            sources.add(packet.getSource());
+        });
+
+        InetSocketAddress source = new InetSocketAddress("192.0.2.1", 5000);
+
+        Assert.assertFalse(ProtocolMap.decode(ByteBuffer.wrap(new byte[]{'X', 'Y', 0, 0}), source, view));
+
+        byte[] payload = knock(12, 0);
+        payload[payload.length - 1] ^= 1;
+        Assert.assertFalse(ProtocolMap.decode(ByteBuffer.wrap(payload), source, view));
+
+        // Accepted packets are not reported
+        Assert.assertTrue(ProtocolMap.decode(ByteBuffer.wrap(knock(13, 0)), source, view));
+
+        Assert.assertEquals(Arrays.asList("magic", "mac"), rejects);
+        Assert.assertEquals(Arrays.asList(source, source), sources);
+
+        // Without a source
+        Assert.assertFalse(decode(new byte[]{'X', 'Y', 0, 0}));
+        Assert.assertNull(sources.get(2));
+
+        pipeline.setRejectListener(null);
+        Assert.assertFalse(decode(new byte[]{'X', 'Y', 0, 0}));
+        Assert.assertEquals(3, rejects.size());
+
+    }
+
+    private void assertRejectedBy(String name) {
+        assertRejectedBy(name, 1);
+    }
+
+    private void assertRejectedBy(String name, long expected) {
+        List<PacketFilter> stages = pipeline.getStages();
+
+        for (int i = 0; i < stages.size(); i++) {
+            if (stages.get(i).getName().equals(name)) {
+                Assert.assertEquals("Reject count of the " + name + " filter", expected, pipeline.getRejectCount(i));
+                return;
+            }
+        }
+
+        Assert.fail("No " + name + " filter in the pipeline");
+    }
+
+    private boolean decode(byte[] payload) {
+        return decode(ByteBuffer.wrap(payload));
+    }
+
+    private boolean decode(ByteBuffer buffer) {
+        return ProtocolMap.decode(buffer, view);
+    }
+
+    private byte[] knock(long nonce, long skew) throws Exception {
+        KnockPacket packet = new KnockPacket(client.getIdentifier(), nonce, (byte) 0, (byte) 0);
+        packet.setTimestamp(Instant.ofEpochSecond(Instant.now().getEpochSecond() + skew));
+        return ProtocolMap.encodePacket(packet);
+    }
+
+}
@@ -9,10 +9,10 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.nio.file.Files;
+import java.time.Instant;
 import java.util.*;
 
 public class PacketIOTest {
@@ -20,27 +20,28 @@ public class PacketIOTest {
     @Test
     public void test() throws Exception {
 
-        Field packetMapField = ProtocolMap.class.getDeclaredField("PACKET_MAP");
-        packetMapField.setAccessible(true);
-        //noinspection unchecked
-        Map<Byte, Constructor<? extends Packet>> packetMap = (Map<Byte, Constructor<? extends Packet>>) packetMapField.get(null);
-
         Method createPacketMethod = ProtocolMap.class.getDeclaredMethod("createFromID", byte.class);
         createPacketMethod.setAccessible(true);
 
         List<Packet> packets = new ArrayList<>();
 
-        for (byte id : packetMap.keySet()) {
+        // Every possible packet ID, registered or not
+        for (int i = 0; i < 256; i++) {
 
+            byte id = (byte) i;
             Packet packet = (Packet) createPacketMethod.invoke(null, id);
 
-            Assert.assertNotNull("Packet object is null for registered packet ID", packet);
+            if (packet == null)
+                continue;
+
             Assert.assertEquals("ID in packet object does not match registered ID", id, packet.getID());
 
             Assert.assertTrue(packets.add(packet));
 
         }
 
+        Assert.assertFalse("No registered packets", packets.isEmpty());
+
         TrustedClient client = new TrustedClient("com1", "testKey", 0);
 
         TrustedClient.setFlatFile(Files.createTempFile("trust-clients-tmp", ".txt"));
@@ -56,6 +57,7 @@ public class PacketIOTest {
                 AuthenticatedPacket authenticatedPacket = (AuthenticatedPacket) packet;
                 authenticatedPacket.setClientIdentifier(client.getIdentifier());
                 authenticatedPacket.setNonce(client.getLargestNonceReceived() + 1);
+                authenticatedPacket.setTimestamp(Instant.ofEpochSecond(Instant.now().getEpochSecond()));
             }
 
             int before = outStream.size();
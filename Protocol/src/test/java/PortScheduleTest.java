@@ -0,0 +1,102 @@
+import cnt4004.protocol.ManualClock;
+import cnt4004.protocol.PortSchedule;
+import cnt4004.protocol.PortSequence;
+import cnt4004.protocol.Utils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class PortScheduleTest {
+
+    @Test
+    public void testCachedMinutesMatchGeneratedPorts() {
+
+        PortSchedule schedule = new PortSchedule("portSecret", 5);
+        long minute = PortSchedule.currentMinute();
+
+        for (long m = minute - 2; m <= minute + 2; m++)
+            Assert.assertEquals(Utils.generatePorts("portSecret", 5, m), schedule.getPorts(m));
+
+        Assert.assertSame("Current minute is not cached", schedule.getPorts(minute), schedule.getPorts(minute));
+
+    }
+
+    @Test
+    public void testMinuteRollover() {
+
+        long minute = 25_000_000L;
+        ManualClock clock = new ManualClock(TimeUnit.MINUTES.toMillis(minute + 1) - 1);
+        PortSchedule schedule = new PortSchedule("portSecret", 5, clock);
+
+        Assert.assertEquals(minute, clock.currentMinute());
+        Assert.assertEquals(Utils.generatePorts("portSecret", 5, minute), schedule.getPorts());
+        List<Integer> next = schedule.getPorts(minute + 1);
+
+        clock.advance(1, TimeUnit.MILLISECONDS);
+
+        Assert.assertEquals(minute + 1, clock.currentMinute());
+        Assert.assertSame("Next minute was not reused", next, schedule.getPorts());
+        Assert.assertEquals(Utils.generatePorts("portSecret", 5, minute + 2), schedule.getPorts(minute + 2));
+
+        // A clock that jumps ahead skips the minutes in between
+        clock.advance(10, TimeUnit.MINUTES);
+
+        Assert.assertEquals(Utils.generatePorts("portSecret", 5, minute + 11), schedule.getPorts());
+        Assert.assertEquals(Utils.generatePorts("portSecret", 5, minute + 11),
+                Utils.getPortSequence("portSecret", 5, clock).asList());
+
+    }
+
+    @Test
+    public void testGeneratedPortsAreDistinctAndValid() {
+
+        List<Integer> ports = Utils.generatePorts("portSecret", 100, 25_000_000L);
+
+        Assert.assertEquals(100, ports.size());
+        Assert.assertEquals(100, new HashSet<>(ports).size());
+
+        for (int port : ports)
+            Assert.assertTrue("Invalid port " + port, port > 1025 && port < 65535);
+
+    }
+
+    @Test
+    public void testGetPortsFollowsSecret() {
+
+        Assert.assertEquals(new PortSchedule("a", 3).getPorts(), Utils.getPorts("a", 3));
+        Assert.assertEquals(new PortSchedule("b", 4).getPorts(), Utils.getPorts("b", 4));
+
+    }
+
+    @Test
+    public void testLongSequences() {
+
+        for (int portCount : new int[]{127, Utils.MAX_PORT_COUNT}) {
+
+            PortSequence sequence = Utils.generatePortSequence("portSecret", portCount, 25_000_000L);
+
+            Assert.assertEquals(portCount, sequence.size());
+            Assert.assertEquals(portCount, new HashSet<>(sequence.asList()).size());
+            Assert.assertTrue(sequence.matches(sequence.toArray(), portCount));
+
+            int[] wrongOrder = sequence.toArray();
+            int first = wrongOrder[0];
+            wrongOrder[0] = wrongOrder[portCount - 1];
+            wrongOrder[portCount - 1] = first;
+
+            Assert.assertFalse(sequence.matches(wrongOrder, portCount));
+            Assert.assertFalse(sequence.matches(sequence.toArray(), portCount - 1));
+
+        }
+
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooManyPorts() {
+        new PortSchedule("portSecret", Utils.MAX_PORT_COUNT + 1);
+    }
+
+}
@@ -0,0 +1,80 @@
+import cnt4004.protocol.ReplayWindow;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class ReplayWindowTest {
+
+    @Test
+    public void testOutOfOrder() {
+
+        ReplayWindow window = new ReplayWindow(10);
+
+        Assert.assertFalse("Saved nonce accepted", window.isFresh(10));
+        Assert.assertFalse("Saved nonce accepted", window.isFresh(3));
+
+        // A sequence of nonces arriving out of order
+        Assert.assertTrue(window.mark(13));
+        Assert.assertTrue(window.mark(11));
+        Assert.assertTrue(window.mark(12));
+
+        Assert.assertFalse("Replayed nonce accepted", window.mark(12));
+        Assert.assertFalse("Replayed nonce accepted", window.isFresh(13));
+        Assert.assertEquals(13, window.getHighestNonce());
+
+    }
+
+    @Test
+    public void testWindowEdge() {
+
+        ReplayWindow window = new ReplayWindow(0);
+
+        Assert.assertTrue(window.mark(100));
+
+        long oldest = 100 - ReplayWindow.SIZE + 1;
+
+        Assert.assertTrue("Oldest nonce in the window rejected", window.mark(oldest));
+        Assert.assertFalse("Nonce below the window accepted", window.isFresh(oldest - 1));
+
+        // Jumping further than the window clears it
+        Assert.assertTrue(window.mark(100 + ReplayWindow.SIZE * 2));
+        Assert.assertFalse(window.isFresh(100));
+
+    }
+
+    @Test
+    public void testConcurrentMarking() throws Exception {
+
+        ReplayWindow window = new ReplayWindow(0);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Integer>> results = new ArrayList<>();
+
+        // Each thread tries to use the same nonces, each nonce must only be accepted once
+        for (int thread = 0; thread < 4; thread++) {
+            results.add(executor.submit(() -> {
+                int marked = 0;
+                for (long nonce = 1; nonce <= 100000; nonce++) {
+                    if (window.mark(nonce))
+                        marked++;
+                }
+                return marked;
+            }));
+        }
+
+        int total = 0;
+
+        for (Future<Integer> result : results)
+            total += result.get();
+
+        executor.shutdown();
+
+        Assert.assertEquals(100000, total);
+
+    }
+
+}
@@ -0,0 +1,57 @@
+import cnt4004.protocol.TrustedClient;
+import cnt4004.protocol.TrustedClientRegistry;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TrustedClientRegistryTest {
+
+    @Test
+    public void testPack() {
+        Assert.assertEquals(0x636F6D31, TrustedClientRegistry.pack("com1"));
+        Assert.assertEquals(0x61620000, TrustedClientRegistry.pack("ab"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPackTooLong() {
+        TrustedClientRegistry.pack("com12");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPackEmpty() {
+        TrustedClientRegistry.pack("");
+    }
+
+    @Test
+    public void testLookup() throws Exception {
+
+        TrustedClientRegistry registry = new TrustedClientRegistry();
+
+        int count = 5000;
+
+        for (int i = 0; i < count; i++)
+            Assert.assertTrue(registry.add(new TrustedClient(identifier(i), "secret" + i, i)));
+
+        Assert.assertEquals(count, registry.size());
+        Assert.assertEquals(count, registry.values().size());
+
+        Assert.assertFalse("Duplicate identifier added", registry.add(new TrustedClient(identifier(7), "other", 0)));
+
+        for (int i = 0; i < count; i++) {
+            TrustedClient client = registry.get(TrustedClientRegistry.pack(identifier(i)));
+
+            Assert.assertNotNull("Missing client " + identifier(i), client);
+            Assert.assertEquals(identifier(i), client.getIdentifier());
+            Assert.assertSame(client, registry.get(identifier(i)));
+        }
+
+        Assert.assertNull(registry.get("none"));
+        Assert.assertNull(registry.get("too long"));
+        Assert.assertNull(registry.get(0));
+
+    }
+
+    private static String identifier(int i) {
+        return String.format("%04x", i);
+    }
+
+}
@@ -0,0 +1,90 @@
+import cnt4004.protocol.TrustedClient;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class TrustedClientTest {
+
+    @Test
+    public void testMatchesSystemMac() throws Exception {
+
+        // Keys shorter than, equal to, and longer than a SHA-256 block
+        for (int keyLength : new int[]{1, 11, 64, 65, 200}) {
+
+            char[] secret = new char[keyLength];
+            Arrays.fill(secret, 'k');
+
+            TrustedClient client = new TrustedClient("com1", new String(secret), 0);
+
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(new String(secret).getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+
+            // Messages that need one, two, and three blocks once padded
+            for (int length = 0; length < 200; length++) {
+
+                byte[] payload = new byte[length];
+                for (int i = 0; i < length; i++)
+                    payload[i] = (byte) (i * 7 + keyLength);
+
+                Assert.assertArrayEquals("MAC mismatch for key length " + keyLength + " and payload length " + length,
+                        mac.doFinal(payload), client.createMAC(payload));
+
+            }
+
+        }
+
+    }
+
+    @Test
+    public void testConcurrentVerification() throws Exception {
+
+        TrustedClient client = new TrustedClient("com1", "testKey", 0);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Boolean>> results = new ArrayList<>();
+
+        for (int thread = 0; thread < 4; thread++) {
+
+            int seed = thread;
+
+            results.add(executor.submit(() -> {
+                ByteBuffer buffer = ByteBuffer.allocate(16 + 32);
+
+                for (int i = 0; i < 10000; i++) {
+                    buffer.clear();
+                    buffer.putInt(seed).putInt(i).putLong(i * 31L);
+                    client.writeMAC(buffer, 0, 16);
+
+                    if (!client.verifyMAC(buffer, 0, 16))
+                        return false;
+
+                    // Flip a bit in the MAC
+                    buffer.put(16 + i % 32, (byte) (buffer.get(16 + i % 32) ^ 1));
+
+                    if (client.verifyMAC(buffer, 0, 16))
+                        return false;
+                }
+
+                return true;
+            }));
+
+        }
+
+        for (Future<Boolean> result : results)
+            Assert.assertTrue("MAC verification failed under concurrency", result.get());
+
+        executor.shutdown();
+
+    }
+
+}
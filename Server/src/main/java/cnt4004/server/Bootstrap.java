@@ -1,20 +1,36 @@
 package cnt4004.server;
 
+import cnt4004.protocol.Clock;
+import cnt4004.protocol.CoarseClock;
+import cnt4004.protocol.ProtocolMap;
 import cnt4004.protocol.TrustedClient;
+import cnt4004.protocol.TrustedClientRegistry;
+import cnt4004.server.network.ConsumerShard;
+import cnt4004.server.network.ListenerEngine;
+import cnt4004.server.network.ListenerSettings;
+import cnt4004.server.network.UdpDropStatistics;
+import cnt4004.server.network.VerificationWorker;
+import cnt4004.server.network.WaitStrategy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
 import java.util.Scanner;
-import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Entry point
@@ -42,12 +58,8 @@ public class Bootstrap {
             config.load(in);
         }
 
-        InetAddress bindAddress = InetAddress.getByName(config.getProperty("bind-address"));
-
         // Read a set of trusted clients
 
-        Set<TrustedClient> trustedClients = new HashSet<>();
-
         Path trustedClientsFile = Paths.get(config.getProperty("trusted-clients-path", "trusted_clients.txt"));
 
         if (Files.notExists(trustedClientsFile)) {
@@ -60,55 +72,72 @@ public class Bootstrap {
         // Flat file for trusted clients, used for updating the nonce in the file
         TrustedClient.setFlatFile(trustedClientsFile);
 
-        try (BufferedReader br = Files.newBufferedReader(trustedClientsFile)) {
-
-            String line;
-
-            while ((line = br.readLine()) != null) {
-
-                // Remove extra whitespace
-                line = line.trim();
-
-                // Skip empty lines
-                if (line.isEmpty())
-                    continue;
-
-                int delimiterIndex = line.indexOf(' ');
-                int keyDelimiterIndex = line.lastIndexOf(' ');
+        TrustedClientRegistry trustedClients = loadTrustedClients(trustedClientsFile, true);
+        ListenerSettings listenerSettings = loadListenerSettings(config);
 
-                String identifier = line.substring(0, delimiterIndex);
-                String sharedSecret = line.substring(delimiterIndex + 1, keyDelimiterIndex);
-                long nonce = Long.parseLong(line.substring(keyDelimiterIndex + 1));
+        ExecutionMode executionMode = ExecutionMode.fromName(config.getProperty("execution-mode", "platform"));
 
-                LOGGER.info("Load trusted client profile for " + identifier + ", max nonce = " + nonce);
+        if (!executionMode.isSupported()) {
+            LOGGER.warn("Execution mode " + executionMode + " is not supported by this JVM, using " + ExecutionMode.PLATFORM);
+            executionMode = ExecutionMode.PLATFORM;
+        }
 
-                if (!trustedClients.add(new TrustedClient(identifier, sharedSecret, nonce)))
-                    LOGGER.warn("Not adding duplicate trusted client: " + identifier);
+        long clockTick = Long.parseLong(config.getProperty("clock-tick", "1"));
 
-            }
+        if (clockTick < 0)
+            throw new IllegalArgumentException("Clock tick cannot be negative");
 
-        }
+        // Reading a cached time on every packet is cheaper than reading the system clock
+        Clock clock = clockTick > 0 ? new CoarseClock(clockTick) : Clock.system();
 
         // Create a new Knock server instance
         KnockServer knockServer = new KnockServer(
-                bindAddress,
                 trustedClients,
                 config.getProperty("port-secret"),
                 Integer.parseInt(config.getProperty("ports", "3")),
-                Integer.parseInt(config.getProperty("open-timeout", "10"))
+                Integer.parseInt(config.getProperty("open-timeout", "10")),
+                Long.parseLong(config.getProperty("timestamp-skew", String.valueOf(ProtocolMap.DEFAULT_TIMESTAMP_SKEW))),
+                listenerSettings,
+                executionMode,
+                clock
         );
 
+        knockServer.start();
+
         Scanner scanner = new Scanner(System.in);
 
         boolean readingConsole = true;
 
-        // Basic commands (only to cleanly stop)
+        // Basic commands (to cleanly stop and to print statistics)
         while (readingConsole && scanner.hasNextLine()) {
 
             String command = scanner.nextLine().toLowerCase();
 
             switch (command) {
 
+                case "stats":
+                    LOGGER.info("Filter rejects: " + ProtocolMap.getPipeline());
+                    if (knockServer.getPacketConsumer().getCapture() != null)
+                        LOGGER.info("Captured datagrams: " + knockServer.getPacketConsumer().getCapture().getCaptured());
+                    if (knockServer.getPacketConsumer().getPrioritySources() != null)
+                        LOGGER.info("Priority: " + knockServer.getPacketConsumer().getPrioritySources());
+                    if (knockServer.getPacketConsumer().getBlocklist() != null)
+                        LOGGER.info("Blocklist: " + knockServer.getPacketConsumer().getBlocklist());
+                    if (knockServer.getPacketConsumer().getRateLimiter() != null)
+                        LOGGER.info("Rate limit: " + knockServer.getPacketConsumer().getRateLimiter());
+                    LOGGER.info("Queue drops: " + knockServer.getPacketConsumer().getDrops());
+                    for (VerificationWorker worker : knockServer.getPacketConsumer().getVerificationWorkers())
+                        LOGGER.info(worker.toString());
+                    for (ConsumerShard shard : knockServer.getPacketConsumer().getShards())
+                        LOGGER.info(shard.toString());
+                    if (UdpDropStatistics.isAvailable()) {
+                        try {
+                            LOGGER.info("Kernel drops: " + UdpDropStatistics.read(knockServer.getBoundPorts()));
+                        } catch (IOException e) {
+                            LOGGER.warn("Failed to read kernel drop statistics", e);
+                        }
+                    }
+                    break;
                 case "end":
                 case "stop":
                 case "quit":
@@ -126,9 +155,107 @@ public class Bootstrap {
 
         knockServer.shutdown();
 
+        if (clock instanceof CoarseClock)
+            ((CoarseClock) clock).close();
+
         LOGGER.info("Goodbye");
         System.exit(0);
 
     }
 
+    /**
+     * Reads the trusted clients from a flat file, with one client per line:
+     * the identifier, the shared secret and the largest nonce received, separated by spaces
+     *
+     * @param trustedClientsFile The flat file
+     * @param keepNonces         True to start each client at its largest nonce received, false to start at 0
+     * @return The trusted clients
+     * @throws IOException If the file could not be read
+     * @throws GeneralSecurityException If the MAC algorithm is not available
+     */
+    public static TrustedClientRegistry loadTrustedClients(Path trustedClientsFile, boolean keepNonces)
+            throws IOException, GeneralSecurityException {
+
+        TrustedClientRegistry trustedClients = new TrustedClientRegistry();
+
+        try (BufferedReader br = Files.newBufferedReader(trustedClientsFile)) {
+
+            String line;
+
+            while ((line = br.readLine()) != null) {
+
+                // Remove extra whitespace
+                line = line.trim();
+
+                // Skip empty lines
+                if (line.isEmpty())
+                    continue;
+
+                int delimiterIndex = line.indexOf(' ');
+                int keyDelimiterIndex = line.lastIndexOf(' ');
+
+                String identifier = line.substring(0, delimiterIndex);
+                String sharedSecret = line.substring(delimiterIndex + 1, keyDelimiterIndex);
+                long nonce = keepNonces ? Long.parseLong(line.substring(keyDelimiterIndex + 1)) : 0;
+
+                LOGGER.info("Load trusted client profile for " + identifier + ", max nonce = " + nonce);
+
+                if (!trustedClients.add(new TrustedClient(identifier, sharedSecret, nonce)))
+                    LOGGER.warn("Not adding duplicate trusted client: " + identifier);
+
+            }
+
+        }
+
+        return trustedClients;
+
+    }
+
+    /**
+     * Reads the listener settings from the server configuration
+     *
+     * @param config The server configuration
+     * @return The listener settings
+     * @throws UnknownHostException If a bind address could not be resolved
+     */
+    public static ListenerSettings loadListenerSettings(Properties config) throws UnknownHostException {
+
+        // Every knock port is bound on each of the addresses
+        List<InetAddress> bindAddresses = new ArrayList<>();
+
+        for (String bindAddress : config.getProperty("bind-address").trim().split("\\s*,\\s*"))
+            bindAddresses.add(InetAddress.getByName(bindAddress));
+
+        ListenerSettings listenerSettings = new ListenerSettings(bindAddresses);
+        listenerSettings.setEngine(ListenerEngine.fromName(config.getProperty("listener-engine", "threads")));
+        listenerSettings.setGracePeriod(TimeUnit.SECONDS.toMillis(Integer.parseInt(config.getProperty("grace-period", "5"))));
+        listenerSettings.setPreBind(TimeUnit.SECONDS.toMillis(Integer.parseInt(config.getProperty("pre-bind", "3"))));
+        listenerSettings.setReceiveShards(Integer.parseInt(config.getProperty("receive-shards", "1")));
+        listenerSettings.setSocketReceiveBuffer(Integer.parseInt(config.getProperty("socket-receive-buffer", "262144")));
+        listenerSettings.setDatagramSize(Integer.parseInt(config.getProperty("datagram-size", String.valueOf(ProtocolMap.MAX_BUFFER))));
+        listenerSettings.setQueueCapacity(Integer.parseInt(config.getProperty("queue-capacity", "1024")));
+        listenerSettings.setPriorityQueueCapacity(Integer.parseInt(config.getProperty("queue-priority-capacity", "256")));
+        listenerSettings.setPriorityDuration(TimeUnit.SECONDS.toMillis(Long.parseLong(config.getProperty("priority-duration", "60"))));
+        listenerSettings.setPrioritySources(Integer.parseInt(config.getProperty("priority-sources", "4096")));
+        listenerSettings.setWaitStrategy(WaitStrategy.fromName(config.getProperty("queue-wait-strategy", "block")));
+        listenerSettings.setConsumerShards(Integer.parseInt(config.getProperty("consumer-shards", "1")));
+        listenerSettings.setVerifyWorkers(Integer.parseInt(config.getProperty("verify-workers", "0")));
+        listenerSettings.setRateLimit(Double.parseDouble(config.getProperty("rate-limit", "100")));
+        listenerSettings.setRateLimitBurst(Integer.parseInt(config.getProperty("rate-limit-burst", "256")));
+        listenerSettings.setRateLimitSources(Integer.parseInt(config.getProperty("rate-limit-sources", "65536")));
+        listenerSettings.setBlocklistThreshold(Integer.parseInt(config.getProperty("blocklist-threshold", "0")));
+        listenerSettings.setBlocklistDuration(TimeUnit.SECONDS.toMillis(Long.parseLong(config.getProperty("blocklist-duration", "60"))));
+        listenerSettings.setBlocklistSize(Integer.parseInt(config.getProperty("blocklist-size", "4096")));
+        listenerSettings.setBlocklistIpv4Prefix(Integer.parseInt(config.getProperty("blocklist-ipv4-prefix", "32")));
+        listenerSettings.setBlocklistIpv6Prefix(Integer.parseInt(config.getProperty("blocklist-ipv6-prefix", "64")));
+        listenerSettings.setBlocklistStages(new HashSet<>(Arrays.asList(
+                config.getProperty("blocklist-stages", "client,mac").trim().split("\\s*,\\s*"))));
+
+        String capturePath = config.getProperty("capture-path", "").trim();
+        listenerSettings.setCapturePath(capturePath.isEmpty() ? null : Paths.get(capturePath));
+
+        return listenerSettings;
+
+    }
+
 }
@@ -0,0 +1,124 @@
+package cnt4004.server;
+
+import java.lang.reflect.Method;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The kind of threads the server runs its tasks on, selected with the {@code execution-mode} setting.
+ * <p>
+ * Every long-running task of the server (port listeners, the packet consumer, the service timer, and the
+ * connections of the embedded web server) is started through the executors created by the execution mode.
+ */
+public enum ExecutionMode {
+
+    /**
+     * Platform (operating system) threads
+     */
+    PLATFORM {
+        @Override
+        public ThreadFactory newThreadFactory(String name) {
+            AtomicInteger counter = new AtomicInteger();
+
+            return task -> {
+                Thread thread = new Thread(task, name + "-" + counter.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+
+        @Override
+        public ExecutorService newExecutor(String name) {
+            return Executors.newCachedThreadPool(newThreadFactory(name));
+        }
+    },
+
+    /**
+     * Virtual threads, which are cheap to block and use a small heap-allocated stack.
+     * Requires Java 21 or newer, see {@link ExecutionMode#isSupported()}.
+     */
+    VIRTUAL {
+        @Override
+        public ThreadFactory newThreadFactory(String name) {
+            try {
+                // Thread.ofVirtual().name(name + "-", 0).factory(), through reflection because the server targets Java 9
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+                return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            } catch (ReflectiveOperationException e) {
+                throw new UnsupportedOperationException("Virtual threads require Java 21 or newer", e);
+            }
+        }
+
+        @Override
+        public ExecutorService newExecutor(String name) {
+            try {
+                // A new virtual thread for every task, virtual threads are not pooled
+                Method factory = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+                return (ExecutorService) factory.invoke(null, newThreadFactory(name));
+            } catch (ReflectiveOperationException e) {
+                throw new UnsupportedOperationException("Virtual threads require Java 21 or newer", e);
+            }
+        }
+    };
+
+    /**
+     * Creates a thread factory
+     *
+     * @param name The prefix of the thread names
+     * @return The thread factory
+     * @throws UnsupportedOperationException If the mode is not supported by the running JVM
+     */
+    public abstract ThreadFactory newThreadFactory(String name);
+
+    /**
+     * Creates an unbounded executor, which runs every task as soon as it is submitted
+     *
+     * @param name The prefix of the thread names
+     * @return The executor
+     * @throws UnsupportedOperationException If the mode is not supported by the running JVM
+     */
+    public abstract ExecutorService newExecutor(String name);
+
+    /**
+     * Creates a single-threaded scheduler for timers
+     *
+     * @param name The prefix of the thread names
+     * @return The scheduler
+     * @throws UnsupportedOperationException If the mode is not supported by the running JVM
+     */
+    public ScheduledExecutorService newScheduler(String name) {
+        return Executors.newSingleThreadScheduledExecutor(newThreadFactory(name));
+    }
+
+    /**
+     * Determines if the running JVM supports this mode
+     *
+     * @return True if supported, false otherwise
+     */
+    public boolean isSupported() {
+        try {
+            newThreadFactory("probe");
+            return true;
+        } catch (UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Parses the name of a mode, ignoring case
+     *
+     * @param name The name, such as "platform" or "virtual"
+     * @return The mode
+     * @throws IllegalArgumentException If there is no mode with the name
+     */
+    public static ExecutionMode fromName(String name) {
+        return valueOf(name.trim().toUpperCase(Locale.ROOT));
+    }
+
+}
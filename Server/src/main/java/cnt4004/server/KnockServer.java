@@ -1,15 +1,17 @@
 package cnt4004.server;
 
+import cnt4004.protocol.Clock;
+import cnt4004.protocol.FilterPipeline;
+import cnt4004.protocol.PortSchedule;
+import cnt4004.protocol.PortSequence;
 import cnt4004.protocol.ProtocolMap;
-import cnt4004.protocol.TrustedClient;
-import cnt4004.protocol.Utils;
-import cnt4004.server.network.KnockPortListener;
+import cnt4004.protocol.TrustedClientRegistry;
+import cnt4004.server.network.ListenerSettings;
 import cnt4004.server.network.PacketConsumer;
 import cnt4004.service.ServiceManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.net.InetAddress;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -18,47 +20,73 @@ public class KnockServer {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(KnockServer.class);
 
-    private final InetAddress bindAddress;
-    private final ConcurrentMap<String, KnockSession> sessions = new ConcurrentHashMap<>();
-    private final Set<TrustedClient> trustedClients;
+    private final TrustedClientRegistry trustedClients;
+    private final Clock clock;
     private final PacketConsumer packetConsumer;
     private final int serviceTimeout;
-    private final String portSecret;
-    private final int portCount;
+    private final PortSchedule portSchedule;
 
-    private Timer serviceTimer;
-    private int serviceCounter;
+    private ScheduledFuture<?> serviceTimer;
+    private long serviceDeadline;
+
+    private final ListenerSettings listenerSettings;
+    private final ExecutionMode executionMode;
+    private final ScheduledExecutorService serviceScheduler;
+    private final ExecutorService serviceExecutor;
 
     private ExecutorService networkExecutorService = null;
-    private final List<KnockPortListener> portListeners = new ArrayList<>();
+    private Runnable portListener = null;
     private final AtomicBoolean serviceOpen = new AtomicBoolean(false);
 
     /**
      * Creates a new KnockServer instance
      *
-     * @param bindAddress    The address to bind on
-     * @param trustedClients The clients the server will trust
-     * @param portSecret     The port secret
-     * @param portCount      The amount of ports to use
-     * @param openTimeout    The value to increase the timer with for every successful knock session
+     * @param trustedClients   The clients the server will trust
+     * @param portSecret       The port secret
+     * @param portCount        The amount of ports to use
+     * @param openTimeout      The value to increase the timer with for every successful knock session
+     * @param timestampSkew    The maximum amount of seconds a knock packet timestamp may differ from the server time
+     * @param listenerSettings The settings of the port listeners
+     * @param executionMode    The kind of threads to run the listeners, consumer, timers and service on
+     * @param clock            The clock that decides the port schedule, the timestamps, the service timer,
+     *                         and the rate limits
      */
-    public KnockServer(InetAddress bindAddress,
-                       Set<TrustedClient> trustedClients, String portSecret, int portCount,
-                       int openTimeout) {
+    public KnockServer(TrustedClientRegistry trustedClients, String portSecret, int portCount,
+                       int openTimeout, long timestampSkew, ListenerSettings listenerSettings,
+                       ExecutionMode executionMode, Clock clock) {
 
-        this.bindAddress = bindAddress;
         this.trustedClients = trustedClients;
-        this.packetConsumer = new PacketConsumer(this);
+        this.clock = clock; // Used by the packet consumer
+        this.packetConsumer = new PacketConsumer(this, listenerSettings);
         this.serviceTimeout = openTimeout;
-        this.portSecret = portSecret;
-        this.portCount = portCount;
-        bindPorts();
+        this.portSchedule = new PortSchedule(portSecret, portCount, clock);
+        this.listenerSettings = listenerSettings;
+        this.executionMode = executionMode;
+        this.serviceScheduler = executionMode.newScheduler("knock-timer");
+        this.serviceExecutor = executionMode.newExecutor("knock-service");
 
-        LOGGER.debug("Initializing the service");
-        ServiceManager.getInstance().initializeService();
+        LOGGER.debug("Execution mode: " + executionMode + ", clock: " + clock);
 
+        // The protocol module must be ready before any packet can be received
         LOGGER.debug("Initializing the protocol module");
         ProtocolMap.setTrustedClients(trustedClients);
+        FilterPipeline pipeline = FilterPipeline.standard(timestampSkew, clock);
+        pipeline.setRejectListener(packetConsumer.getBlocklist());
+        ProtocolMap.setPipeline(pipeline);
+
+    }
+
+    /**
+     * Binds the ports and initializes the service. Until then, packets can only be fed to the
+     * {@link KnockServer#getPacketConsumer() packet consumer} directly, as the replay benchmark does.
+     */
+    public void start() {
+
+        bindPorts();
+
+        LOGGER.debug("Initializing the service");
+        ServiceManager.getInstance().setExecutor(serviceExecutor);
+        ServiceManager.getInstance().initializeService();
 
     }
 
@@ -68,7 +96,7 @@ public class KnockServer {
      * @return If the ports are bound
      */
     private boolean isBound() {
-        return networkExecutorService != null && !portListeners.isEmpty();
+        return networkExecutorService != null && portListener != null;
     }
 
     /**
@@ -81,66 +109,67 @@ public class KnockServer {
             LOGGER.debug("Clearing existing port bindings, shutting down network executor service");
 
             networkExecutorService.shutdownNow();
-            portListeners.clear();
+            portListener = null;
 
         }
 
-        // One thread for each port and one thread for the packet consumer
-        int threadCount = portCount + 1;
-
-        LOGGER.debug("Network thread count: " + threadCount);
-
-        // Create a new thread pool and spawn the threads
-        networkExecutorService = Executors.newFixedThreadPool(threadCount);
-        networkExecutorService.submit(packetConsumer);
+        listenerSettings.validate();
 
-        for (int offset = 0; offset < portCount; offset++) {
+        LOGGER.debug("Listener engine: " + listenerSettings.getEngine());
 
-            KnockPortListener portListener = new KnockPortListener(packetConsumer, bindAddress, portSecret, portCount, offset);
+        // One thread for every packet consumer shard, and one or more threads for the listener engine.
+        // The amount of listener threads depends on the engine, the receive shards, and the grace period,
+        // so the pool is unbounded.
+        networkExecutorService = executionMode.newExecutor("knock-network");
+        packetConsumer.start(networkExecutorService);
 
-            portListeners.add(portListener);
-            networkExecutorService.execute(portListener);
-
-        }
+        portListener = listenerSettings.getEngine().create(networkExecutorService, packetConsumer, portSchedule, listenerSettings);
+        networkExecutorService.execute(portListener);
 
     }
 
     /**
-     * Shuts down the Knock server. A knock server shutdown clears all sessions,
-     * terminates all threads, shuts down the service, and unbinds the ports.
+     * Shuts down the Knock server. A knock server shutdown terminates all threads,
+     * shuts down the service, and unbinds the ports.
      */
     void shutdown() {
-        sessions.clear();
-        networkExecutorService.shutdownNow();
-        portListeners.clear();
+        if (networkExecutorService != null)
+            networkExecutorService.shutdownNow();
+        portListener = null;
+        packetConsumer.close();
         closeService();
+        serviceScheduler.shutdownNow();
         ServiceManager.getInstance().shutdownService();
+        serviceExecutor.shutdownNow();
     }
 
     /**
-     * Returns the KnockSession associated with an identifier
-     *
-     * @param identifier The identifier
-     * @return The KnockSession associated with {@code identifier}
+     * Returns the correct ports, in the right order, for the knock sequence
+     * @return Ordered ports of the correct sequence
      */
-    public KnockSession getSession(String identifier) {
-        return sessions.computeIfAbsent(identifier, k -> new KnockSession());
+    public List<Integer> getPorts() {
+        return portSchedule.getPorts();
     }
 
     /**
-     * Removes a KnockSession associated with an identifier from memory
-     * @param identifier The identifier
+     * Returns the correct ports, in the right order, for the knock sequence of a minute
+     * @param minute The unix time in minutes
+     * @return Ordered ports of the correct sequence
      */
-    public void removeSession(String identifier) {
-        sessions.remove(identifier);
+    public PortSequence getPortSequence(long minute) {
+        return portSchedule.getSequence(minute);
     }
 
     /**
-     * Returns the correct ports, in the right order, for the knock sequence
-     * @return Ordered ports of the correct sequence
+     * Returns the ports that are bound: the ports of the current minute, and those of the previous minute
+     * that may still be in their grace period
+     * @return The bound ports
      */
-    public List<Integer> getPorts() {
-        return Utils.getPorts(portSecret, portCount);
+    public Set<Integer> getBoundPorts() {
+        long minute = clock.currentMinute();
+        Set<Integer> ports = new HashSet<>(portSchedule.getPorts(minute - 1));
+        ports.addAll(portSchedule.getPorts(minute));
+        return ports;
     }
 
     /**
@@ -148,55 +177,74 @@ public class KnockServer {
      * @return The number of ports the server uses
      */
     public int getPortCount() {
-        return portCount;
+        return portSchedule.getPortCount();
     }
 
     /**
      * Opens the timed service. If the service is already open,
-     * then the counter increases by {@link KnockServer#serviceTimeout}
+     * then its deadline is extended by {@link KnockServer#serviceTimeout} seconds
      */
-    public void openTimedService() {
+    public synchronized void openTimedService() {
 
-        serviceCounter += serviceTimeout;
-        LOGGER.debug("Opening timed service! (Counter = " + serviceCounter + ")");
+        long now = clock.millis();
+        serviceDeadline = Math.max(serviceDeadline, now) + TimeUnit.SECONDS.toMillis(serviceTimeout);
+        LOGGER.debug("Opening timed service! (Closes in " + (serviceDeadline - now) + " ms)");
 
         // If the service is not open, start the timer and open the service
         if (serviceOpen.compareAndSet(false, true)) {
 
             ServiceManager.getInstance().openService();
 
-            serviceTimer = new Timer();
-            serviceTimer.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    if (serviceCounter-- <= 0) {
-                        serviceTimer.cancel();
-                        closeService();
-                    }
-                }
-            }, 0, TimeUnit.SECONDS.toMillis(1)); // Every second
+            serviceTimer = serviceScheduler.scheduleAtFixedRate(this::tickService, 0, 1, TimeUnit.SECONDS); // Every second
 
         }
 
     }
 
     /**
-     * Closes the service and resets {@link KnockServer#serviceCounter} to 0
+     * Closes the timed service once its deadline has passed
+     */
+    private synchronized void tickService() {
+        if (clock.millis() >= serviceDeadline)
+            closeService();
+    }
+
+    /**
+     * Closes the service and resets {@link KnockServer#serviceDeadline}
      */
-    private void closeService() {
+    private synchronized void closeService() {
         if (serviceOpen.compareAndSet(true, false)) {
             LOGGER.debug("Closing timed service!");
+            serviceTimer.cancel(false);
             ServiceManager.getInstance().closeService();
-            serviceCounter = 0;
+            serviceDeadline = 0;
         }
     }
 
     /**
-     * Set of trusted clients
+     * The clock of the server
+     *
+     * @return The clock
+     */
+    public Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * The consumer that processes the packets received by the listeners
+     *
+     * @return The packet consumer
+     */
+    public PacketConsumer getPacketConsumer() {
+        return packetConsumer;
+    }
+
+    /**
+     * Registry of trusted clients, shared with the protocol module
      *
      * @return Trusted clients
      */
-    public Set<TrustedClient> getTrustedClients() {
+    public TrustedClientRegistry getTrustedClients() {
         return trustedClients;
     }
 }
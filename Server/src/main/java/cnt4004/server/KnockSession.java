@@ -1,25 +1,75 @@
 package cnt4004.server;
 
 import cnt4004.protocol.KnockPacket;
+import cnt4004.protocol.PortSequence;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.Arrays;
 
 /**
  * This class represents a KnockSession object.
  * A knock session contains the current sequence of Knock packets received by a client.
+ * <p>
+ * The knocked ports and nonces are stored in arrays indexed by the sequence ID of each packet,
+ * so adding a packet and checking the sequence does not allocate.
  */
 public class KnockSession {
 
     /**
-     * Sorted Map of Knock packets. The map is sorted based on the sequence IDs in the Knock packets.
+     * The unix time in minutes of the schedule the session was started on
      */
-    private final SortedMap<KnockPacket, Integer> knockSequence;
+    private final long minute;
 
-    KnockSession() {
-        this.knockSequence = new TreeMap<>();
+    /**
+     * The port each sequence ID was received on
+     */
+    private final int[] knockedPorts;
+
+    /**
+     * The nonce of the packet received for each sequence ID
+     */
+    private final long[] nonces;
+
+    /**
+     * Which sequence IDs have been received
+     */
+    private final boolean[] received;
+
+    /**
+     * The amount of distinct sequence IDs received
+     */
+    private int receivedCount;
+
+    /**
+     * The highest sequence ID received, or -1
+     */
+    private int highestSequence = -1;
+
+    /**
+     * The maximum sequence ID of the packet with the highest sequence ID
+     */
+    private int maxSequence = -1;
+
+    /**
+     * Creates a new session
+     *
+     * @param capacity The maximum amount of packets in a knock sequence
+     * @param minute   The unix time in minutes of the schedule the first knock was received on
+     */
+    public KnockSession(int capacity, long minute) {
+        this.minute = minute;
+        this.knockedPorts = new int[capacity];
+        this.nonces = new long[capacity];
+        this.received = new boolean[capacity];
+    }
+
+    /**
+     * The unix time in minutes of the schedule the session was started on.
+     * The received sequence is validated against the ports of this minute.
+     *
+     * @return The minutes since the unix epoch
+     */
+    public long getMinute() {
+        return minute;
     }
 
     /**
@@ -28,9 +78,35 @@ public class KnockSession {
      *
      * @param packet      The KnockPacket received
      * @param knockedPort The port the packet was received on
+     * @throws ArrayIndexOutOfBoundsException If the sequence ID of the packet exceeds the capacity of the session
      */
     public void addKnockPacket(KnockPacket packet, int knockedPort) {
-        knockSequence.put(packet, knockedPort);
+        addKnock(packet.getSequence(), packet.getMaxSequence(), packet.getNonce(), knockedPort);
+    }
+
+    /**
+     * Adds the fields of a Knock packet, along with the port it has been received on, to the array.
+     * This method replaces old entries automatically.
+     *
+     * @param sequence    The sequence ID of the packet
+     * @param maxSequence The maximum sequence ID of the packet
+     * @param nonce       The nonce of the packet
+     * @param knockedPort The port the packet was received on
+     * @throws ArrayIndexOutOfBoundsException If the sequence ID of the packet exceeds the capacity of the session
+     */
+    public void addKnock(int sequence, int maxSequence, long nonce, int knockedPort) {
+        knockedPorts[sequence] = knockedPort;
+        nonces[sequence] = nonce;
+
+        if (!received[sequence]) {
+            received[sequence] = true;
+            receivedCount++;
+        }
+
+        if (sequence >= highestSequence) {
+            highestSequence = sequence;
+            this.maxSequence = maxSequence;
+        }
     }
 
     /**
@@ -41,37 +117,42 @@ public class KnockSession {
      * @return True if the knock sequence is complete, false otherwise
      */
     public boolean sequenceComplete() {
-        if (knockSequence.isEmpty())
-            return false;
-
-        short prevSequence = 0;
-        boolean reachedMax = false;
-        for (KnockPacket packet : knockSequence.keySet()) {
-            if (packet.getSequence() != prevSequence++) {
-                return false;
-            }
-            if (packet.getSequence() == packet.getMaxSequence()) {
-                reachedMax = true;
-            }
-        }
-        return reachedMax;
+        // Sequence IDs are distinct, so receiving highestSequence + 1 of them means none are missing
+        return highestSequence >= 0 && highestSequence == maxSequence && receivedCount == highestSequence + 1;
     }
 
     /**
-     * Returns an ordered list (based on sequence IDs) of the current received knock sequence
+     * Determines if the received knock sequence is exactly the expected sequence
+     *
+     * @param expected The expected ports, in order
+     * @return True if the received ports match, false otherwise
+     */
+    public boolean matches(PortSequence expected) {
+        return sequenceComplete() && expected.matches(knockedPorts, receivedCount);
+    }
+
+    /**
+     * Returns an ordered array (based on sequence IDs) of the current received knock sequence
      * @return The current knock sequence
      */
-    public List<Integer> getCurrentKnockSequence() {
-        return new ArrayList<>(knockSequence.values());
+    public int[] getCurrentKnockSequence() {
+        return Arrays.copyOf(knockedPorts, highestSequence + 1);
     }
 
     /**
-     * Gets the current knock sequence map
+     * The largest nonce received in this session
      *
-     * @return The map
+     * @return The largest nonce, or 0 if no packet with a non-negative nonce was received
      */
-    public SortedMap<KnockPacket, Integer> getKnockSequence() {
-        return knockSequence;
+    public long getLargestNonce() {
+        long largest = 0;
+
+        for (int i = 0; i <= highestSequence; i++) {
+            if (received[i] && nonces[i] > largest)
+                largest = nonces[i];
+        }
+
+        return largest;
     }
 
 }
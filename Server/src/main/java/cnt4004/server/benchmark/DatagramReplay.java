@@ -0,0 +1,220 @@
+package cnt4004.server.benchmark;
+
+import cnt4004.protocol.ManualClock;
+import cnt4004.protocol.ProtocolMap;
+import cnt4004.protocol.TrustedClient;
+import cnt4004.protocol.TrustedClientRegistry;
+import cnt4004.server.Bootstrap;
+import cnt4004.server.ExecutionMode;
+import cnt4004.server.KnockServer;
+import cnt4004.server.network.ConsumerShard;
+import cnt4004.server.network.DatagramCapture;
+import cnt4004.server.network.KnockDatagramHandler;
+import cnt4004.server.network.ListenerSettings;
+import cnt4004.server.network.PacketConsumer;
+import cnt4004.server.network.VerificationWorker;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a {@link DatagramCapture capture} of received datagrams straight into the receive path of a server,
+ * without any sockets, and reports the throughput and the time spent handing each datagram to the
+ * {@link PacketConsumer}. With the default {@code verify-workers=0}, that time includes the decoding and
+ * verification by {@link ProtocolMap}.
+ * <p>
+ * The server is configured from a {@code server.properties} file and its trusted clients file, like a live server,
+ * except that every client starts at nonce 0 and the nonces are not saved, so the captured nonces are accepted
+ * again. The server runs on a {@link ManualClock} that is moved to the receive time of each datagram before it is
+ * replayed, so the timestamps, the rate limits and the blocklist see the same times as the live server did,
+ * in either mode. Opening the service is only counted.
+ * <pre>
+ * java -cp Server.jar cnt4004.server.benchmark.DatagramReplay capture.bin fast server.properties
+ * java -cp Server.jar cnt4004.server.benchmark.DatagramReplay capture.bin paced
+ * </pre>
+ * In {@code fast} mode the datagrams are replayed back to back. In {@code paced} mode each datagram is replayed
+ * at the offset it was received at, relative to the start of the capture.
+ */
+public class DatagramReplay {
+
+    public static void main(String[] args) throws Exception {
+
+        if (args.length < 1) {
+            System.out.println("Usage: DatagramReplay <capture> [fast|paced] [server.properties]");
+            return;
+        }
+
+        Path capturePath = Paths.get(args[0]);
+        boolean paced = args.length > 1 && args[1].equalsIgnoreCase("paced");
+        Path configFile = Paths.get(args.length > 2 ? args[2] : "server.properties");
+
+        Properties config = new Properties();
+
+        try (InputStream in = Files.newInputStream(configFile)) {
+            config.load(in);
+        }
+
+        TrustedClientRegistry trustedClients = Bootstrap.loadTrustedClients(
+                Paths.get(config.getProperty("trusted-clients-path", "trusted_clients.txt")), false);
+
+        // Completed sequences save the nonces, which must not overwrite the real file
+        Path scratch = Files.createTempFile("replay-trusted-clients", ".txt");
+        scratch.toFile().deleteOnExit();
+        TrustedClient.setFlatFile(scratch);
+
+        ListenerSettings settings = Bootstrap.loadListenerSettings(config);
+        settings.setCapturePath(null);
+
+        long startMillis;
+
+        try (DatagramCapture.Reader reader = new DatagramCapture.Reader(capturePath)) {
+            startMillis = reader.getStartMillis();
+        }
+
+        ManualClock clock = new ManualClock(startMillis);
+        LongAdder opened = new LongAdder();
+
+        KnockServer knockServer = new KnockServer(
+                trustedClients,
+                config.getProperty("port-secret"),
+                Integer.parseInt(config.getProperty("ports", "3")),
+                Integer.parseInt(config.getProperty("open-timeout", "10")),
+                Long.parseLong(config.getProperty("timestamp-skew", String.valueOf(ProtocolMap.DEFAULT_TIMESTAMP_SKEW))),
+                settings,
+                ExecutionMode.PLATFORM,
+                clock
+        ) {
+            @Override
+            public void openTimedService() {
+                opened.increment();
+            }
+        };
+
+        PacketConsumer packetConsumer = knockServer.getPacketConsumer();
+        ExecutorService executor = ExecutionMode.PLATFORM.newExecutor("replay");
+        packetConsumer.start(executor);
+
+        KnockDatagramHandler handler = new KnockDatagramHandler(packetConsumer);
+
+        long[] latencies = new long[1 << 16];
+        int count = 0;
+        long start;
+        long handled;
+        long replayedNanos = 0;
+
+        try (DatagramCapture.Reader reader = new DatagramCapture.Reader(capturePath)) {
+
+            start = System.nanoTime();
+
+            while (reader.next()) {
+
+                if (paced)
+                    waitUntil(start + reader.getOffsetNanos());
+
+                if (reader.getOffsetNanos() > replayedNanos) {
+                    clock.advance(reader.getOffsetNanos() - replayedNanos, TimeUnit.NANOSECONDS);
+                    replayedNanos = reader.getOffsetNanos();
+                }
+
+                long before = System.nanoTime();
+                handler.handle(reader.getPayload(), reader.getClientAddress(), reader.getLocalAddress(), reader.getMinute());
+                long after = System.nanoTime();
+
+                if (count == latencies.length)
+                    latencies = Arrays.copyOf(latencies, count * 2);
+
+                latencies[count++] = after - before;
+
+            }
+
+            handled = System.nanoTime() - start;
+
+        }
+
+        awaitDrained(packetConsumer);
+        long drained = System.nanoTime() - start;
+
+        executor.shutdownNow();
+
+        Arrays.sort(latencies, 0, count);
+
+        System.out.println("Replayed " + count + " datagrams from " + capturePath + (paced ? " at the recorded pace" : " back to back"));
+        System.out.println("Handed off in " + TimeUnit.NANOSECONDS.toMillis(handled) + " ms ("
+                + rate(count, handled) + " datagrams/s), processed in " + TimeUnit.NANOSECONDS.toMillis(drained)
+                + " ms (" + rate(count, drained) + " datagrams/s)");
+
+        if (count > 0) {
+            System.out.println("Hand-off latency: p50 = " + latencies[count / 2]
+                    + " ns, p99 = " + latencies[(int) (count * 0.99)]
+                    + " ns, p99.9 = " + latencies[(int) (count * 0.999)]
+                    + " ns, max = " + latencies[count - 1] + " ns");
+        }
+
+        System.out.println("Filter rejects: " + ProtocolMap.getPipeline());
+
+        if (packetConsumer.getBlocklist() != null)
+            System.out.println("Blocklist: " + packetConsumer.getBlocklist());
+        if (packetConsumer.getRateLimiter() != null)
+            System.out.println("Rate limit: " + packetConsumer.getRateLimiter());
+
+        for (VerificationWorker worker : packetConsumer.getVerificationWorkers())
+            System.out.println(worker);
+        for (ConsumerShard shard : packetConsumer.getShards())
+            System.out.println(shard);
+
+        System.out.println("Service opened " + opened.sum() + " times");
+
+    }
+
+    /**
+     * Waits until a point in time, parking while it is far away and spinning once it is close
+     *
+     * @param deadline The System.nanoTime to wait for
+     */
+    private static void waitUntil(long deadline) {
+        long remaining;
+
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            if (remaining > TimeUnit.MICROSECONDS.toNanos(100))
+                LockSupport.parkNanos(remaining - TimeUnit.MICROSECONDS.toNanos(50));
+            else
+                Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Waits until the workers and shards have processed every queued packet
+     *
+     * @param packetConsumer The packet consumer
+     * @throws InterruptedException If the thread is interrupted
+     */
+    private static void awaitDrained(PacketConsumer packetConsumer) throws InterruptedException {
+        while (true) {
+            int queued = 0;
+
+            for (VerificationWorker worker : packetConsumer.getVerificationWorkers())
+                queued += worker.getQueued();
+
+            for (ConsumerShard shard : packetConsumer.getShards())
+                queued += shard.getQueued();
+
+            if (queued == 0)
+                return;
+
+            Thread.sleep(1);
+        }
+    }
+
+    private static long rate(long count, long nanos) {
+        return nanos > 0 ? (long) (count / (nanos / 1e9)) : 0;
+    }
+
+}
@@ -0,0 +1,238 @@
+package cnt4004.server.benchmark;
+
+import cnt4004.protocol.KnockPacket;
+import cnt4004.protocol.KnockPacketView;
+import cnt4004.protocol.ProtocolMap;
+import cnt4004.protocol.TrustedClient;
+import cnt4004.server.ExecutionMode;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compares the memory footprint and throughput of the {@link ExecutionMode execution modes}.
+ * <p>
+ * Every mode runs one blocking receiver thread per loopback socket, similar to the threads of the
+ * {@code threads} listener engine, and a sender spreads authentic Knock packets over the sockets. The receivers
+ * only verify the packets; the listener engine, rotation and packet consumer of the server are not run.
+ * The resident set size is per process, so run each mode in its own JVM to compare memory:
+ * <pre>
+ * java -cp Server.jar cnt4004.server.benchmark.ExecutionModeBenchmark platform 2000 200000
+ * java -cp Server.jar cnt4004.server.benchmark.ExecutionModeBenchmark virtual 2000 200000
+ * </pre>
+ */
+public class ExecutionModeBenchmark {
+
+    private static final int MAX_LISTENERS = 10000;
+
+    private static long nonce = 0;
+
+    public static void main(String[] args) throws Exception {
+
+        List<ExecutionMode> modes = new ArrayList<>();
+
+        if (args.length > 0 && !args[0].equalsIgnoreCase("all")) {
+            modes.add(ExecutionMode.fromName(args[0]));
+        } else {
+            Collections.addAll(modes, ExecutionMode.values());
+        }
+
+        int listeners = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int packets = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+
+        // Every receiver needs a client identifier of its own, and there are only 10000 of them
+        if (listeners > MAX_LISTENERS)
+            throw new IllegalArgumentException("At most " + MAX_LISTENERS + " listeners are supported");
+
+        // One client per port, so that every receiver sees the nonces of its client in order
+        Set<TrustedClient> clients = new HashSet<>();
+        for (int i = 0; i < listeners; i++)
+            clients.add(new TrustedClient(clientIdentifier(i), "benchmark-secret", 0));
+
+        ProtocolMap.setTrustedClients(clients);
+
+        System.out.println("Listeners: " + listeners + ", packets: " + packets);
+        System.out.println("Baseline: " + sampleMemory());
+
+        for (ExecutionMode mode : modes) {
+
+            if (!mode.isSupported()) {
+                System.out.println(mode + ": not supported by this JVM");
+                continue;
+            }
+
+            run(mode, listeners, packets);
+
+        }
+
+    }
+
+    private static void run(ExecutionMode mode, int listeners, int packets) throws Exception {
+
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        ExecutorService executor = mode.newExecutor("benchmark-" + mode.name().toLowerCase());
+
+        List<DatagramChannel> channels = new ArrayList<>(listeners);
+        List<SocketAddress> addresses = new ArrayList<>(listeners);
+        CountDownLatch started = new CountDownLatch(listeners);
+        LongAdder received = new LongAdder();
+        LongAdder accepted = new LongAdder();
+
+        for (int i = 0; i < listeners; i++) {
+
+            DatagramChannel channel = DatagramChannel.open();
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, 256 * 1024);
+            channel.bind(new InetSocketAddress(loopback, 0));
+
+            channels.add(channel);
+            addresses.add(channel.getLocalAddress());
+
+            executor.execute(() -> receive(channel, started, received, accepted));
+
+        }
+
+        started.await();
+        Thread.sleep(500); // Let every receiver block in receive()
+
+        String memory = sampleMemory();
+
+        // Encode every packet up front with a new nonce, so the receivers verify each one in full
+        ByteBuffer[] payloads = new ByteBuffer[packets];
+        nonce++;
+
+        for (int i = 0; i < packets; i++) {
+
+            if (i > 0 && i % listeners == 0)
+                nonce++;
+
+            KnockPacket knockPacket = new KnockPacket(clientIdentifier(i % listeners), nonce, (byte) 0, (byte) 0);
+            knockPacket.setTimestamp(Instant.now());
+            payloads[i] = ByteBuffer.wrap(ProtocolMap.encodePacket(knockPacket));
+
+        }
+
+        long start = System.nanoTime();
+
+        // Spread the packets over every port, as many clients knocking at once would
+        try (DatagramChannel sender = DatagramChannel.open()) {
+            for (int i = 0; i < packets; i++)
+                sender.send(payloads[i], addresses.get(i % listeners));
+        }
+
+        // Wait until the receivers have drained their sockets
+        long last = -1;
+        while (received.sum() < packets && received.sum() != last) {
+            last = received.sum();
+            Thread.sleep(200);
+        }
+
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println(mode + ": " + memory);
+        System.out.println(mode + ": received " + received.sum() + "/" + packets
+                + " (" + accepted.sum() + " authentic) in " + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms, "
+                + (long) (received.sum() / (elapsed / 1e9)) + " packets/s");
+
+        for (DatagramChannel channel : channels)
+            channel.close();
+
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+
+    }
+
+    private static String clientIdentifier(int index) {
+        return String.format("%04d", index);
+    }
+
+    private static void receive(DatagramChannel channel, CountDownLatch started, LongAdder received, LongAdder accepted) {
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(ProtocolMap.MAX_BUFFER);
+        KnockPacketView view = new KnockPacketView();
+
+        started.countDown();
+
+        try {
+
+            //noinspection InfiniteLoopStatement
+            while (true) {
+
+                buffer.clear();
+                channel.receive(buffer);
+                buffer.flip();
+
+                received.increment();
+
+                if (ProtocolMap.decode(buffer, view))
+                    accepted.increment();
+
+            }
+
+        } catch (IOException e) {
+            // Closed at the end of the run
+            if (channel.isOpen())
+                e.printStackTrace();
+        }
+
+    }
+
+    /**
+     * Samples the memory use of the process
+     *
+     * @return The platform thread count, used heap and resident set size
+     */
+    private static String sampleMemory() {
+
+        System.gc();
+
+        Runtime runtime = Runtime.getRuntime();
+        long heapUsed = runtime.totalMemory() - runtime.freeMemory();
+
+        return "platform threads = " + ManagementFactory.getThreadMXBean().getThreadCount()
+                + ", heap used = " + (heapUsed >> 20) + " MiB"
+                + ", resident = " + readResidentSize();
+
+    }
+
+    /**
+     * Reads the resident set size of the process, which includes the native stacks of platform threads
+     *
+     * @return The resident set size, or "unknown" if it is not available
+     */
+    private static String readResidentSize() {
+
+        Path status = Paths.get("/proc/self/status");
+
+        try {
+            for (String line : Files.readAllLines(status)) {
+                if (line.startsWith("VmRSS:"))
+                    return line.substring("VmRSS:".length()).trim();
+            }
+        } catch (IOException e) {
+            /* Not Linux */
+        }
+
+        return "unknown";
+
+    }
+
+}
@@ -0,0 +1,144 @@
+package cnt4004.server.network;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, open-addressed table of source address prefixes, each with the time it expires at.
+ * <p>
+ * Lookups do not lock. Insertions are serialized, and when the probe sequence of a key is full, the entry that
+ * expires first is replaced, so the memory used stays the same no matter how many sources there are.
+ */
+final class AddressTable {
+
+    private static final int MAX_PROBES = 8;
+
+    /* The keys, and when each entry expires (Clock#nanos()). A key of 0 is an empty slot. */
+    private final AtomicLongArray keys;
+    private final AtomicLongArray expiries;
+    private final int mask;
+
+    /**
+     * Creates a new table
+     *
+     * @param size The maximum amount of entries, rounded up to a power of two
+     * @throws IllegalArgumentException If the size is not between 1 and 2^26
+     */
+    AddressTable(int size) {
+        if (size < 1 || size > 1 << 26)
+            throw new IllegalArgumentException("Size must be between 1 and 2^26");
+
+        int tableSize = Integer.highestOneBit(size);
+        if (tableSize < size)
+            tableSize <<= 1;
+
+        // The table is never more than half full, so probe sequences stay short
+        tableSize = Math.max(MAX_PROBES, tableSize << 1);
+
+        this.keys = new AtomicLongArray(tableSize);
+        this.expiries = new AtomicLongArray(tableSize);
+        this.mask = tableSize - 1;
+    }
+
+    /**
+     * The key of the prefix of a source address. IPv4 keys have bit 32 set, which no IPv6 key in use has,
+     * since the addresses starting with 0000:0001 are reserved. 0 is never a key.
+     *
+     * @param source   The source address
+     * @param ipv4Mask The netmask of IPv4 addresses
+     * @param ipv6Mask The netmask of the high 64 bits of IPv6 addresses
+     * @return The key
+     */
+    static long key(SocketAddress source, int ipv4Mask, long ipv6Mask) {
+        byte[] address = ((InetSocketAddress) source).getAddress().getAddress();
+
+        if (address.length == 4) {
+            int ip = (address[0] & 0xFF) << 24 | (address[1] & 0xFF) << 16 | (address[2] & 0xFF) << 8 | (address[3] & 0xFF);
+            return 1L << 32 | (ip & ipv4Mask) & 0xFFFFFFFFL;
+        }
+
+        long high = 0;
+        for (int i = 0; i < 8; i++)
+            high = high << 8 | (address[i] & 0xFF);
+
+        long key = high & ipv6Mask;
+        return key == 0 ? 1 : key;
+    }
+
+    /**
+     * The time left until the entry of a key expires
+     *
+     * @param key The key
+     * @param now The current Clock#nanos()
+     * @return The nanoseconds left, or 0 if there is no entry or it has expired
+     */
+    long remaining(long key, long now) {
+        int start = slot(key);
+
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            int index = (start + probe) & mask;
+            long current = keys.get(index);
+
+            if (current == key)
+                return Math.max(0, expiries.get(index) - now);
+
+            if (current == 0)
+                return 0;
+        }
+
+        return 0;
+    }
+
+    /**
+     * Adds or replaces the entry of a key
+     *
+     * @param key    The key
+     * @param expiry The Clock#nanos() the entry expires at
+     */
+    synchronized void put(long key, long expiry) {
+        int start = slot(key);
+        int victim = start;
+
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            int index = (start + probe) & mask;
+            long current = keys.get(index);
+
+            if (current == key || current == 0) {
+                victim = index;
+                break;
+            }
+
+            // Otherwise replace the entry that expires first, which is usually one that has already expired
+            if (expiries.get(index) - expiries.get(victim) < 0)
+                victim = index;
+        }
+
+        // The expiry is set before the key, so a lookup never sees the new key with the expiry of the old one
+        expiries.set(victim, expiry);
+        keys.set(victim, key);
+    }
+
+    /**
+     * The amount of entries that have not expired
+     *
+     * @param now The current Clock#nanos()
+     * @return The amount of live entries
+     */
+    int count(long now) {
+        int count = 0;
+
+        for (int i = 0; i < keys.length(); i++) {
+            if (keys.get(i) != 0 && expiries.get(i) - now > 0)
+                count++;
+        }
+
+        return count;
+    }
+
+    private int slot(long key) {
+        long z = key * 0x9E3779B97F4A7C15L;
+        return (int) (z ^ (z >>> 32)) & mask;
+    }
+
+}
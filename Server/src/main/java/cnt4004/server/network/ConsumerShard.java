@@ -0,0 +1,351 @@
+package cnt4004.server.network;
+
+import cnt4004.protocol.KnockPacketView;
+import cnt4004.protocol.PortSequence;
+import cnt4004.protocol.TrustedClient;
+import cnt4004.protocol.TrustedClientRegistry;
+import cnt4004.server.KnockServer;
+import cnt4004.server.KnockSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * A shard of the {@link PacketConsumer}. Each shard processes the packets of a partition of the clients,
+ * on its own thread, with its own queue and its own sessions. Every packet of a client is processed by
+ * the same shard, so the packets of a client are processed in order, while the packets of clients in
+ * different shards are processed in parallel.
+ * <p>
+ * The queue of a shard has a {@link PriorityRing priority lane} for the packets of clients that have an open session
+ * or recently opened the service, so they are not shed while the best-effort lane is flooded.
+ */
+public final class ConsumerShard implements Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConsumerShard.class);
+
+    /**
+     * The maximum amount of packets processed before the drained slots are handed back to the listeners
+     */
+    private static final int BATCH_SIZE = 64;
+
+    private final int index;
+
+    /**
+     * KnockServer instance
+     */
+    private final KnockServer knockServer;
+
+    /**
+     * Ring of pending packets to be processed. The slots are allocated once, up front.
+     */
+    private final PriorityRing<KnockEvent> ring;
+
+    /**
+     * The sources marked by every verified knock, or null if there is no priority lane
+     */
+    private final PrioritySources prioritySources;
+
+    /**
+     * The sessions of the clients of this shard. Only accessed by the shard's thread.
+     */
+    private final Map<String, KnockSession> sessions = new HashMap<>();
+
+    private final Consumer<KnockEvent> eventHandler = event -> {
+        try {
+            receivedKnockPacket(event);
+        } catch (RuntimeException e) {
+            // A packet that cannot be processed must not stop the shard, and every client of it
+            LOGGER.error("Failed to process a knock packet from " + event.clientAddress, e);
+        } finally {
+            event.clear();
+        }
+    };
+
+    /* Statistics, only written by the shard's thread */
+    private volatile long processed;
+    private volatile long completed;
+    private volatile int sessionCount;
+
+    /**
+     * Creates a new consumer shard
+     *
+     * @param index           The index of the shard
+     * @param knockServer     The server to report knocks to
+     * @param settings        The listener settings, which configure the queue between the listeners and the shard
+     * @param prioritySources The sources to mark with every processed knock, or null if there is no priority lane
+     */
+    ConsumerShard(int index, KnockServer knockServer, ListenerSettings settings, PrioritySources prioritySources) {
+        this.index = index;
+        this.knockServer = knockServer;
+        this.prioritySources = prioritySources;
+        this.ring = new PriorityRing<>(settings.getQueueCapacity(),
+                prioritySources != null ? settings.getPriorityQueueCapacity() : 0, settings.getWaitStrategy(), KnockEvent::new);
+    }
+
+    /**
+     * Publishes a verified Knock packet to the queue of this shard. This method drops the packet if the queue is full.
+     *
+     * @param view          The view of the verified packet
+     * @param clientAddress The source address of the remote host (source fields in datagram)
+     * @param localAddress  The local address the packet was received on
+     * @param minute        The unix time in minutes of the schedule the local port belongs to
+     * @param prioritized   True to queue the packet in the priority lane
+     */
+    void queuePacket(KnockPacketView view, SocketAddress clientAddress, SocketAddress localAddress, long minute,
+                     boolean prioritized) {
+        PacketRing<KnockEvent> lane = ring.lane(prioritized);
+        long sequence = lane.claim();
+
+        if (sequence >= 0) {
+            lane.slot(sequence).set(view, clientAddress, localAddress, minute);
+            lane.publish(sequence);
+        }
+    }
+
+    @Override
+    public void run() {
+
+        LOGGER.info("Packet consumer shard {} started", index);
+
+        try {
+
+            //noinspection InfiniteLoopStatement
+            while (true) {
+
+                // Blocks (or spins, or parks) until a packet is in the queue, then processes a batch
+                ring.await();
+                int count = ring.drain(eventHandler, BATCH_SIZE);
+
+                // Statistics are published once per batch
+                processed += count;
+                sessionCount = sessions.size();
+
+            }
+
+        } catch (InterruptedException e) {
+            LOGGER.info("Packet consumer shard {} interrupted", index);
+        }
+
+    }
+
+    /**
+     * Returns the session of a client. If the existing session was started
+     * on the schedule of a different minute, it is replaced with a new session.
+     *
+     * @param identifier The client identifier
+     * @param minute     The unix time in minutes of the schedule the knock was received on
+     * @return The session of the client
+     */
+    private KnockSession getSession(String identifier, long minute) {
+        KnockSession session = sessions.get(identifier);
+
+        if (session == null || session.getMinute() != minute) {
+            session = new KnockSession(knockServer.getPortCount(), minute);
+            sessions.put(identifier, session);
+        }
+
+        return session;
+    }
+
+    /**
+     * Resolves the minute a knock belongs to. A port that is in the schedules of consecutive minutes stays bound
+     * from the first of them, and its packets are tagged with that minute, so a knock on it may belong to any of
+     * those minutes. It belongs to the one whose schedule has the port at the sequence ID of the knock, preferring
+     * the minute of the client's session, and otherwise the latest.
+     *
+     * @param identifier The client identifier
+     * @param minute     The unix time in minutes the knock was tagged with by the listener
+     * @param port       The port the knock was received on
+     * @param sequence   The sequence ID of the knock
+     * @return The unix time in minutes of the schedule to validate the knock against
+     */
+    private long resolveMinute(String identifier, long minute, int port, int sequence) {
+        KnockSession session = sessions.get(identifier);
+
+        // The ports of the next minute are bound before it begins
+        long last = knockServer.getClock().currentMinute() + 1;
+        long resolved = minute;
+
+        for (long m = minute; m <= last; m++) {
+            PortSequence ports = knockServer.getPortSequence(m);
+
+            // The listener is only kept while the port stays in the schedule
+            if (m > minute && ports.indexOf(port) < 0)
+                break;
+
+            if (ports.get(sequence) == port) {
+                if (session != null && session.getMinute() == m)
+                    return m;
+
+                resolved = m;
+            }
+        }
+
+        return resolved;
+    }
+
+    /**
+     * The index of this shard
+     *
+     * @return The shard index
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * The amount of packets processed by this shard
+     *
+     * @return The amount of processed packets
+     */
+    public long getProcessed() {
+        return processed;
+    }
+
+    /**
+     * The amount of complete knock sequences processed by this shard, correct or not
+     *
+     * @return The amount of complete sequences
+     */
+    public long getCompleted() {
+        return completed;
+    }
+
+    /**
+     * The amount of incomplete sessions held by this shard
+     *
+     * @return The amount of sessions
+     */
+    public int getSessionCount() {
+        return sessionCount;
+    }
+
+    /**
+     * The amount of packets waiting in both lanes of the queue of this shard
+     *
+     * @return The queue occupancy
+     */
+    public int getQueued() {
+        return ring.size();
+    }
+
+    /**
+     * The capacity of both lanes of the queue of this shard
+     *
+     * @return The queue capacity
+     */
+    public int getQueueCapacity() {
+        return ring.capacity();
+    }
+
+    /**
+     * The amount of packets dropped because a lane of the queue of this shard was full
+     *
+     * @return The amount of drops
+     */
+    public long getDrops() {
+        return ring.getPriorityDrops() + ring.getBestEffortDrops();
+    }
+
+    /**
+     * The amount of packets dropped because the priority lane of the queue of this shard was full
+     *
+     * @return The amount of drops
+     */
+    public long getPriorityDrops() {
+        return ring.getPriorityDrops();
+    }
+
+    @Override
+    public String toString() {
+        return "ConsumerShard{" +
+                "index=" + index +
+                ", processed=" + processed +
+                ", completed=" + completed +
+                ", sessions=" + sessionCount +
+                ", queue={" + ring + "}" +
+                '}';
+    }
+
+    /**
+     * Processes a Knock Packet
+     *
+     * @param event The Knock packet, along with the addresses and minute it was received on
+     */
+    private void receivedKnockPacket(KnockEvent event) {
+
+        // The sequence IDs index the session arrays, and are not validated when the packet is decoded
+        if (event.sequence < 0 || event.sequence > event.maxSequence
+                || event.maxSequence >= knockServer.getPortCount()) {
+            LOGGER.debug("Discarding knock packet with sequence number " + event.sequence
+                    + " and maximum sequence number " + event.maxSequence
+                    + ", for a port count of " + knockServer.getPortCount());
+            return;
+        }
+
+        TrustedClient client = event.client;
+        int knockedPort = ((InetSocketAddress) event.localAddress).getPort();
+        long knockMinute = resolveMinute(client.getIdentifier(), event.minute, knockedPort, event.sequence);
+        KnockSession session = getSession(client.getIdentifier(), knockMinute);
+
+        if (LOGGER.isDebugEnabled())
+            LOGGER.debug("Got a knock from " + event.clientAddress + " on local port " + knockedPort
+                    + " | Sequence: " + event.sequence
+                    + " | Max Sequence: " + event.maxSequence
+                    + " | Minute: " + knockMinute);
+
+        session.addKnock(event.sequence, event.maxSequence, event.nonce, knockedPort);
+
+        // The rest of the sequence, and the client's next sequences for a while, go into the priority lane
+        if (prioritySources != null)
+            prioritySources.mark(event.clientAddress);
+
+        if (session.sequenceComplete()) {
+
+            completed++;
+
+            if (LOGGER.isDebugEnabled())
+                LOGGER.debug("Final received knock sequence: " + Arrays.toString(session.getCurrentKnockSequence()));
+
+            if (session.matches(knockServer.getPortSequence(session.getMinute()))) {
+
+                LOGGER.debug("Correct knock sequence!");
+
+                TrustedClientRegistry registry = knockServer.getTrustedClients();
+
+                long largestNonce = session.getLargestNonce();
+
+                if (client.getLargestNonceReceived() < largestNonce) {
+
+                    LOGGER.debug("Updating nonce for " + client.getIdentifier() + " to " + largestNonce);
+                    client.setLargestNonceReceived(largestNonce);
+                    try {
+                        TrustedClient.saveTrustedClients(registry.values());
+                    } catch (IOException e) {
+                        LOGGER.error("Saving nonce", e);
+                    }
+
+                }
+
+                knockServer.openTimedService();
+
+            } else {
+
+                LOGGER.debug("Incorrect knock sequence");
+
+            }
+
+            sessions.remove(client.getIdentifier());
+
+        }
+
+    }
+}
+
@@ -0,0 +1,111 @@
+package cnt4004.server.network;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A Count-Min sketch of event counts per key, in a fixed amount of memory.
+ * <p>
+ * Each key is counted in one counter of every row, chosen by a different hash per row, and its count is
+ * estimated by the smallest of those counters. Collisions can only make the estimate too high, never too low.
+ * {@link CountMinSketch#decay()} halves every counter, so old events count less over time.
+ * All methods are thread-safe.
+ */
+final class CountMinSketch {
+
+    private static final int DEPTH = 4;
+
+    private final AtomicIntegerArray counters;
+    private final int width;
+    private final int mask;
+
+    /**
+     * Creates a new sketch
+     *
+     * @param width The amount of counters in each row, rounded up to a power of two
+     * @throws IllegalArgumentException If the width is not between 1 and 2^26
+     */
+    CountMinSketch(int width) {
+        if (width < 1 || width > 1 << 26)
+            throw new IllegalArgumentException("Width must be between 1 and 2^26");
+
+        int size = Integer.highestOneBit(width);
+        if (size < width)
+            size <<= 1;
+
+        this.width = size;
+        this.mask = size - 1;
+        this.counters = new AtomicIntegerArray(DEPTH * size);
+    }
+
+    /**
+     * Counts an event for a key
+     *
+     * @param key The key
+     * @return The estimated count of the key, including this event
+     */
+    int add(long key) {
+        int estimate = Integer.MAX_VALUE;
+
+        for (int row = 0; row < DEPTH; row++) {
+            int count = counters.incrementAndGet(index(row, key));
+
+            // Saturate instead of overflowing
+            if (count < 0)
+                counters.set(index(row, key), count = Integer.MAX_VALUE);
+
+            estimate = Math.min(estimate, count);
+        }
+
+        return estimate;
+    }
+
+    /**
+     * Estimates the count of a key
+     *
+     * @param key The key
+     * @return The estimated count
+     */
+    int estimate(long key) {
+        int estimate = Integer.MAX_VALUE;
+
+        for (int row = 0; row < DEPTH; row++)
+            estimate = Math.min(estimate, counters.get(index(row, key)));
+
+        return estimate;
+    }
+
+    /**
+     * Halves every counter. Events counted during the decay may be halved or not.
+     */
+    void decay() {
+        for (int i = 0; i < counters.length(); i++) {
+            int count = counters.get(i);
+
+            if (count != 0)
+                counters.set(i, count >>> 1);
+        }
+    }
+
+    /**
+     * The amount of counters in each row
+     *
+     * @return The width
+     */
+    int width() {
+        return width;
+    }
+
+    private int index(int row, long key) {
+        return row * width + (int) (mix(key + row * 0x9E3779B97F4A7C15L) & mask);
+    }
+
+    /**
+     * The finalizer of SplitMix64, which spreads every bit of the key over the whole result
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+}
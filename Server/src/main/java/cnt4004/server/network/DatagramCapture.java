@@ -0,0 +1,270 @@
+package cnt4004.server.network;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Records the raw datagrams received by the listeners to a compact binary file, so real traffic can be
+ * replayed offline with {@link cnt4004.server.benchmark.DatagramReplay}.
+ * <p>
+ * The file starts with a header: the magic {@code "KCAP"}, a format version (short) and the unix time in
+ * milliseconds the capture was started at (long). Each datagram is then appended, big-endian, as:
+ * <ul>
+ * <li>the nanoseconds since the capture was started (long)</li>
+ * <li>the unix time in minutes of the schedule the local port belongs to (long)</li>
+ * <li>the length of the source IP address, 4 or 16 (byte), and the address itself</li>
+ * <li>the source port and the local port (unsigned shorts)</li>
+ * <li>the length of the payload (unsigned short), and the payload itself</li>
+ * </ul>
+ * Datagrams are captured before they are admitted, so the capture includes those the server drops.
+ * Writes are buffered, and serialized between the listener threads.
+ */
+public final class DatagramCapture implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DatagramCapture.class);
+
+    private static final int MAGIC = 0x4B434150; // "KCAP"
+    private static final short VERSION = 1;
+    private static final int BUFFER_SIZE = 128 * 1024; // Larger than the largest record
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final long startNanos = System.nanoTime();
+
+    private long captured;
+    private boolean failed;
+
+    /**
+     * Creates a capture file, replacing any existing file
+     *
+     * @param path The path of the capture file
+     * @throws IOException If the file could not be created
+     */
+    public DatagramCapture(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+
+        buffer.putInt(MAGIC).putShort(VERSION).putLong(System.currentTimeMillis());
+
+        LOGGER.info("Capturing received datagrams to {}", path);
+    }
+
+    /**
+     * Appends a received datagram to the capture
+     *
+     * @param payload       The datagram payload, from its position to its limit. The position is not changed.
+     * @param clientAddress The source address of the datagram
+     * @param localAddress  The local address the datagram was received on
+     * @param minute        The unix time in minutes of the schedule the local port belongs to
+     */
+    synchronized void append(ByteBuffer payload, SocketAddress clientAddress, SocketAddress localAddress, long minute) {
+        if (failed)
+            return;
+
+        InetSocketAddress source = (InetSocketAddress) clientAddress;
+        byte[] address = source.getAddress().getAddress();
+
+        try {
+
+            if (buffer.remaining() < 8 + 8 + 1 + address.length + 2 + 2 + 2 + payload.remaining())
+                flush();
+
+            buffer.putLong(System.nanoTime() - startNanos)
+                    .putLong(minute)
+                    .put((byte) address.length)
+                    .put(address)
+                    .putShort((short) source.getPort())
+                    .putShort((short) ((InetSocketAddress) localAddress).getPort())
+                    .putShort((short) payload.remaining())
+                    .put(payload.duplicate());
+
+            captured++;
+
+        } catch (IOException e) {
+            // A full disk must not take the listeners down, so the capture stops instead
+            failed = true;
+            LOGGER.error("Failed to write the capture, no more datagrams will be captured", e);
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+
+        buffer.clear();
+    }
+
+    /**
+     * The amount of datagrams captured
+     *
+     * @return The amount of captured datagrams
+     */
+    public synchronized long getCaptured() {
+        return captured;
+    }
+
+    /**
+     * Writes the buffered datagrams and closes the file
+     *
+     * @throws IOException If the file could not be written
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (!failed)
+                flush();
+        } finally {
+            failed = true;
+            channel.close();
+        }
+
+        LOGGER.info("Captured {} datagrams", captured);
+    }
+
+    /**
+     * Reads the datagrams of a capture file, in the order they were received
+     */
+    public static final class Reader implements Closeable {
+
+        private final DataInputStream in;
+        private final long startMillis;
+
+        private final byte[] payload = new byte[0xFFFF];
+        private final ByteBuffer payloadBuffer = ByteBuffer.wrap(payload);
+
+        private long offsetNanos;
+        private long minute;
+        private InetSocketAddress clientAddress;
+        private InetSocketAddress localAddress;
+
+        /**
+         * Opens a capture file
+         *
+         * @param path The path of the capture file
+         * @throws IOException If the file could not be read, or is not a capture
+         */
+        public Reader(Path path) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE));
+
+            try {
+                if (in.readInt() != MAGIC)
+                    throw new IOException(path + " is not a datagram capture");
+
+                short version = in.readShort();
+                if (version != VERSION)
+                    throw new IOException("Unsupported capture version " + version);
+
+                this.startMillis = in.readLong();
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Reads the next datagram. The previous datagram, and its payload, can no longer be used.
+         *
+         * @return True if a datagram was read, false at the end of the capture
+         * @throws IOException If the file could not be read, or ends in the middle of a datagram
+         */
+        public boolean next() throws IOException {
+            try {
+                offsetNanos = in.readLong();
+            } catch (EOFException e) {
+                return false;
+            }
+
+            minute = in.readLong();
+
+            byte[] address = new byte[in.readUnsignedByte()];
+            in.readFully(address);
+
+            clientAddress = new InetSocketAddress(InetAddress.getByAddress(address), in.readUnsignedShort());
+            localAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), in.readUnsignedShort());
+
+            int length = in.readUnsignedShort();
+            in.readFully(payload, 0, length);
+
+            payloadBuffer.clear().limit(length);
+            return true;
+        }
+
+        /**
+         * The unix time in milliseconds the capture was started at
+         *
+         * @return The start time
+         */
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        /**
+         * The nanoseconds between the start of the capture and the receipt of the current datagram
+         *
+         * @return The receive offset
+         */
+        public long getOffsetNanos() {
+            return offsetNanos;
+        }
+
+        /**
+         * The unix time in minutes of the schedule the current datagram was received on
+         *
+         * @return The minute
+         */
+        public long getMinute() {
+            return minute;
+        }
+
+        /**
+         * The source address of the current datagram
+         *
+         * @return The source address
+         */
+        public InetSocketAddress getClientAddress() {
+            return clientAddress;
+        }
+
+        /**
+         * The local port the current datagram was received on, on the loopback address,
+         * since the capture does not record the local address
+         *
+         * @return The local address
+         */
+        public InetSocketAddress getLocalAddress() {
+            return localAddress;
+        }
+
+        /**
+         * The payload of the current datagram, from its position to its limit
+         *
+         * @return The payload, which is reused by the next datagram
+         */
+        public ByteBuffer getPayload() {
+            return payloadBuffer;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+    }
+
+}
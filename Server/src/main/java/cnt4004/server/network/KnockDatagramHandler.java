@@ -0,0 +1,63 @@
+package cnt4004.server.network;
+
+import cnt4004.protocol.KnockPacketView;
+import cnt4004.protocol.ProtocolMap;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Verifies received datagrams and queues the valid Knock packets, or hands the datagrams to the verification
+ * workers if there are any. Shared by every listener engine, and by {@link cnt4004.server.benchmark.DatagramReplay}.
+ * <p>
+ * A handler reuses a single {@link KnockPacketView}, so each listener thread needs its own instance.
+ */
+public final class KnockDatagramHandler {
+
+    private final PacketConsumer packetConsumer;
+    private final DatagramCapture capture;
+    private final KnockPacketView view = new KnockPacketView();
+
+    /**
+     * Creates a new datagram handler
+     *
+     * @param packetConsumer The consumer to submit packets to
+     */
+    public KnockDatagramHandler(PacketConsumer packetConsumer) {
+        this.packetConsumer = packetConsumer;
+        this.capture = packetConsumer.getCapture();
+    }
+
+    /**
+     * Handles a received datagram
+     *
+     * @param payload       The datagram payload, from its position to its limit
+     * @param clientAddress The source address of the datagram
+     * @param localAddress  The local address the datagram was received on
+     * @param minute        The unix time in minutes of the schedule the local port belongs to
+     */
+    public void handle(ByteBuffer payload, SocketAddress clientAddress, SocketAddress localAddress, long minute) {
+
+        if (capture != null)
+            capture.append(payload, clientAddress, localAddress, minute);
+
+        // Blocked sources, and sources over their rate, are dropped before any work is spent on the datagram
+        if (!packetConsumer.admit(clientAddress))
+            return;
+
+        if (packetConsumer.verifiesInline()) {
+
+            // Only verified packets are queued for further processing
+            if (ProtocolMap.decode(payload, clientAddress, view))
+                packetConsumer.queuePacket(view, clientAddress, localAddress, minute);
+
+        } else {
+
+            // A verification worker copies and verifies the datagram, so the listener can go back to receiving
+            packetConsumer.queueDatagram(payload, clientAddress, localAddress, minute);
+
+        }
+
+    }
+
+}
@@ -0,0 +1,50 @@
+package cnt4004.server.network;
+
+import cnt4004.protocol.KnockPacketView;
+import cnt4004.protocol.TrustedClient;
+
+import java.net.SocketAddress;
+
+/**
+ * A reusable slot of the {@link PacketRing}, holding the fields of a verified Knock packet
+ * that the {@link PacketConsumer} needs. The fields are copied out of the receive buffer,
+ * so the listener can reuse its buffer as soon as the event is published.
+ */
+final class KnockEvent {
+
+    TrustedClient client;
+    int sequence;
+    int maxSequence;
+    long nonce;
+    SocketAddress clientAddress;
+    SocketAddress localAddress;
+    long minute;
+
+    /**
+     * Copies a verified Knock packet into this event
+     *
+     * @param view          The view of the verified packet, with its client attached
+     * @param clientAddress The source address of the datagram
+     * @param localAddress  The local address the datagram was received on
+     * @param minute        The unix time in minutes of the schedule the local port belongs to
+     */
+    void set(KnockPacketView view, SocketAddress clientAddress, SocketAddress localAddress, long minute) {
+        this.client = view.getClient();
+        this.sequence = view.getSequence();
+        this.maxSequence = view.getMaxSequence();
+        this.nonce = view.getNonce();
+        this.clientAddress = clientAddress;
+        this.localAddress = localAddress;
+        this.minute = minute;
+    }
+
+    /**
+     * Releases the references held by this event, once it has been processed
+     */
+    void clear() {
+        this.client = null;
+        this.clientAddress = null;
+        this.localAddress = null;
+    }
+
+}
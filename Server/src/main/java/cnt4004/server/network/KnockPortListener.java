@@ -1,123 +1,183 @@
 package cnt4004.server.network;
 
-import cnt4004.protocol.Packet;
-import cnt4004.protocol.ProtocolMap;
-import cnt4004.protocol.Utils;
+import cnt4004.protocol.PortSchedule;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.net.*;
-import java.util.Calendar;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
 import java.util.concurrent.TimeUnit;
-
-import static cnt4004.protocol.ProtocolMap.MAX_BUFFER;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * The port listener thread
+ * The port listener thread. A listener is bound to one port of the schedule of a minute, and receives on a
+ * blocking channel until it is closed by {@link KnockPortRotation}. If the port is also in the schedule of the
+ * following minutes, the rotation keeps the listener for them, and its packets are tagged with its first minute.
+ * If the port cannot be bound, the bind is retried with a short backoff until the listener is closed.
+ * <p>
+ * The listener waits on a {@link ReentrantLock} rather than a monitor, so that a listener running on a
+ * virtual thread does not pin its carrier thread while it waits to retry a bind.
  */
 public class KnockPortListener implements Runnable {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(KnockPortListener.class);
 
-    private final InetAddress bindAddress;
     private final PacketConsumer packetConsumer;
-    private final String portSecret;
-    private final int portCount;
+    private final PortSchedule portSchedule;
+    private final ListenerSettings settings;
+    private final ReceiveBufferPool bufferPool;
+    private final InetAddress bindAddress;
+    private final long minute;
     private final int portGenOffset;
+    private final boolean reusePort;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition closedCondition = lock.newCondition();
+
+    private DatagramChannel channel;
+    private boolean closed;
 
     /**
      * Creates a new instance of a port listener
      *
      * @param packetConsumer The consumer to submit packets to
-     * @param bindAddress    The address to bind on
-     * @param portSecret     The port secret to use for port generation
-     * @param portCount      The amount of ports the server generates
+     * @param portSchedule   The schedule of generated ports
+     * @param settings       The listener settings
+     * @param bufferPool     The pool to take the receive buffer from
+     * @param bindAddress    The address to bind the port on
+     * @param minute         The unix time in minutes of the schedule to listen on
      * @param portGenOffset  An offset this instance uses to determine
      *                       what generated port to use in the list of generated ports
+     * @param reusePort      True if the port is shared with other listeners using {@code SO_REUSEPORT}
      */
-    public KnockPortListener(PacketConsumer packetConsumer, InetAddress bindAddress, String portSecret, int portCount, int portGenOffset) {
-        this.bindAddress = bindAddress;
+    KnockPortListener(PacketConsumer packetConsumer, PortSchedule portSchedule, ListenerSettings settings,
+                      ReceiveBufferPool bufferPool, InetAddress bindAddress, long minute, int portGenOffset,
+                      boolean reusePort) {
         this.packetConsumer = packetConsumer;
-        this.portSecret = portSecret;
-        this.portCount = portCount;
+        this.portSchedule = portSchedule;
+        this.settings = settings;
+        this.bufferPool = bufferPool;
+        this.bindAddress = bindAddress;
+        this.minute = minute;
         this.portGenOffset = portGenOffset;
+        this.reusePort = reusePort;
+    }
+
+    /**
+     * The port this listener binds
+     *
+     * @return The port
+     */
+    int getPort() {
+        return portSchedule.getSequence(minute).get(portGenOffset);
     }
 
     @Override
     public void run() {
 
-        byte[] buffer = new byte[MAX_BUFFER];
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-
-        //noinspection InfiniteLoopStatement
-        while (true) {
+        int port = getPort();
+        ByteBuffer payload = bufferPool.acquire();
+        KnockDatagramHandler handler = new KnockDatagramHandler(packetConsumer);
 
-            try {
+        try {
 
-                DatagramSocket socket = new DatagramSocket(Utils.getPorts(portSecret, portCount).get(portGenOffset), bindAddress);
-                socket.setReceiveBufferSize(MAX_BUFFER);
+            if (!open(new InetSocketAddress(bindAddress, port)))
+                return;
 
-                LOGGER.debug("Listening on " + socket.getLocalSocketAddress());
+            SocketAddress localAddress = channel.getLocalAddress();
 
-                int previousTimeout = -1;
+            LOGGER.debug("Listening on {} for minute {}", localAddress, minute);
 
-                do {
+            //noinspection InfiniteLoopStatement
+            while (true) {
 
-                    try {
+                payload.clear();
+                SocketAddress clientAddress = channel.receive(payload); // Blocking method (until closed)
+                payload.flip();
 
-                        int timeout = calculateTimeout();
+                handler.handle(payload, clientAddress, localAddress, minute);
 
-                        LOGGER.debug("Socket timeout: " + TimeUnit.MILLISECONDS.toSeconds(timeout) + " seconds");
-
-                        previousTimeout = timeout;
-                        socket.setSoTimeout(timeout);
-                        socket.receive(packet); // Blocking method (until timeout)
-
-                        Packet packetWrapper = ProtocolMap.decodePayload(packet.getData());
-
-                        // If a packet has been decoded, queue it for further processing
-                        if (packetWrapper != null) {
+            }
 
-                            packetConsumer.queuePacket(packetWrapper, packet.getSocketAddress(), socket.getLocalSocketAddress());
+        } catch (ClosedChannelException | InterruptedException e) {
+            /* Closed by the rotation, or interrupted */
+        } catch (IOException e) {
+            LOGGER.warn("Listener on " + bindAddress.getHostAddress() + " port " + port + " for minute " + minute + " failed", e);
+        } finally {
+            close();
+            bufferPool.release(payload);
+        }
 
-                        }
+    }
 
-                    } catch (SocketTimeoutException e) {
-                        /* Do nothing */
-                    } catch (IOException e) {
-                        LOGGER.debug("IO Exception", e);
-                    }
+    /**
+     * Opens the channel, unless the listener has already been closed.
+     * A failed bind is retried with an increasing delay until it succeeds or the listener is closed.
+     *
+     * @param address The address to bind on
+     * @return True if the channel was opened, false if the listener is closed
+     * @throws InterruptedException If the thread is interrupted while waiting to retry
+     */
+    private boolean open(InetSocketAddress address) throws InterruptedException {
+        long backoff = ListenerSockets.INITIAL_BIND_BACKOFF;
 
-                } while (calculateTimeout() < previousTimeout);
+        lock.lock();
+        try {
 
-                socket.close();
+            while (!closed) {
 
-            } catch (SocketException e) {
-                LOGGER.warn("Socket exception", e);
                 try {
-                    Thread.sleep(calculateTimeout());
-                } catch (InterruptedException e1) {
-                    /* Sleep in case the port is taken (assumed case) */
+                    channel = ListenerSockets.openChannel(address, reusePort, settings, true);
+                    return true;
+                } catch (IOException e) {
+                    // Usually the port is taken, possibly by the listener of the previous minute during its grace period
+                    if (backoff == ListenerSockets.INITIAL_BIND_BACKOFF)
+                        LOGGER.warn("Failed to bind " + address + " for minute " + minute + ", retrying", e);
+                    else
+                        LOGGER.debug("Failed to bind {} for minute {}, retrying in {} ms", address, minute, backoff);
                 }
+
+                // Woken up early by close()
+                //noinspection ResultOfMethodCallIgnored
+                closedCondition.await(backoff, TimeUnit.MILLISECONDS);
+                backoff = Math.min(backoff * 2, ListenerSockets.MAX_BIND_BACKOFF);
+
             }
 
-        }
+            return false;
 
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
-     * Calculates the amount of milliseconds until the next minute
-     *
-     * @return The number of milliseconds until the next minute
+     * Closes the listener. A blocked receive is woken up and the listener thread exits.
      */
-    private static int calculateTimeout() {
-        // Calculate time until the next minute
-        Calendar c = Calendar.getInstance();
-        c.set(Calendar.MINUTE, c.get(Calendar.MINUTE) + 1);
-        c.set(Calendar.SECOND, 0);
-        c.set(Calendar.MILLISECOND, 0);
-        return (int) (c.getTimeInMillis() - System.currentTimeMillis());
+    void close() {
+        lock.lock();
+        try {
+
+            closed = true;
+            closedCondition.signalAll();
+
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    LOGGER.debug("IO Exception", e);
+                }
+            }
+
+        } finally {
+            lock.unlock();
+        }
     }
 
 }
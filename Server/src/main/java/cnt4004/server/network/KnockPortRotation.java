@@ -0,0 +1,167 @@
+package cnt4004.server.network;
+
+import cnt4004.protocol.Clock;
+import cnt4004.protocol.PortSchedule;
+import cnt4004.protocol.PortSequence;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts the port listeners of every minute, on one bind address.
+ * <p>
+ * The listeners of a minute are started a few seconds before the minute begins (the pre-bind time), and the
+ * listeners of the previous minute stay bound for the grace period after it ends. Every port of the schedule
+ * is therefore bound without a gap across the rollover, and a client that starts its knock sequence just before
+ * the rollover can finish it on the ports it generated.
+ * <p>
+ * A port that is also in the schedule of the previous minute is not bound again: the listeners of the previous
+ * minute are kept for it, since a second socket would either fail to bind or, with {@code SO_REUSEPORT}, split the
+ * datagrams of the port between the two minutes. {@link ConsumerShard} resolves which minute a knock on such a port
+ * belongs to.
+ * <p>
+ * With more than one receive shard, every port is bound once per shard using {@code SO_REUSEPORT}.
+ * All shards of a minute are started together, and the kernel distributes the datagrams of a port between them.
+ * <p>
+ * The listeners block on their channels without a timeout. At the end of the grace period, the rotation closes
+ * the previous minute's channels, which wakes up and ends their listeners.
+ */
+public class KnockPortRotation implements Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(KnockPortRotation.class);
+
+    private final Executor executor;
+    private final PacketConsumer packetConsumer;
+    private final PortSchedule portSchedule;
+    private final ListenerSettings settings;
+    private final InetAddress bindAddress;
+
+    /**
+     * Creates a new port rotation
+     *
+     * @param executor       The executor to run the port listeners on. It must be able to run the listeners
+     *                       of two minutes at the same time.
+     * @param packetConsumer The consumer to submit packets to
+     * @param portSchedule   The schedule of generated ports
+     * @param settings       The listener settings
+     * @param bindAddress    The address to bind the ports on, one of {@link ListenerSettings#getBindAddresses()}
+     */
+    public KnockPortRotation(Executor executor, PacketConsumer packetConsumer, PortSchedule portSchedule,
+                             ListenerSettings settings, InetAddress bindAddress) {
+        this.executor = executor;
+        this.packetConsumer = packetConsumer;
+        this.portSchedule = portSchedule;
+        this.settings = settings;
+        this.bindAddress = bindAddress;
+    }
+
+    @Override
+    public void run() {
+
+        int shards = ListenerSockets.getReceiveShards(settings);
+        boolean reusePort = shards > 1;
+        int listenerCount = portSchedule.getPortCount() * shards;
+
+        // The listeners of two minutes are running during the grace period
+        ReceiveBufferPool bufferPool = new ReceiveBufferPool(settings.getDatagramSize(), listenerCount * 2);
+
+        LOGGER.debug("Port rotation started on {} (pre-bind: {} ms, grace period: {} ms, receive shards: {})",
+                bindAddress.getHostAddress(), settings.getPreBind(), settings.getGracePeriod(), shards);
+
+        List<KnockPortListener> previous = new ArrayList<>();
+        List<KnockPortListener> current = new ArrayList<>();
+        Clock clock = portSchedule.getClock();
+
+        try {
+
+            long minute = clock.currentMinute();
+
+            //noinspection InfiniteLoopStatement
+            while (true) {
+
+                LOGGER.debug("Binding the ports of minute {} on {}: {}", minute, bindAddress.getHostAddress(),
+                        portSchedule.getSequence(minute));
+
+                previous = current;
+                current = new ArrayList<>(listenerCount);
+                PortSequence ports = portSchedule.getSequence(minute);
+
+                for (int offset = 0; offset < portSchedule.getPortCount(); offset++) {
+
+                    if (keep(previous, current, ports.get(offset))) {
+                        LOGGER.debug("Port {} of minute {} on {} is still bound from the previous minute",
+                                ports.get(offset), minute, bindAddress.getHostAddress());
+                        continue;
+                    }
+
+                    for (int shard = 0; shard < shards; shard++) {
+                        KnockPortListener listener = new KnockPortListener(packetConsumer, portSchedule, settings,
+                                bufferPool, bindAddress, minute, offset, reusePort);
+
+                        current.add(listener);
+                        executor.execute(listener);
+                    }
+                }
+
+                // Close the previous minute's listeners once the grace period ends
+                clock.sleepUntil(TimeUnit.MINUTES.toMillis(minute) + settings.getGracePeriod());
+                close(previous);
+
+                // Wait until it is time to bind the next minute. Skip minutes that have already passed,
+                // in case the thread was suspended or the clock was changed.
+                minute = Math.max(minute + 1, clock.currentMinute());
+                clock.sleepUntil(TimeUnit.MINUTES.toMillis(minute) - settings.getPreBind());
+
+            }
+
+        } catch (InterruptedException e) {
+            LOGGER.info("Port rotation thread of {} interrupted", bindAddress.getHostAddress());
+        } finally {
+            close(previous);
+            close(current);
+        }
+
+    }
+
+    /**
+     * Moves the listeners of a port from the previous minute to the current minute, so they are not closed
+     *
+     * @param previous The listeners of the previous minute
+     * @param current  The listeners of the current minute
+     * @param port     The port
+     * @return True if the port was bound in the previous minute
+     */
+    private static boolean keep(List<KnockPortListener> previous, List<KnockPortListener> current, int port) {
+        boolean kept = false;
+        Iterator<KnockPortListener> iterator = previous.iterator();
+
+        while (iterator.hasNext()) {
+            KnockPortListener listener = iterator.next();
+
+            if (listener.getPort() == port) {
+                iterator.remove();
+                current.add(listener);
+                kept = true;
+            }
+        }
+
+        return kept;
+    }
+
+    /**
+     * Closes port listeners
+     *
+     * @param listeners The listeners to close
+     */
+    private static void close(List<KnockPortListener> listeners) {
+        for (KnockPortListener listener : listeners)
+            listener.close();
+    }
+
+}
@@ -0,0 +1,95 @@
+package cnt4004.server.network;
+
+import cnt4004.protocol.PortSchedule;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+
+/**
+ * The ways the server can receive Knock packets, selected with the {@code listener-engine} setting
+ */
+public enum ListenerEngine {
+
+    /**
+     * One blocking thread per bound port, and one {@link KnockPortRotation} per bind address
+     */
+    THREADS {
+        @Override
+        public Runnable create(Executor executor, PacketConsumer packetConsumer, PortSchedule portSchedule,
+                               ListenerSettings settings) {
+            return () -> {
+                List<Runnable> rotations = new ArrayList<>();
+
+                for (InetAddress bindAddress : settings.getBindAddresses())
+                    rotations.add(new KnockPortRotation(executor, packetConsumer, portSchedule, settings, bindAddress));
+
+                runAll(executor, rotations);
+            };
+        }
+    },
+
+    /**
+     * A single thread multiplexing every bound port, or one thread per receive shard, for each bind address,
+     * see {@link SelectorKnockListener}
+     */
+    SELECTOR {
+        @Override
+        public Runnable create(Executor executor, PacketConsumer packetConsumer, PortSchedule portSchedule,
+                               ListenerSettings settings) {
+            return () -> {
+                int shards = ListenerSockets.getReceiveShards(settings);
+                List<InetAddress> bindAddresses = settings.getBindAddresses();
+                ReceiveBufferPool bufferPool = new ReceiveBufferPool(settings.getDatagramSize(), shards * bindAddresses.size());
+                List<Runnable> listeners = new ArrayList<>();
+
+                for (InetAddress bindAddress : bindAddresses) {
+                    for (int shard = 0; shard < shards; shard++)
+                        listeners.add(new SelectorKnockListener(packetConsumer, portSchedule, settings, bufferPool,
+                                bindAddress, shards > 1));
+                }
+
+                runAll(executor, listeners);
+            };
+        }
+    };
+
+    /**
+     * Runs tasks on an executor, except for the last one, which runs on the current thread
+     *
+     * @param executor The executor
+     * @param tasks    The tasks, at least one
+     */
+    private static void runAll(Executor executor, List<Runnable> tasks) {
+        for (int i = 0; i < tasks.size() - 1; i++)
+            executor.execute(tasks.get(i));
+
+        tasks.get(tasks.size() - 1).run();
+    }
+
+    /**
+     * Creates the task that binds the knock ports and receives packets on them
+     *
+     * @param executor       The executor the task runs on, which it may use for additional tasks
+     * @param packetConsumer The consumer to submit packets to
+     * @param portSchedule   The schedule of generated ports
+     * @param settings       The listener settings
+     * @return The listener task
+     */
+    public abstract Runnable create(Executor executor, PacketConsumer packetConsumer, PortSchedule portSchedule,
+                                    ListenerSettings settings);
+
+    /**
+     * Parses the name of an engine, ignoring case
+     *
+     * @param name The name, such as "threads" or "selector"
+     * @return The engine
+     * @throws IllegalArgumentException If there is no engine with the name
+     */
+    public static ListenerEngine fromName(String name) {
+        return valueOf(name.trim().toUpperCase(Locale.ROOT));
+    }
+
+}
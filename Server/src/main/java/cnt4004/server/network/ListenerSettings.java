@@ -0,0 +1,636 @@
+package cnt4004.server.network;
+
+import cnt4004.protocol.FilterPipeline;
+import cnt4004.protocol.KnockPacketView;
+import cnt4004.protocol.PacketFilter;
+import cnt4004.protocol.ProtocolMap;
+
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Settings of the knock port listeners, and of the queue between the listeners and the packet consumer
+ */
+public class ListenerSettings {
+
+    private final List<InetAddress> bindAddresses;
+    private ListenerEngine engine = ListenerEngine.THREADS;
+    private long gracePeriod = TimeUnit.SECONDS.toMillis(5);
+    private long preBind = TimeUnit.SECONDS.toMillis(3);
+    private int receiveShards = 1;
+    private int socketReceiveBuffer = 256 * 1024;
+    private int datagramSize = ProtocolMap.MAX_BUFFER;
+    private int queueCapacity = 1024;
+    private int priorityQueueCapacity = 256;
+    private long priorityDuration = TimeUnit.MINUTES.toMillis(1);
+    private int prioritySources = 4096;
+    private WaitStrategy waitStrategy = WaitStrategy.BLOCK;
+    private int consumerShards = 1;
+    private int verifyWorkers = 0;
+    private double rateLimit = 100;
+    private int rateLimitBurst = 256;
+    private int rateLimitSources = 65536;
+    private int blocklistThreshold = 0;
+    private long blocklistDuration = TimeUnit.MINUTES.toMillis(1);
+    private int blocklistSize = 4096;
+    private int blocklistIpv4Prefix = 32;
+    private int blocklistIpv6Prefix = 64;
+    private Path capturePath;
+    private Set<String> blocklistStages = new HashSet<>(Arrays.asList("client", "mac"));
+
+    /**
+     * Creates new listener settings with default values
+     *
+     * @param bindAddress The address to bind on
+     */
+    public ListenerSettings(InetAddress bindAddress) {
+        this(Collections.singletonList(bindAddress));
+    }
+
+    /**
+     * Creates new listener settings with default values. Every knock port is bound on each of the addresses,
+     * and the packets received on all of them share the same sessions, so a knock sequence may span addresses.
+     *
+     * @param bindAddresses The addresses to bind on, which may be of both IPv4 and IPv6
+     * @throws IllegalArgumentException If there are no addresses, an address is listed twice,
+     *                                  or a wildcard address is listed with other addresses
+     */
+    public ListenerSettings(List<InetAddress> bindAddresses) {
+        if (bindAddresses.isEmpty())
+            throw new IllegalArgumentException("At least one bind address is required");
+
+        if (new HashSet<>(bindAddresses).size() != bindAddresses.size())
+            throw new IllegalArgumentException("Duplicate bind address in " + bindAddresses);
+
+        // A wildcard address already binds every interface (on dual-stack hosts, :: binds IPv4 too),
+        // so binding a specific address on the same port would fail
+        if (bindAddresses.size() > 1) {
+            for (InetAddress address : bindAddresses) {
+                if (address.isAnyLocalAddress())
+                    throw new IllegalArgumentException("The wildcard address " + address.getHostAddress()
+                            + " cannot be combined with other bind addresses");
+            }
+        }
+
+        this.bindAddresses = Collections.unmodifiableList(new ArrayList<>(bindAddresses));
+    }
+
+    /**
+     * The addresses to bind on. Each address gets its own set of listeners.
+     *
+     * @return An unmodifiable list of bind addresses
+     */
+    public List<InetAddress> getBindAddresses() {
+        return bindAddresses;
+    }
+
+    /**
+     * The engine used for receiving Knock packets
+     *
+     * @return The listener engine
+     */
+    public ListenerEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Sets the engine used for receiving Knock packets
+     *
+     * @param engine The listener engine
+     */
+    public void setEngine(ListenerEngine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * The amount of milliseconds the ports of a minute stay bound after the minute has ended
+     *
+     * @return The grace period
+     */
+    public long getGracePeriod() {
+        return gracePeriod;
+    }
+
+    /**
+     * Sets the amount of milliseconds the ports of a minute stay bound after the minute has ended
+     *
+     * @param gracePeriod The grace period
+     * @throws IllegalArgumentException If the grace period is negative or not less than a minute
+     */
+    public void setGracePeriod(long gracePeriod) {
+        if (gracePeriod < 0 || gracePeriod >= TimeUnit.MINUTES.toMillis(1))
+            throw new IllegalArgumentException("Grace period must be at least 0 and less than a minute");
+
+        this.gracePeriod = gracePeriod;
+    }
+
+    /**
+     * The amount of milliseconds before a minute starts that its ports are bound
+     *
+     * @return The pre-bind time
+     */
+    public long getPreBind() {
+        return preBind;
+    }
+
+    /**
+     * Sets the amount of milliseconds before a minute starts that its ports are bound.
+     * Binding the next minute's ports early means there is no moment at which a port of the schedule
+     * is not bound, and leaves time to retry a failed bind before the port is needed.
+     *
+     * @param preBind The pre-bind time
+     * @throws IllegalArgumentException If the pre-bind time is negative or not less than a minute
+     */
+    public void setPreBind(long preBind) {
+        if (preBind < 0 || preBind >= TimeUnit.MINUTES.toMillis(1))
+            throw new IllegalArgumentException("Pre-bind time must be at least 0 and less than a minute");
+
+        this.preBind = preBind;
+    }
+
+    /**
+     * Checks that the settings can be used together
+     *
+     * @throws IllegalArgumentException If the grace period and pre-bind time add up to a minute or more,
+     *                                  in which case the ports of three minutes would be bound at once
+     */
+    public void validate() {
+        if (gracePeriod + preBind >= TimeUnit.MINUTES.toMillis(1))
+            throw new IllegalArgumentException("Grace period and pre-bind time must add up to less than a minute");
+    }
+
+    /**
+     * The amount of sockets bound to each knock port with {@code SO_REUSEPORT}, each with its own reader
+     *
+     * @return The amount of receive shards
+     */
+    public int getReceiveShards() {
+        return receiveShards;
+    }
+
+    /**
+     * Sets the amount of sockets bound to each knock port. Values above 1 require {@code SO_REUSEPORT} support.
+     *
+     * @param receiveShards The amount of receive shards, or 0 for one shard per available processor
+     * @throws IllegalArgumentException If the amount is negative
+     */
+    public void setReceiveShards(int receiveShards) {
+        if (receiveShards < 0)
+            throw new IllegalArgumentException("Receive shards must not be negative");
+
+        this.receiveShards = receiveShards == 0 ? Runtime.getRuntime().availableProcessors() : receiveShards;
+    }
+
+    /**
+     * The size of the kernel receive buffer (SO_RCVBUF) of each socket, in bytes
+     *
+     * @return The kernel receive buffer size, or 0 to use the operating system default
+     */
+    public int getSocketReceiveBuffer() {
+        return socketReceiveBuffer;
+    }
+
+    /**
+     * Sets the size of the kernel receive buffer (SO_RCVBUF) of each socket.
+     * The kernel queues datagrams in this buffer until a reader receives them, so it must be large enough
+     * to absorb bursts. The operating system may limit the size (see {@code net.core.rmem_max} on Linux).
+     *
+     * @param socketReceiveBuffer The kernel receive buffer size in bytes, or 0 to use the operating system default
+     * @throws IllegalArgumentException If the size is negative
+     */
+    public void setSocketReceiveBuffer(int socketReceiveBuffer) {
+        if (socketReceiveBuffer < 0)
+            throw new IllegalArgumentException("Socket receive buffer must not be negative");
+
+        this.socketReceiveBuffer = socketReceiveBuffer;
+    }
+
+    /**
+     * The size of the application buffer each datagram is received into, in bytes
+     *
+     * @return The datagram size
+     */
+    public int getDatagramSize() {
+        return datagramSize;
+    }
+
+    /**
+     * Sets the size of the application buffer each datagram is received into.
+     * Datagrams larger than this are truncated by the operating system.
+     *
+     * @param datagramSize The datagram size in bytes
+     * @throws IllegalArgumentException If the size is not larger than an encoded Knock packet, in which case
+     *                                  an oversized datagram could be truncated into a Knock packet
+     */
+    public void setDatagramSize(int datagramSize) {
+        if (datagramSize <= KnockPacketView.ENCODED_LENGTH)
+            throw new IllegalArgumentException("Datagram size must be larger than " + KnockPacketView.ENCODED_LENGTH);
+
+        this.datagramSize = datagramSize;
+    }
+
+    /**
+     * The amount of packets that can be queued in the best-effort lane of each verification worker
+     * and each packet consumer shard
+     *
+     * @return The queue capacity
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Sets the amount of packets that can be queued in the best-effort lane of each verification worker
+     * and each packet consumer shard. The queue is allocated up front, and packets that arrive while it is full
+     * are dropped.
+     *
+     * @param queueCapacity The queue capacity, which is rounded up to a power of two
+     * @throws IllegalArgumentException If the capacity is not positive or larger than 2^30
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        if (queueCapacity <= 0 || queueCapacity > 1 << 30)
+            throw new IllegalArgumentException("Queue capacity must be between 1 and 2^30");
+
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * The amount of packets that can be queued in the priority lane of each verification worker
+     * and each packet consumer shard
+     *
+     * @return The priority queue capacity, or 0 if there is no priority lane
+     */
+    public int getPriorityQueueCapacity() {
+        return priorityQueueCapacity;
+    }
+
+    /**
+     * Sets the amount of packets that can be queued in the priority lane of each verification worker
+     * and each packet consumer shard. The packets of clients that have an open session, or that recently
+     * completed a knock sequence, go into this lane and are processed first, so a flood filling up the
+     * best-effort lane does not delay them.
+     *
+     * @param priorityQueueCapacity The priority queue capacity, which is rounded up to a power of two,
+     *                              or 0 to queue every packet in the best-effort lane
+     * @throws IllegalArgumentException If the capacity is negative or larger than 2^30
+     */
+    public void setPriorityQueueCapacity(int priorityQueueCapacity) {
+        if (priorityQueueCapacity < 0 || priorityQueueCapacity > 1 << 30)
+            throw new IllegalArgumentException("Priority queue capacity must be between 0 and 2^30");
+
+        this.priorityQueueCapacity = priorityQueueCapacity;
+    }
+
+    /**
+     * The amount of milliseconds the packets of a source go into the priority lane after its last verified knock
+     *
+     * @return The priority duration
+     */
+    public long getPriorityDuration() {
+        return priorityDuration;
+    }
+
+    /**
+     * Sets the amount of milliseconds the packets of a source go into the priority lane after its last verified knock
+     *
+     * @param priorityDuration The priority duration
+     * @throws IllegalArgumentException If the duration is less than 1 ms
+     */
+    public void setPriorityDuration(long priorityDuration) {
+        if (priorityDuration < 1)
+            throw new IllegalArgumentException("Priority duration must be at least 1 ms");
+
+        this.priorityDuration = priorityDuration;
+    }
+
+    /**
+     * The maximum amount of sources whose packets go into the priority lane at once
+     *
+     * @return The amount of priority sources
+     */
+    public int getPrioritySources() {
+        return prioritySources;
+    }
+
+    /**
+     * Sets the maximum amount of sources whose packets go into the priority lane at once.
+     * When there are more, the source whose priority expires first is replaced.
+     *
+     * @param prioritySources The amount of priority sources
+     * @throws IllegalArgumentException If the amount is not between 1 and 2^26
+     */
+    public void setPrioritySources(int prioritySources) {
+        if (prioritySources < 1 || prioritySources > 1 << 26)
+            throw new IllegalArgumentException("Priority sources must be between 1 and 2^26");
+
+        this.prioritySources = prioritySources;
+    }
+
+    /**
+     * How the verification workers and packet consumer shards wait for packets while their queue is empty
+     *
+     * @return The wait strategy
+     */
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    /**
+     * Sets how the verification workers and packet consumer shards wait for packets while their queue is empty
+     *
+     * @param waitStrategy The wait strategy
+     */
+    public void setWaitStrategy(WaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * The amount of packet consumer shards, each processing the packets of a partition of the clients on its own thread
+     *
+     * @return The amount of consumer shards
+     */
+    public int getConsumerShards() {
+        return consumerShards;
+    }
+
+    /**
+     * Sets the amount of packet consumer shards. Each shard has its own queue of {@link #getQueueCapacity()} packets.
+     *
+     * @param consumerShards The amount of consumer shards, or 0 for one shard per available processor
+     * @throws IllegalArgumentException If the amount is negative
+     */
+    public void setConsumerShards(int consumerShards) {
+        if (consumerShards < 0)
+            throw new IllegalArgumentException("Consumer shards must not be negative");
+
+        this.consumerShards = consumerShards == 0 ? Runtime.getRuntime().availableProcessors() : consumerShards;
+    }
+
+    /**
+     * The amount of verification workers, which verify received datagrams so that the listeners do not have to
+     *
+     * @return The amount of verification workers, or 0 if datagrams are verified on the receiving threads
+     */
+    public int getVerifyWorkers() {
+        return verifyWorkers;
+    }
+
+    /**
+     * Sets the amount of verification workers. Each worker has its own queue of {@link #getQueueCapacity()} datagrams.
+     * With workers, the listeners only copy each datagram into a queue, which keeps the sockets drained during floods,
+     * and the MAC checks run in parallel on the workers.
+     *
+     * @param verifyWorkers The amount of verification workers, or 0 to verify datagrams on the receiving threads
+     * @throws IllegalArgumentException If the amount is negative
+     */
+    public void setVerifyWorkers(int verifyWorkers) {
+        if (verifyWorkers < 0)
+            throw new IllegalArgumentException("Verification workers must not be negative");
+
+        this.verifyWorkers = verifyWorkers;
+    }
+
+    /**
+     * The amount of datagrams admitted per second from each source address, before they are decoded
+     *
+     * @return The rate limit, or 0 if datagrams are not rate limited
+     */
+    public double getRateLimit() {
+        return rateLimit;
+    }
+
+    /**
+     * Sets the amount of datagrams admitted per second from each source address, before they are decoded.
+     * Datagrams over the limit are dropped, so a single host cannot use up the time spent verifying packets.
+     *
+     * @param rateLimit The rate limit, or 0 to disable rate limiting
+     * @throws IllegalArgumentException If the rate limit is negative
+     */
+    public void setRateLimit(double rateLimit) {
+        if (!(rateLimit >= 0))
+            throw new IllegalArgumentException("Rate limit must not be negative");
+
+        this.rateLimit = rateLimit;
+    }
+
+    /**
+     * The amount of datagrams a source address can send at once after being idle
+     *
+     * @return The burst size
+     */
+    public int getRateLimitBurst() {
+        return rateLimitBurst;
+    }
+
+    /**
+     * Sets the amount of datagrams a source address can send at once after being idle.
+     * This should be at least the amount of ports in a knock sequence.
+     *
+     * @param rateLimitBurst The burst size
+     * @throws IllegalArgumentException If the burst size is less than 1
+     */
+    public void setRateLimitBurst(int rateLimitBurst) {
+        if (rateLimitBurst < 1)
+            throw new IllegalArgumentException("Rate limit burst must be at least 1");
+
+        this.rateLimitBurst = rateLimitBurst;
+    }
+
+    /**
+     * The amount of source addresses the rate limiter tracks at once
+     *
+     * @return The amount of tracked sources
+     */
+    public int getRateLimitSources() {
+        return rateLimitSources;
+    }
+
+    /**
+     * Sets the amount of source addresses the rate limiter tracks at once. The table is allocated up front,
+     * and the source that has been idle the longest is evicted when a new source does not fit.
+     *
+     * @param rateLimitSources The amount of tracked sources
+     * @throws IllegalArgumentException If the amount is not between 1 and 2^30
+     */
+    public void setRateLimitSources(int rateLimitSources) {
+        if (rateLimitSources < 1 || rateLimitSources > 1 << 30)
+            throw new IllegalArgumentException("Rate limit sources must be between 1 and 2^30");
+
+        this.rateLimitSources = rateLimitSources;
+    }
+
+    /**
+     * The amount of rejected packets after which the source of the packets is blocked.
+     * The count is halved every 10 seconds.
+     *
+     * @return The blocklist threshold, or 0 if sources are never blocked (the default)
+     */
+    public int getBlocklistThreshold() {
+        return blocklistThreshold;
+    }
+
+    /**
+     * Sets the amount of rejected packets after which the source of the packets is blocked.
+     * The count is halved every 10 seconds, so a source is blocked once it is rejected at a sustained rate
+     * of about a twentieth of the threshold per second.
+     *
+     * @param blocklistThreshold The blocklist threshold, or 0 to never block sources
+     * @throws IllegalArgumentException If the threshold is negative
+     */
+    public void setBlocklistThreshold(int blocklistThreshold) {
+        if (blocklistThreshold < 0)
+            throw new IllegalArgumentException("Blocklist threshold must not be negative");
+
+        this.blocklistThreshold = blocklistThreshold;
+    }
+
+    /**
+     * The amount of milliseconds a source stays blocked
+     *
+     * @return The block duration
+     */
+    public long getBlocklistDuration() {
+        return blocklistDuration;
+    }
+
+    /**
+     * Sets the amount of milliseconds a source stays blocked
+     *
+     * @param blocklistDuration The block duration
+     * @throws IllegalArgumentException If the duration is less than 1 ms
+     */
+    public void setBlocklistDuration(long blocklistDuration) {
+        if (blocklistDuration < 1)
+            throw new IllegalArgumentException("Blocklist duration must be at least 1 ms");
+
+        this.blocklistDuration = blocklistDuration;
+    }
+
+    /**
+     * The maximum amount of sources blocked at once
+     *
+     * @return The blocklist size
+     */
+    public int getBlocklistSize() {
+        return blocklistSize;
+    }
+
+    /**
+     * Sets the maximum amount of sources blocked at once. When the blocklist is full, the block that expires
+     * first is replaced.
+     *
+     * @param blocklistSize The blocklist size
+     * @throws IllegalArgumentException If the size is not between 1 and 2^26
+     */
+    public void setBlocklistSize(int blocklistSize) {
+        if (blocklistSize < 1 || blocklistSize > 1 << 26)
+            throw new IllegalArgumentException("Blocklist size must be between 1 and 2^26");
+
+        this.blocklistSize = blocklistSize;
+    }
+
+    /**
+     * The length of the prefix IPv4 sources are blocked by
+     *
+     * @return The prefix length, from 0 to 32
+     */
+    public int getBlocklistIpv4Prefix() {
+        return blocklistIpv4Prefix;
+    }
+
+    /**
+     * Sets the length of the prefix IPv4 sources are blocked by. With a prefix shorter than 32, the rejected packets
+     * of every address in the network count together, and the whole network is blocked.
+     *
+     * @param blocklistIpv4Prefix The prefix length, from 0 to 32
+     * @throws IllegalArgumentException If the length is out of range
+     */
+    public void setBlocklistIpv4Prefix(int blocklistIpv4Prefix) {
+        if (blocklistIpv4Prefix < 0 || blocklistIpv4Prefix > 32)
+            throw new IllegalArgumentException("Blocklist IPv4 prefix must be between 0 and 32");
+
+        this.blocklistIpv4Prefix = blocklistIpv4Prefix;
+    }
+
+    /**
+     * The length of the prefix IPv6 sources are blocked by
+     *
+     * @return The prefix length, from 0 to 64
+     */
+    public int getBlocklistIpv6Prefix() {
+        return blocklistIpv6Prefix;
+    }
+
+    /**
+     * Sets the length of the prefix IPv6 sources are blocked by. A single IPv6 host usually has a whole /64,
+     * so longer prefixes are not supported.
+     *
+     * @param blocklistIpv6Prefix The prefix length, from 0 to 64
+     * @throws IllegalArgumentException If the length is out of range
+     */
+    public void setBlocklistIpv6Prefix(int blocklistIpv6Prefix) {
+        if (blocklistIpv6Prefix < 0 || blocklistIpv6Prefix > 64)
+            throw new IllegalArgumentException("Blocklist IPv6 prefix must be between 0 and 64");
+
+        this.blocklistIpv6Prefix = blocklistIpv6Prefix;
+    }
+
+    /**
+     * The names of the filter stages whose rejected packets count towards blocking their source
+     *
+     * @return An unmodifiable set of stage names
+     */
+    public Set<String> getBlocklistStages() {
+        return Collections.unmodifiableSet(blocklistStages);
+    }
+
+    /**
+     * Sets the names of the filter stages whose rejected packets count towards blocking their source.
+     * Stages that a legitimate client can fail, such as a timestamp outside the allowed skew, should be left out.
+     *
+     * @param blocklistStages The stage names, see {@link FilterPipeline#getStages()}
+     * @throws IllegalArgumentException If a name is not a stage of the standard pipeline
+     */
+    public void setBlocklistStages(Set<String> blocklistStages) {
+        // The names do not depend on the timestamp skew
+        Set<String> names = new LinkedHashSet<>();
+        for (PacketFilter stage : FilterPipeline.standard(ProtocolMap.DEFAULT_TIMESTAMP_SKEW).getStages())
+            names.add(stage.getName());
+
+        for (String stage : blocklistStages) {
+            if (!names.contains(stage))
+                throw new IllegalArgumentException("Unknown filter stage \"" + stage + "\", expected one of " + names);
+        }
+
+        this.blocklistStages = new HashSet<>(blocklistStages);
+    }
+
+    /**
+     * The file the received datagrams are captured to
+     *
+     * @return The capture path, or null if datagrams are not captured
+     */
+    public Path getCapturePath() {
+        return capturePath;
+    }
+
+    /**
+     * Sets the file the received datagrams are captured to, for replay with
+     * {@link cnt4004.server.benchmark.DatagramReplay}. An existing file is replaced.
+     *
+     * @param capturePath The capture path, or null to not capture datagrams
+     * @see DatagramCapture
+     */
+    public void setCapturePath(Path capturePath) {
+        this.capturePath = capturePath;
+    }
+
+}
@@ -0,0 +1,114 @@
+package cnt4004.server.network;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Opens the sockets of the knock ports
+ */
+final class ListenerSockets {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ListenerSockets.class);
+
+    /**
+     * The delay before the first retry of a failed bind, in milliseconds. The delay doubles after every failure.
+     */
+    static final long INITIAL_BIND_BACKOFF = 50;
+
+    /**
+     * The maximum delay between retries of a failed bind, in milliseconds
+     */
+    static final long MAX_BIND_BACKOFF = 1000;
+
+    private static final boolean REUSE_PORT_SUPPORTED = checkReusePort();
+
+    private static final boolean LINUX = System.getProperty("os.name", "").startsWith("Linux");
+
+    private static volatile boolean warnedReceiveBuffer;
+
+    private ListenerSockets() {
+    }
+
+    /**
+     * Determines if the platform allows several sockets to bind the same port with {@code SO_REUSEPORT}
+     *
+     * @return True if {@code SO_REUSEPORT} is supported, false otherwise
+     */
+    static boolean isReusePortSupported() {
+        return REUSE_PORT_SUPPORTED;
+    }
+
+    /**
+     * The amount of receive shards that can be used. Sharding is disabled if {@code SO_REUSEPORT} is not supported.
+     *
+     * @param settings The listener settings
+     * @return The amount of sockets to bind to each port
+     */
+    static int getReceiveShards(ListenerSettings settings) {
+        int shards = settings.getReceiveShards();
+
+        if (shards > 1 && !REUSE_PORT_SUPPORTED) {
+            LOGGER.warn("SO_REUSEPORT is not supported on this platform, using 1 receive shard instead of " + shards);
+            return 1;
+        }
+
+        return shards;
+    }
+
+    /**
+     * Opens and binds a datagram channel
+     *
+     * @param address   The address to bind on
+     * @param reusePort True to enable {@code SO_REUSEPORT}, so other shards can bind the same port
+     * @param settings  The listener settings, which contain the kernel receive buffer size
+     * @param blocking  True for a blocking channel, false for a channel that can be used with a selector
+     * @return The bound channel
+     * @throws IOException If the channel could not be opened or bound
+     */
+    static DatagramChannel openChannel(InetSocketAddress address, boolean reusePort, ListenerSettings settings,
+                                       boolean blocking) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+
+        try {
+            if (reusePort)
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+
+            int requested = settings.getSocketReceiveBuffer();
+
+            if (requested > 0) {
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, requested);
+
+                // Linux reports twice the granted size, to account for its bookkeeping overhead
+                int granted = channel.getOption(StandardSocketOptions.SO_RCVBUF) / (LINUX ? 2 : 1);
+
+                if (granted < requested && !warnedReceiveBuffer) {
+                    warnedReceiveBuffer = true;
+                    LOGGER.warn("Requested a socket receive buffer of " + requested + " bytes, but the operating system" +
+                            " granted " + granted + " bytes. Raise the limit (net.core.rmem_max on Linux) to avoid drops.");
+                }
+            }
+
+            channel.bind(address);
+            channel.configureBlocking(blocking);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        return channel;
+    }
+
+    private static boolean checkReusePort() {
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            return channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+}
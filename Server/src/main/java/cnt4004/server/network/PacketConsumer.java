@@ -1,165 +1,250 @@
 package cnt4004.server.network;
 
-import cnt4004.protocol.AuthenticatedPacket;
-import cnt4004.protocol.KnockPacket;
-import cnt4004.protocol.Packet;
-import cnt4004.protocol.TrustedClient;
+import cnt4004.protocol.KnockPacketView;
 import cnt4004.server.KnockServer;
-import cnt4004.server.KnockSession;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
+import java.io.UncheckedIOException;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Set;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
 
-public class PacketConsumer implements Runnable {
+/**
+ * Processes the datagrams received by the listeners. Each datagram is first admitted on the receiving thread by the
+ * {@link SourceBlocklist blocklist} and the {@link SourceRateLimiter per-source rate limit}, and then goes through two stages
+ * connected by bounded queues:
+ * <ol>
+ * <li>Verification, by a pool of {@link VerificationWorker verification workers}, or on the receiving
+ * thread itself if there are no workers</li>
+ * <li>Session processing of the verified Knock packets. The clients are partitioned over one or more
+ * {@link ConsumerShard shards} by a hash of their identifier, and each shard processes its clients on its own thread.</li>
+ * </ol>
+ * Each queue has a priority lane for the {@link PrioritySources sources of known clients}, and a best-effort lane
+ * for everything else, which is shed first under overload.
+ */
+public class PacketConsumer {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(PacketConsumer.class);
 
-    /**
-     * KnockServer instance
-     */
-    private final KnockServer knockServer;
+    private final DatagramCapture capture;
+    private final SourceBlocklist blocklist;
+    private final SourceRateLimiter rateLimiter;
+    private final PrioritySources prioritySources;
+    private final VerificationWorker[] workers;
+    private final ConsumerShard[] shards;
 
     /**
-     * Queue of pending packets to be processed
+     * Creates a new packet consumer
+     *
+     * @param knockServer The server to report knocks to
+     * @param settings    The listener settings, which configure the workers, the shards and their queues
+     * @throws UncheckedIOException If the capture file could not be created
      */
-    // Capacity is 1,000 packets can be queued at most. This does not mean that memory
-    // has been allocated for 1,000 packets, but can dynamically grow to 1,000 packets.
-    private final BlockingQueue<QueuedPacket> queue = new LinkedBlockingQueue<>(1000);
+    public PacketConsumer(KnockServer knockServer, ListenerSettings settings) {
+        try {
+            this.capture = settings.getCapturePath() != null ? new DatagramCapture(settings.getCapturePath()) : null;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to create the capture file " + settings.getCapturePath(), e);
+        }
 
-    public PacketConsumer(KnockServer knockServer) {
-        this.knockServer = knockServer;
+        this.blocklist = settings.getBlocklistThreshold() > 0
+                ? new SourceBlocklist(settings.getBlocklistThreshold(), settings.getBlocklistDuration(),
+                settings.getBlocklistSize(), settings.getBlocklistIpv4Prefix(), settings.getBlocklistIpv6Prefix(),
+                settings.getBlocklistStages(), knockServer.getClock())
+                : null;
+        this.rateLimiter = settings.getRateLimit() > 0
+                ? new SourceRateLimiter(settings.getRateLimit(), settings.getRateLimitBurst(), settings.getRateLimitSources(), knockServer.getClock())
+                : null;
+        this.prioritySources = settings.getPriorityQueueCapacity() > 0
+                ? new PrioritySources(settings.getPriorityDuration(), settings.getPrioritySources(), knockServer.getClock())
+                : null;
+        this.workers = new VerificationWorker[settings.getVerifyWorkers()];
+        this.shards = new ConsumerShard[settings.getConsumerShards()];
+
+        for (int i = 0; i < workers.length; i++)
+            workers[i] = new VerificationWorker(i, this, settings);
+
+        for (int i = 0; i < shards.length; i++)
+            shards[i] = new ConsumerShard(i, knockServer, settings, prioritySources);
     }
 
     /**
-     * Offers a packet to the queue. This method may drop the packet if the queue is full.
+     * Starts a thread for every verification worker and every shard
      *
-     * @param packet        The packet to add
-     * @param clientAddress The source address of the remote host (source fields in datagram)
-     * @param localAddress  The local address the packet was received on
+     * @param executor The executor to run the workers and shards on
      */
-    void queuePacket(Packet packet, SocketAddress clientAddress, SocketAddress localAddress) {
-        queue.offer(new QueuedPacket(packet, clientAddress, localAddress));
-    }
+    public void start(Executor executor) {
+        for (VerificationWorker worker : workers)
+            executor.execute(worker);
 
-    @Override
-    public void run() {
+        for (ConsumerShard shard : shards)
+            executor.execute(shard);
+    }
 
-        LOGGER.info("Packet consumer started");
+    /**
+     * Closes the capture file, if datagrams are captured
+     */
+    public void close() {
+        if (capture == null)
+            return;
 
         try {
-
-            //noinspection InfiniteLoopStatement
-            while (true) {
-
-                // take() is a blocking method that waits for a packet in the queue
-                QueuedPacket queuedPacket = queue.take();
-
-                if (queuedPacket.packet.getID() == 0) {
-                    receivedKnockPacket((KnockPacket) queuedPacket.packet, queuedPacket.clientAddress, queuedPacket.localAddress);
-                } else {
-                    LOGGER.debug("Unknown packet ID: " + queuedPacket.packet.getID());
-                }
-
-            }
-
-        } catch (InterruptedException e) {
-            LOGGER.info("Packet consumer thread interrupted");
+            capture.close();
+        } catch (IOException e) {
+            LOGGER.error("Failed to close the capture file", e);
         }
-
     }
 
     /**
-     * Processes a Knock Packet
+     * Determines if a received datagram is admitted for verification
      *
-     * @param packet        The Knock packet
-     * @param clientAddress The source address of the packet (datagram source address)
-     * @param localAddress  The local address for which the packet was received on
+     * @param clientAddress The source address of the datagram
+     * @return True if the datagram is admitted, false if it should be dropped
      */
-    private void receivedKnockPacket(KnockPacket packet, SocketAddress clientAddress, SocketAddress localAddress) {
+    boolean admit(SocketAddress clientAddress) {
+        if (blocklist != null && blocklist.isBlocked(clientAddress))
+            return false;
 
-        // Prevent the packet from allocating unnecessary memory
-        if (packet.getMaxSequence() > (knockServer.getPortCount() - 1)) {
-            LOGGER.debug("Discarding knock packet due to the maximum sequence number (" + packet.getMaxSequence()
-                    + ") being greater than or equal to the port count (" + knockServer.getPortCount() + ")");
-            return;
-        }
-
-        KnockSession session = knockServer.getSession(packet.getClientIdentifier());
-
-        int knockedPort = ((InetSocketAddress) localAddress).getPort();
-
-        LOGGER.debug("Got a knock from " + clientAddress + " on local port " + knockedPort
-                + " | Sequence: " + packet.getSequence()
-                + " | Max Sequence: " + packet.getMaxSequence());
-
-        session.addKnockPacket(packet, knockedPort);
-
-        if (session.sequenceComplete()) {
-
-            List<Integer> receivedSequence = session.getCurrentKnockSequence();
-
-            LOGGER.debug("Final received knock sequence: " + receivedSequence);
+        return rateLimiter == null || rateLimiter.tryAcquire(clientAddress);
+    }
 
-            if (receivedSequence.equals(knockServer.getPorts())) {
+    /**
+     * Determines if datagrams are verified on the thread that received them
+     *
+     * @return True if there are no verification workers, false otherwise
+     */
+    boolean verifiesInline() {
+        return workers.length == 0;
+    }
 
-                LOGGER.debug("Correct knock sequence!");
+    /**
+     * Copies a received datagram into the queue of a verification worker.
+     * This method drops the datagram if the queue is full.
+     *
+     * @param payload       The datagram payload, from its position to its limit
+     * @param clientAddress The source address of the remote host (source fields in datagram)
+     * @param localAddress  The local address the datagram was received on
+     * @param minute        The unix time in minutes of the schedule the local port belongs to
+     */
+    void queueDatagram(ByteBuffer payload, SocketAddress clientAddress, SocketAddress localAddress, long minute) {
+        // Any worker can verify any datagram, so the load is spread without a shared counter
+        int worker = workers.length == 1 ? 0 : ThreadLocalRandom.current().nextInt(workers.length);
 
-                Set<TrustedClient> clientSet = knockServer.getTrustedClients();
+        workers[worker].queueDatagram(payload, clientAddress, localAddress, minute, isPrioritized(clientAddress));
+    }
 
-                TrustedClient client = clientSet.stream()
-                        .filter(c -> c.getIdentifier().equals(packet.getClientIdentifier()))
-                        .findFirst().orElse(null);
+    /**
+     * Publishes a verified Knock packet to the queue of the shard of its client.
+     * This method drops the packet if the queue is full.
+     *
+     * @param view          The view of the verified packet, with its client attached
+     * @param clientAddress The source address of the remote host (source fields in datagram)
+     * @param localAddress  The local address the packet was received on
+     * @param minute        The unix time in minutes of the schedule the local port belongs to
+     */
+    void queuePacket(KnockPacketView view, SocketAddress clientAddress, SocketAddress localAddress, long minute) {
+        shards[shardOf(view.getClient().getPackedIdentifier())].queuePacket(view, clientAddress, localAddress, minute,
+                isPrioritized(clientAddress));
+    }
 
-                long largestNonce = session.getKnockSequence().keySet().stream()
-                        .mapToLong(AuthenticatedPacket::getNonce)
-                        .filter(p -> p >= 0).max().orElse(0);
+    /**
+     * Determines if packets from a source go into the priority lane of the queues
+     *
+     * @param clientAddress The source address of the remote host (source fields in datagram)
+     * @return True if the source belongs to a client with an open session or a recent knock sequence
+     */
+    private boolean isPrioritized(SocketAddress clientAddress) {
+        return prioritySources != null && prioritySources.contains(clientAddress);
+    }
 
-                if (client != null && client.getLargestNonceReceived() < largestNonce) {
+    /**
+     * Determines the shard of a client
+     *
+     * @param packedIdentifier The packed identifier of the client
+     * @return The index of the shard
+     */
+    private int shardOf(int packedIdentifier) {
+        // Identifiers are short ASCII strings, so the bits are mixed before taking the remainder
+        return Math.floorMod(packedIdentifier * 0x9E3779B9, shards.length);
+    }
 
-                    LOGGER.debug("Updating nonce for " + client.getIdentifier() + " to " + largestNonce);
-                    client.setLargestNonceReceived(largestNonce);
-                    try {
-                        TrustedClient.saveTrustedClients(clientSet);
-                    } catch (IOException e) {
-                        LOGGER.error("Saving nonce", e);
-                    }
+    /**
+     * The capture the listeners append every received datagram to
+     *
+     * @return The capture, or null if datagrams are not captured
+     */
+    public DatagramCapture getCapture() {
+        return capture;
+    }
 
-                }
+    /**
+     * The blocklist of sources that keep sending rejected packets. It must be set as the
+     * {@link cnt4004.protocol.FilterPipeline#setRejectListener(cnt4004.protocol.FilterPipeline.RejectListener)
+     * reject listener} of the pipeline to be fed.
+     *
+     * @return The blocklist, or null if sources are never blocked
+     */
+    public SourceBlocklist getBlocklist() {
+        return blocklist;
+    }
 
-                knockServer.openTimedService();
+    /**
+     * The per-source rate limiter
+     *
+     * @return The rate limiter, or null if datagrams are not rate limited
+     */
+    public SourceRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
 
-            } else {
+    /**
+     * The sources whose packets go into the priority lane of the queues
+     *
+     * @return The priority sources, or null if there is no priority lane
+     */
+    public PrioritySources getPrioritySources() {
+        return prioritySources;
+    }
 
-                LOGGER.debug("Incorrect knock sequence");
+    /**
+     * The verification workers of this consumer
+     *
+     * @return An unmodifiable list of the workers, empty if datagrams are verified on the receiving threads
+     */
+    public List<VerificationWorker> getVerificationWorkers() {
+        return Collections.unmodifiableList(Arrays.asList(workers));
+    }
 
-            }
+    /**
+     * The shards of this consumer
+     *
+     * @return An unmodifiable list of the shards
+     */
+    public List<ConsumerShard> getShards() {
+        return Collections.unmodifiableList(Arrays.asList(shards));
+    }
 
-            knockServer.removeSession(packet.getClientIdentifier());
+    /**
+     * The amount of datagrams and packets dropped because the queue of a worker or shard was full
+     *
+     * @return The amount of drops of all workers and shards
+     */
+    public long getDrops() {
+        long drops = 0;
 
-        }
+        for (VerificationWorker worker : workers)
+            drops += worker.getDrops();
 
-    }
-}
+        for (ConsumerShard shard : shards)
+            drops += shard.getDrops();
 
-/**
- * Represents a queued packet in the queue
- */
-class QueuedPacket {
-    final Packet packet;
-    final SocketAddress clientAddress;
-    final SocketAddress localAddress;
-
-    QueuedPacket(Packet packet, SocketAddress clientAddress, SocketAddress localAddress) {
-        this.packet = packet;
-        this.clientAddress = clientAddress;
-        this.localAddress = localAddress;
+        return drops;
     }
 
 }
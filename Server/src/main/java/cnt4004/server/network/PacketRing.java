@@ -0,0 +1,207 @@
+package cnt4004.server.network;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * A bounded, lock-free multi-producer single-consumer ring buffer of preallocated, reusable slots.
+ * Used for every queue between the stages of the receive path.
+ * <p>
+ * Producers {@link PacketRing#claim() claim} a sequence number with a compare-and-set, fill the slot of that
+ * sequence, and then {@link PacketRing#publish(long) publish} it. The consumer drains published slots in order,
+ * in batches, and only then hands the slots back to the producers. Publishing a packet does not lock or allocate.
+ * If the ring is full, the packet is dropped and counted instead of blocking the producer.
+ *
+ * @param <E> The type of the slots
+ */
+final class PacketRing<E> {
+
+    private final E[] slots;
+    private final int mask;
+
+    /**
+     * The sequence each slot was last published with, or -1
+     */
+    private final AtomicLongArray published;
+
+    /**
+     * The next sequence to be claimed by a producer
+     */
+    private final AtomicLong claimed = new AtomicLong();
+
+    /**
+     * The next sequence to be read by the consumer. Slots before this sequence may be reused.
+     */
+    private final AtomicLong consumed = new AtomicLong();
+
+    private final LongAdder drops = new LongAdder();
+    private final WaitStrategy.Waiter waiter;
+    private final BooleanSupplier available = this::isAvailable;
+
+    /**
+     * Creates a new ring buffer
+     *
+     * @param capacity     The amount of slots, rounded up to a power of two
+     * @param waitStrategy How the consumer waits while the ring is empty
+     * @param slotFactory  Creates the slots, once, up front
+     * @throws IllegalArgumentException If the capacity is not positive or larger than 2^30
+     */
+    PacketRing(int capacity, WaitStrategy waitStrategy, Supplier<E> slotFactory) {
+        this(capacity, waitStrategy.newWaiter(), slotFactory);
+    }
+
+    /**
+     * Creates a new ring buffer that signals a waiter shared with other rings. The consumer must wait on the waiter
+     * itself, since {@link PacketRing#await()} only checks this ring.
+     *
+     * @param capacity    The amount of slots, rounded up to a power of two
+     * @param waiter      The waiter signalled when a slot is published
+     * @param slotFactory Creates the slots, once, up front
+     * @throws IllegalArgumentException If the capacity is not positive or larger than 2^30
+     */
+    @SuppressWarnings("unchecked")
+    PacketRing(int capacity, WaitStrategy.Waiter waiter, Supplier<E> slotFactory) {
+        if (capacity <= 0 || capacity > 1 << 30)
+            throw new IllegalArgumentException("Capacity must be between 1 and 2^30");
+
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+
+        this.slots = (E[]) new Object[size];
+        this.mask = size - 1;
+        this.published = new AtomicLongArray(size);
+        this.waiter = waiter;
+
+        for (int i = 0; i < size; i++) {
+            slots[i] = slotFactory.get();
+            published.set(i, -1);
+        }
+    }
+
+    /**
+     * Claims the next free slot. The claimed slot must be filled and then {@link PacketRing#publish(long) published}.
+     *
+     * @return The sequence of the claimed slot, or -1 if the ring was full and the packet was dropped
+     */
+    long claim() {
+        long sequence;
+
+        do {
+            sequence = claimed.get();
+
+            if (sequence - consumed.get() >= slots.length) {
+                drops.increment();
+                return -1;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        return sequence;
+    }
+
+    /**
+     * The slot of a claimed sequence
+     *
+     * @param sequence The sequence returned by {@link PacketRing#claim()}
+     * @return The slot to fill
+     */
+    E slot(long sequence) {
+        return slots[(int) sequence & mask];
+    }
+
+    /**
+     * Publishes a filled slot to the consumer
+     *
+     * @param sequence The sequence returned by {@link PacketRing#claim()}
+     */
+    void publish(long sequence) {
+        published.set((int) sequence & mask, sequence);
+        waiter.signal();
+    }
+
+    /**
+     * Processes the published slots in order, up to a limit, without waiting.
+     * Only called by the consumer.
+     *
+     * @param handler The handler of each slot. The slot must not be used after the handler returns.
+     * @param limit   The maximum amount of slots to process
+     * @return The amount of slots processed
+     */
+    int drain(Consumer<E> handler, int limit) {
+        long next = consumed.get();
+        int count = 0;
+
+        try {
+
+            while (count < limit) {
+                int index = (int) next & mask;
+
+                if (published.get(index) != next)
+                    break;
+
+                next++;
+                count++;
+
+                handler.accept(slots[index]);
+            }
+
+        } finally {
+            // Hand the whole batch back to the producers at once
+            if (count > 0)
+                consumed.lazySet(next);
+        }
+
+        return count;
+    }
+
+    /**
+     * Waits with the ring's {@link WaitStrategy} until a slot is published. Only called by the consumer.
+     *
+     * @throws InterruptedException If the consumer is interrupted while waiting
+     */
+    void await() throws InterruptedException {
+        waiter.await(available);
+    }
+
+    /**
+     * Determines if the next slot to be read has been published
+     *
+     * @return True if {@link PacketRing#drain(Consumer, int)} would process a slot
+     */
+    boolean isAvailable() {
+        long next = consumed.get();
+        return published.get((int) next & mask) == next;
+    }
+
+    /**
+     * The amount of slots that are claimed and not yet drained. This is a snapshot, which may be stale.
+     *
+     * @return The occupancy
+     */
+    int size() {
+        return (int) Math.max(0, Math.min(slots.length, claimed.get() - consumed.get()));
+    }
+
+    /**
+     * The amount of slots
+     *
+     * @return The capacity
+     */
+    int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * The amount of packets dropped because the ring was full
+     *
+     * @return The amount of drops
+     */
+    long getDrops() {
+        return drops.sum();
+    }
+
+}
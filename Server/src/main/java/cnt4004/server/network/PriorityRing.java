@@ -0,0 +1,129 @@
+package cnt4004.server.network;
+
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * A queue between two stages of the receive path, made of two {@link PacketRing rings}, or lanes, with their own
+ * capacity and drop counters.
+ * <p>
+ * Packets from the {@link PrioritySources priority sources} are published to the priority lane, and everything else
+ * to the best-effort lane. The consumer always drains the priority lane first, so under a flood the best-effort lane
+ * fills up and sheds packets, while known clients keep their reserved slots. Both lanes signal the same waiter.
+ *
+ * @param <E> The type of the slots
+ */
+final class PriorityRing<E> {
+
+    private final PacketRing<E> priority;
+    private final PacketRing<E> bestEffort;
+    private final WaitStrategy.Waiter waiter;
+    private final BooleanSupplier available = this::isAvailable;
+
+    /**
+     * Creates a new two-lane ring
+     *
+     * @param capacity         The amount of slots of the best-effort lane, rounded up to a power of two
+     * @param priorityCapacity The amount of slots of the priority lane, rounded up to a power of two,
+     *                         or 0 to publish every packet to the best-effort lane
+     * @param waitStrategy     How the consumer waits while both lanes are empty
+     * @param slotFactory      Creates the slots, once, up front
+     * @throws IllegalArgumentException If a capacity is out of range
+     */
+    PriorityRing(int capacity, int priorityCapacity, WaitStrategy waitStrategy, Supplier<E> slotFactory) {
+        this.waiter = waitStrategy.newWaiter();
+        this.bestEffort = new PacketRing<>(capacity, waiter, slotFactory);
+        this.priority = priorityCapacity > 0 ? new PacketRing<>(priorityCapacity, waiter, slotFactory) : null;
+    }
+
+    /**
+     * The lane to publish a packet to
+     *
+     * @param prioritized True if the packet is from a priority source
+     * @return The priority lane if the packet is prioritized and there is a priority lane, the best-effort lane otherwise
+     */
+    PacketRing<E> lane(boolean prioritized) {
+        return prioritized && priority != null ? priority : bestEffort;
+    }
+
+    /**
+     * Processes the published slots, those of the priority lane first, up to a limit, without waiting.
+     * Only called by the consumer.
+     *
+     * @param handler The handler of each slot. The slot must not be used after the handler returns.
+     * @param limit   The maximum amount of slots to process
+     * @return The amount of slots processed
+     */
+    int drain(Consumer<E> handler, int limit) {
+        int count = priority != null ? priority.drain(handler, limit) : 0;
+
+        // The best-effort lane only gets what is left of the batch
+        if (count < limit)
+            count += bestEffort.drain(handler, limit - count);
+
+        return count;
+    }
+
+    /**
+     * Waits with the ring's {@link WaitStrategy} until a slot is published to either lane. Only called by the consumer.
+     *
+     * @throws InterruptedException If the consumer is interrupted while waiting
+     */
+    void await() throws InterruptedException {
+        waiter.await(available);
+    }
+
+    private boolean isAvailable() {
+        return (priority != null && priority.isAvailable()) || bestEffort.isAvailable();
+    }
+
+    /**
+     * The amount of slots that are claimed and not yet drained, in both lanes. This is a snapshot, which may be stale.
+     *
+     * @return The occupancy
+     */
+    int size() {
+        return (priority != null ? priority.size() : 0) + bestEffort.size();
+    }
+
+    /**
+     * The amount of slots of both lanes
+     *
+     * @return The capacity
+     */
+    int capacity() {
+        return (priority != null ? priority.capacity() : 0) + bestEffort.capacity();
+    }
+
+    /**
+     * The amount of packets dropped because the priority lane was full
+     *
+     * @return The amount of drops
+     */
+    long getPriorityDrops() {
+        return priority != null ? priority.getDrops() : 0;
+    }
+
+    /**
+     * The amount of packets dropped because the best-effort lane was full
+     *
+     * @return The amount of drops
+     */
+    long getBestEffortDrops() {
+        return bestEffort.getDrops();
+    }
+
+    @Override
+    public String toString() {
+        String lanes = "best-effort=" + bestEffort.size() + "/" + bestEffort.capacity()
+                + " (" + bestEffort.getDrops() + " dropped)";
+
+        if (priority == null)
+            return lanes;
+
+        return "priority=" + priority.size() + "/" + priority.capacity()
+                + " (" + priority.getDrops() + " dropped), " + lanes;
+    }
+
+}
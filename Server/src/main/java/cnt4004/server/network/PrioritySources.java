@@ -0,0 +1,84 @@
+package cnt4004.server.network;
+
+import cnt4004.protocol.Clock;
+
+import java.net.SocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The source addresses whose packets go into the priority lane of the {@link PriorityRing queues}: the addresses
+ * of trusted clients that have an open knock session, or that recently completed a knock sequence.
+ * <p>
+ * Every verified knock marks its source for a while, so a client is prioritized from its second knock on, and stays
+ * prioritized for a while after its last. Sources are kept in a fixed-size {@link AddressTable}, by host.
+ * Since UDP source addresses can be spoofed, a host that spoofs the address of a known client shares its lane.
+ */
+public final class PrioritySources {
+
+    private final AddressTable sources;
+    private final long duration;
+    private final Clock clock;
+
+    /**
+     * Creates a new set of priority sources
+     *
+     * @param duration The amount of milliseconds a source stays prioritized after its last verified knock
+     * @param size     The maximum amount of sources, rounded up to a power of two
+     * @param clock    The clock that decides when sources expire
+     * @throws IllegalArgumentException If the duration is less than 1 ms or the size is not between 1 and 2^26
+     */
+    public PrioritySources(long duration, int size, Clock clock) {
+        if (duration < 1)
+            throw new IllegalArgumentException("Duration must be at least 1 ms");
+
+        this.sources = new AddressTable(size);
+        this.duration = TimeUnit.MILLISECONDS.toNanos(duration);
+        this.clock = clock;
+    }
+
+    /**
+     * Determines if packets from a source are prioritized
+     *
+     * @param source The source address of a packet
+     * @return True if the packet should go into the priority lane
+     */
+    public boolean contains(SocketAddress source) {
+        return sources.remaining(key(source), clock.nanos()) > 0;
+    }
+
+    /**
+     * Marks the source of a verified knock
+     *
+     * @param source The source address of the knock
+     */
+    void mark(SocketAddress source) {
+        long key = key(source);
+        long now = clock.nanos();
+
+        // Only the first knock of a sequence has to take the table lock
+        if (sources.remaining(key, now) < duration / 2)
+            sources.put(key, now + duration);
+    }
+
+    /**
+     * The amount of sources currently prioritized
+     *
+     * @return The amount of sources
+     */
+    public int getCount() {
+        return sources.count(clock.nanos());
+    }
+
+    @Override
+    public String toString() {
+        return "PrioritySources{" +
+                "sources=" + getCount() +
+                ", duration=" + TimeUnit.NANOSECONDS.toSeconds(duration) + "s" +
+                '}';
+    }
+
+    private static long key(SocketAddress source) {
+        return AddressTable.key(source, -1, -1L);
+    }
+
+}
@@ -0,0 +1,69 @@
+package cnt4004.server.network;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A pool of direct (off-heap) receive buffers.
+ * <p>
+ * Receiving into a direct buffer avoids the copy the JDK makes when a channel receives into a heap buffer.
+ * Direct buffers are expensive to allocate and are only freed by the garbage collector, so the buffers are
+ * carved out of a single allocation and reused by the listeners of every minute instead of being reallocated.
+ */
+final class ReceiveBufferPool {
+
+    private final int bufferSize;
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Creates a new pool
+     *
+     * @param bufferSize The size of each buffer in bytes
+     * @param count      The amount of buffers to preallocate
+     */
+    ReceiveBufferPool(int bufferSize, int count) {
+        this.bufferSize = bufferSize;
+
+        ByteBuffer slab = ByteBuffer.allocateDirect(bufferSize * count);
+
+        for (int i = 0; i < count; i++) {
+            slab.limit((i + 1) * bufferSize).position(i * bufferSize);
+            buffers.add(slab.slice());
+        }
+    }
+
+    /**
+     * Takes a buffer from the pool, or allocates a new buffer if the pool is empty
+     *
+     * @return A cleared buffer of {@link ReceiveBufferPool#getBufferSize()} bytes
+     */
+    ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+
+        if (buffer == null)
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool
+     *
+     * @param buffer The buffer, which must not be used afterwards
+     */
+    void release(ByteBuffer buffer) {
+        buffers.offer(buffer);
+    }
+
+    /**
+     * The size of each buffer
+     *
+     * @return The buffer size in bytes
+     */
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+}
@@ -0,0 +1,56 @@
+package cnt4004.server.network;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * A reusable slot of the queue of a {@link VerificationWorker}, holding a copy of a datagram that has not been
+ * verified yet. The payload is copied, so the listener can reuse its receive buffer as soon as the slot is published.
+ */
+final class ReceivedDatagram {
+
+    final ByteBuffer payload;
+    SocketAddress clientAddress;
+    SocketAddress localAddress;
+    long minute;
+
+    /**
+     * Creates a new slot
+     *
+     * @param datagramSize The size of the largest datagram the slot can hold
+     */
+    ReceivedDatagram(int datagramSize) {
+        this.payload = ByteBuffer.allocate(datagramSize);
+    }
+
+    /**
+     * Copies a received datagram into this slot
+     *
+     * @param source        The datagram payload, from its position to its limit. Its position is not modified.
+     * @param clientAddress The source address of the datagram
+     * @param localAddress  The local address the datagram was received on
+     * @param minute        The unix time in minutes of the schedule the local port belongs to
+     */
+    void set(ByteBuffer source, SocketAddress clientAddress, SocketAddress localAddress, long minute) {
+        int position = source.position();
+
+        payload.clear();
+        payload.put(source);
+        payload.flip();
+
+        source.position(position);
+
+        this.clientAddress = clientAddress;
+        this.localAddress = localAddress;
+        this.minute = minute;
+    }
+
+    /**
+     * Releases the references held by this slot, once it has been processed
+     */
+    void clear() {
+        this.clientAddress = null;
+        this.localAddress = null;
+    }
+
+}
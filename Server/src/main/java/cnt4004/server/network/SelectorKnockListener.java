@@ -0,0 +1,378 @@
+package cnt4004.server.network;
+
+import cnt4004.protocol.Clock;
+import cnt4004.protocol.PortSchedule;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A listener engine that receives on every knock port of one bind address with a single thread.
+ * <p>
+ * Each port is a non-blocking {@link DatagramChannel} registered with one {@link Selector}. The selector timeout
+ * is set to the next pre-bind time, the end of a grace period, or the retry of a failed bind, whichever is first,
+ * so the rotation of the ports is driven by the same thread that receives the packets.
+ * <p>
+ * A port that is also in the schedule of the previous minute keeps its channel, whose deadline is extended, and its
+ * packets stay tagged with the minute the channel was bound for. {@link ConsumerShard} resolves which minute a knock
+ * on such a port belongs to.
+ * <p>
+ * With more than one receive shard, one selector listener runs per shard, each binding every port
+ * with {@code SO_REUSEPORT}.
+ */
+public class SelectorKnockListener implements Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SelectorKnockListener.class);
+
+    /**
+     * The maximum amount of datagrams received from one channel per select. A channel with more datagrams stays
+     * selected, so a flood on one port cannot starve the other ports or delay the rotation.
+     */
+    static final int MAX_RECEIVES_PER_SELECT = 32;
+
+    private final PacketConsumer packetConsumer;
+    private final PortSchedule portSchedule;
+    private final ListenerSettings settings;
+    private final ReceiveBufferPool bufferPool;
+    private final InetAddress bindAddress;
+    private final boolean reusePort;
+
+    /**
+     * Creates a new selector listener
+     *
+     * @param packetConsumer The consumer to submit packets to
+     * @param portSchedule   The schedule of generated ports
+     * @param settings       The listener settings
+     * @param bufferPool     The pool to take the receive buffer from
+     * @param bindAddress    The address to bind the ports on
+     * @param reusePort      True if the ports are shared with other listeners using {@code SO_REUSEPORT}
+     */
+    SelectorKnockListener(PacketConsumer packetConsumer, PortSchedule portSchedule, ListenerSettings settings,
+                          ReceiveBufferPool bufferPool, InetAddress bindAddress, boolean reusePort) {
+        this.packetConsumer = packetConsumer;
+        this.portSchedule = portSchedule;
+        this.settings = settings;
+        this.bufferPool = bufferPool;
+        this.bindAddress = bindAddress;
+        this.reusePort = reusePort;
+    }
+
+    @Override
+    public void run() {
+
+        ByteBuffer payload = bufferPool.acquire();
+        KnockDatagramHandler handler = new KnockDatagramHandler(packetConsumer);
+
+        try (Selector selector = Selector.open()) {
+
+            LOGGER.debug("Selector listener started on {} (pre-bind: {} ms, grace period: {} ms)",
+                    bindAddress.getHostAddress(), settings.getPreBind(), settings.getGracePeriod());
+
+            List<PendingBind> pending = new ArrayList<>();
+            Clock clock = portSchedule.getClock();
+            long bindMinute = clock.currentMinute();
+            long nextBind = 0;
+
+            while (!Thread.currentThread().isInterrupted()) {
+
+                long now = clock.millis();
+
+                if (now >= nextBind) {
+                    queueMinute(selector, pending, bindMinute, now);
+
+                    // Skip minutes that have already passed, in case the thread was suspended or the clock was changed
+                    bindMinute = Math.max(bindMinute + 1, clock.currentMinute());
+                    nextBind = TimeUnit.MINUTES.toMillis(bindMinute) - settings.getPreBind();
+                }
+
+                long wakeup = Math.min(nextBind, bindPending(selector, pending, now));
+                wakeup = Math.min(wakeup, closeExpired(selector, now));
+
+                selector.select(Math.max(1, wakeup - clock.millis()));
+
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+
+                while (selected.hasNext()) {
+
+                    SelectionKey key = selected.next();
+                    selected.remove();
+
+                    if (key.isValid() && key.isReadable())
+                        receive(key, payload, handler);
+
+                }
+
+            }
+
+            LOGGER.info("Selector listener thread of {} interrupted", bindAddress.getHostAddress());
+
+            for (SelectionKey key : selector.keys())
+                close(key);
+
+        } catch (IOException e) {
+            LOGGER.error("Selector listener failed", e);
+        } finally {
+            bufferPool.release(payload);
+        }
+
+    }
+
+    /**
+     * Queues a bind for every port of a minute. A port that is still bound, or still waiting to be bound,
+     * for the previous minute has its deadline extended instead.
+     *
+     * @param selector The selector the bound channels are registered with
+     * @param pending  The pending binds
+     * @param minute   The unix time in minutes
+     * @param now      The current time in milliseconds
+     */
+    private void queueMinute(Selector selector, List<PendingBind> pending, long minute, long now) {
+
+        LOGGER.debug("Binding the ports of minute {} on {}: {}", minute, bindAddress.getHostAddress(),
+                portSchedule.getSequence(minute));
+
+        long deadline = TimeUnit.MINUTES.toMillis(minute + 1) + settings.getGracePeriod();
+
+        for (int offset = 0; offset < portSchedule.getPortCount(); offset++) {
+
+            int port = portSchedule.getSequence(minute).get(offset);
+
+            if (extend(selector, pending, port, deadline)) {
+                LOGGER.debug("Port {} of minute {} on {} is still bound from the previous minute", port, minute,
+                        bindAddress.getHostAddress());
+                continue;
+            }
+
+            pending.add(new PendingBind(minute, port, deadline, now));
+
+        }
+
+    }
+
+    /**
+     * Attempts the pending binds that are due. A failed bind is retried with an increasing delay
+     * until it succeeds or the port is no longer needed.
+     *
+     * @param selector The selector to register the channels with
+     * @param pending  The pending binds
+     * @param now      The current time in milliseconds
+     * @return The time of the next attempt, or {@link Long#MAX_VALUE} if no bind is pending
+     */
+    private long bindPending(Selector selector, List<PendingBind> pending, long now) {
+
+        long wakeup = Long.MAX_VALUE;
+        Iterator<PendingBind> iterator = pending.iterator();
+
+        while (iterator.hasNext()) {
+
+            PendingBind bind = iterator.next();
+
+            if (bind.deadline <= now) {
+                LOGGER.warn("Giving up binding port {} on {} for minute {}", bind.port, bindAddress.getHostAddress(), bind.minute);
+                iterator.remove();
+                continue;
+            }
+
+            if (bind.nextAttempt > now) {
+                wakeup = Math.min(wakeup, bind.nextAttempt);
+                continue;
+            }
+
+            InetSocketAddress address = new InetSocketAddress(bindAddress, bind.port);
+
+            try {
+
+                DatagramChannel channel = ListenerSockets.openChannel(address, reusePort, settings, false);
+
+                try {
+                    channel.register(selector, SelectionKey.OP_READ, new Binding(bind.minute, bind.port, bind.deadline, channel.getLocalAddress()));
+                } catch (IOException e) {
+                    channel.close();
+                    throw e;
+                }
+
+                LOGGER.debug("Listening on {} until {}", channel.getLocalAddress(), bind.deadline);
+                iterator.remove();
+
+            } catch (IOException e) {
+
+                // Usually the port is taken, possibly by the channel of the previous minute during its grace period
+                if (bind.backoff == ListenerSockets.INITIAL_BIND_BACKOFF)
+                    LOGGER.warn("Failed to bind " + address + " for minute " + bind.minute + ", retrying", e);
+                else
+                    LOGGER.debug("Failed to bind {} for minute {}, retrying in {} ms", address, bind.minute, bind.backoff);
+
+                bind.nextAttempt = now + bind.backoff;
+                bind.backoff = Math.min(bind.backoff * 2, ListenerSockets.MAX_BIND_BACKOFF);
+                wakeup = Math.min(wakeup, bind.nextAttempt);
+
+            }
+
+        }
+
+        return wakeup;
+
+    }
+
+    /**
+     * Extends the deadline of the channel, or the pending bind, of a port
+     *
+     * @param selector The selector the bound channels are registered with
+     * @param pending  The pending binds
+     * @param port     The port
+     * @param deadline The new deadline
+     * @return True if the port is bound or waiting to be bound
+     */
+    private static boolean extend(Selector selector, List<PendingBind> pending, int port, long deadline) {
+
+        for (SelectionKey key : selector.keys()) {
+
+            Binding binding = (Binding) key.attachment();
+
+            if (key.isValid() && binding.port == port) {
+                binding.deadline = deadline;
+                return true;
+            }
+
+        }
+
+        for (PendingBind bind : pending) {
+
+            if (bind.port == port) {
+                bind.deadline = deadline;
+                return true;
+            }
+
+        }
+
+        return false;
+
+    }
+
+    /**
+     * Closes the channels whose grace period has ended
+     *
+     * @param selector The selector
+     * @param now      The current time in milliseconds
+     * @return The time the next channel expires, or {@link Long#MAX_VALUE} if no channel is bound
+     */
+    private static long closeExpired(Selector selector, long now) {
+
+        long wakeup = Long.MAX_VALUE;
+
+        for (SelectionKey key : selector.keys()) {
+
+            if (!key.isValid())
+                continue;
+
+            Binding binding = (Binding) key.attachment();
+
+            if (binding.deadline <= now)
+                close(key);
+            else
+                wakeup = Math.min(wakeup, binding.deadline);
+
+        }
+
+        return wakeup;
+
+    }
+
+    /**
+     * Receives the datagrams queued on a channel, up to {@link SelectorKnockListener#MAX_RECEIVES_PER_SELECT}
+     *
+     * @param key     The selection key of the channel
+     * @param payload The receive buffer
+     * @param handler The datagram handler
+     */
+    private static void receive(SelectionKey key, ByteBuffer payload, KnockDatagramHandler handler) {
+
+        DatagramChannel channel = (DatagramChannel) key.channel();
+        Binding binding = (Binding) key.attachment();
+
+        try {
+
+            SocketAddress clientAddress;
+
+            payload.clear();
+
+            for (int i = 0; i < MAX_RECEIVES_PER_SELECT && (clientAddress = channel.receive(payload)) != null; i++) {
+
+                payload.flip();
+                handler.handle(payload, clientAddress, binding.localAddress, binding.minute);
+                payload.clear();
+
+            }
+
+        } catch (IOException e) {
+            LOGGER.debug("IO Exception", e);
+        }
+
+    }
+
+    /**
+     * Cancels a key and closes its channel
+     *
+     * @param key The key
+     */
+    private static void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            LOGGER.debug("IO Exception", e);
+        }
+    }
+
+    /**
+     * The minute, port and deadline of a bound channel
+     */
+    private static final class Binding {
+
+        private final long minute;
+        private final int port;
+        private long deadline;
+        private final SocketAddress localAddress;
+
+        Binding(long minute, int port, long deadline, SocketAddress localAddress) {
+            this.minute = minute;
+            this.port = port;
+            this.deadline = deadline;
+            this.localAddress = localAddress;
+        }
+
+    }
+
+    /**
+     * A port that still has to be bound
+     */
+    private static final class PendingBind {
+
+        private final long minute;
+        private final int port;
+        private long deadline;
+        private long nextAttempt;
+        private long backoff = ListenerSockets.INITIAL_BIND_BACKOFF;
+
+        PendingBind(long minute, int port, long deadline, long nextAttempt) {
+            this.minute = minute;
+            this.port = port;
+            this.deadline = deadline;
+            this.nextAttempt = nextAttempt;
+        }
+
+    }
+
+}
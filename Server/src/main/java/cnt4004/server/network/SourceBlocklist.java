@@ -0,0 +1,197 @@
+package cnt4004.server.network;
+
+import cnt4004.protocol.Clock;
+import cnt4004.protocol.FilterPipeline;
+import cnt4004.protocol.KnockPacketView;
+import cnt4004.protocol.PacketFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.SocketAddress;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Blocks source addresses, or their network prefix, that keep sending packets rejected by the filter pipeline.
+ * <p>
+ * Rejected packets are counted per prefix in a {@link CountMinSketch}, which is halved every
+ * {@link SourceBlocklist#DECAY_INTERVAL}. A prefix whose count reaches the threshold is promoted into a small
+ * {@link AddressTable} of blocked prefixes, and stays there until its block expires. Datagrams from a blocked
+ * prefix are dropped before they are parsed. Both the sketch and the table have a fixed size, so the memory
+ * used stays the same under a flood from spoofed source addresses. When the table is full, the block that
+ * expires first is replaced.
+ * <p>
+ * UDP source addresses can be spoofed, so a host could get another host blocked. Blocks expire, and only the
+ * stages that a legitimate client does not fail should count as offenses.
+ */
+public final class SourceBlocklist implements FilterPipeline.RejectListener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SourceBlocklist.class);
+
+    /**
+     * How often the counts of rejected packets are halved
+     */
+    static final long DECAY_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+
+    private static final int SKETCH_WIDTH = 1 << 14;
+
+    private final CountMinSketch sketch = new CountMinSketch(SKETCH_WIDTH);
+
+    /**
+     * The blocked prefixes
+     */
+    private final AddressTable blocked;
+
+    private final int threshold;
+    private final long duration;
+    private final int ipv4Prefix;
+    private final int ipv6Prefix;
+    private final int ipv4Mask;
+    private final long ipv6Mask;
+    private final Set<String> offenses;
+    private final Clock clock;
+
+    private final AtomicLong lastDecay;
+    private final LongAdder drops = new LongAdder();
+    private final LongAdder promotions = new LongAdder();
+
+    /**
+     * Creates a new blocklist
+     *
+     * @param threshold  The amount of rejected packets (halved every {@link SourceBlocklist#DECAY_INTERVAL})
+     *                   after which a prefix is blocked
+     * @param duration   The amount of milliseconds a prefix stays blocked
+     * @param size       The maximum amount of blocked prefixes, rounded up to a power of two
+     * @param ipv4Prefix The length of the prefix IPv4 sources are blocked by, from 0 to 32
+     * @param ipv6Prefix The length of the prefix IPv6 sources are blocked by, from 0 to 64
+     * @param offenses   The names of the filter stages whose rejects count as offenses
+     * @param clock      The clock that decides when blocks expire and counts are halved
+     * @throws IllegalArgumentException If a value is out of range
+     */
+    public SourceBlocklist(int threshold, long duration, int size, int ipv4Prefix, int ipv6Prefix, Set<String> offenses,
+                           Clock clock) {
+        if (threshold < 1)
+            throw new IllegalArgumentException("Threshold must be at least 1");
+
+        if (duration < 1)
+            throw new IllegalArgumentException("Duration must be at least 1 ms");
+
+        if (ipv4Prefix < 0 || ipv4Prefix > 32)
+            throw new IllegalArgumentException("IPv4 prefix must be between 0 and 32");
+
+        if (ipv6Prefix < 0 || ipv6Prefix > 64)
+            throw new IllegalArgumentException("IPv6 prefix must be between 0 and 64");
+
+        this.blocked = new AddressTable(size);
+        this.threshold = threshold;
+        this.duration = TimeUnit.MILLISECONDS.toNanos(duration);
+        this.ipv4Prefix = ipv4Prefix;
+        this.ipv6Prefix = ipv6Prefix;
+        this.ipv4Mask = ipv4Prefix == 0 ? 0 : -1 << (32 - ipv4Prefix);
+        this.ipv6Mask = ipv6Prefix == 0 ? 0 : -1L << (64 - ipv6Prefix);
+        this.offenses = Collections.unmodifiableSet(new HashSet<>(offenses));
+        this.clock = clock;
+        this.lastDecay = new AtomicLong(clock.nanos());
+    }
+
+    /**
+     * Determines if the source of a datagram is blocked. Called for every datagram, before it is parsed.
+     *
+     * @param source The source address of the datagram
+     * @return True if the datagram should be dropped
+     */
+    public boolean isBlocked(SocketAddress source) {
+        if (blocked.remaining(key(source), clock.nanos()) > 0) {
+            drops.increment();
+            return true;
+        }
+
+        return false;
+    }
+
+    @Override
+    public void rejected(PacketFilter stage, KnockPacketView packet) {
+        SocketAddress source = packet.getSource();
+
+        if (source == null || !offenses.contains(stage.getName()))
+            return;
+
+        long now = clock.nanos();
+        long last = lastDecay.get();
+
+        // Whichever thread notices first halves the counts
+        if (now - last >= DECAY_INTERVAL && lastDecay.compareAndSet(last, now))
+            sketch.decay();
+
+        long key = key(source);
+
+        if (sketch.add(key) >= threshold && blocked.remaining(key, now) == 0)
+            block(key, now, source);
+    }
+
+    /**
+     * Blocks a prefix
+     */
+    private void block(long key, long now, SocketAddress source) {
+        blocked.put(key, now + duration);
+        promotions.increment();
+
+        LOGGER.info("Blocking {} (from {}) for {} seconds after {} rejected packets", describe(key), source,
+                TimeUnit.NANOSECONDS.toSeconds(duration), threshold);
+    }
+
+    /**
+     * The amount of prefixes currently blocked
+     *
+     * @return The amount of active blocks
+     */
+    public int getBlockedCount() {
+        return blocked.count(clock.nanos());
+    }
+
+    /**
+     * The amount of times a prefix has been blocked
+     *
+     * @return The amount of blocks
+     */
+    public long getPromotions() {
+        return promotions.sum();
+    }
+
+    /**
+     * The amount of datagrams dropped because their source was blocked
+     *
+     * @return The amount of drops
+     */
+    public long getDrops() {
+        return drops.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "SourceBlocklist{" +
+                "blocked=" + getBlockedCount() +
+                ", promotions=" + getPromotions() +
+                ", drops=" + getDrops() +
+                '}';
+    }
+
+    private long key(SocketAddress source) {
+        return AddressTable.key(source, ipv4Mask, ipv6Mask);
+    }
+
+    private String describe(long key) {
+        if (key >>> 32 == 1) {
+            return ((key >>> 24) & 0xFF) + "." + ((key >>> 16) & 0xFF) + "." + ((key >>> 8) & 0xFF) + "." + (key & 0xFF)
+                    + "/" + ipv4Prefix;
+        }
+
+        return String.format("%x:%x:%x:%x::/%d", key >>> 48, (key >>> 32) & 0xFFFF, (key >>> 16) & 0xFFFF, key & 0xFFFF,
+                ipv6Prefix);
+    }
+
+}
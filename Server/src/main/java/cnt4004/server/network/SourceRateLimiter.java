@@ -0,0 +1,170 @@
+package cnt4004.server.network;
+
+import cnt4004.protocol.Clock;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the rate of datagrams admitted from each source address with a token bucket,
+ * before any datagram is decoded or its MAC is checked.
+ * <p>
+ * The buckets are kept in a fixed-size, set-associative table, so the memory used does not depend on the amount of
+ * sources. A source hashes to a set of {@link SourceRateLimiter#WAYS} buckets. A source that is not in its set
+ * replaces the bucket that has been idle the longest, starting with a full bucket. Admitting a datagram costs a hash,
+ * a short lock on the set, and a scan of the set.
+ */
+public final class SourceRateLimiter {
+
+    /**
+     * The amount of buckets in each set of the table
+     */
+    static final int WAYS = 4;
+
+    private final BucketSet[] sets;
+    private final int mask;
+    private final double tokensPerNano;
+    private final double burst;
+    private final Clock clock;
+    private final LongAdder drops = new LongAdder();
+
+    /**
+     * Creates a new rate limiter
+     *
+     * @param rate    The amount of datagrams admitted per second from each source, on average
+     * @param burst   The amount of datagrams a source can send at once after being idle
+     * @param sources The amount of sources to track, rounded up to a multiple of {@link SourceRateLimiter#WAYS}
+     *                that is a power of two
+     * @param clock   The clock that decides how many tokens are refilled
+     * @throws IllegalArgumentException If the rate is not positive, or the burst or sources are less than 1
+     */
+    public SourceRateLimiter(double rate, int burst, int sources, Clock clock) {
+        if (!(rate > 0))
+            throw new IllegalArgumentException("Rate must be positive");
+
+        if (burst < 1)
+            throw new IllegalArgumentException("Burst must be at least 1");
+
+        if (sources < 1 || sources > 1 << 30)
+            throw new IllegalArgumentException("Sources must be between 1 and 2^30");
+
+        int setCount = Integer.highestOneBit(Math.max(1, (sources + WAYS - 1) / WAYS));
+        if (setCount * WAYS < sources)
+            setCount <<= 1;
+
+        this.sets = new BucketSet[setCount];
+        this.mask = setCount - 1;
+        this.tokensPerNano = rate / TimeUnit.SECONDS.toNanos(1);
+        this.burst = burst;
+        this.clock = clock;
+
+        for (int i = 0; i < setCount; i++)
+            sets[i] = new BucketSet();
+    }
+
+    /**
+     * Takes a token from the bucket of the source of a datagram
+     *
+     * @param source The source address of the datagram
+     * @return True if the datagram is admitted, false if the source is over its rate and the datagram should be dropped
+     */
+    public boolean tryAcquire(SocketAddress source) {
+        InetAddress address = ((InetSocketAddress) source).getAddress();
+
+        // Spread the bits of the address hash, since IPv4 hashes are the address itself
+        int hash = address.hashCode() * 0x9E3779B9;
+        BucketSet set = sets[(hash ^ (hash >>> 16)) & mask];
+
+        boolean admitted;
+
+        long now = clock.nanos();
+
+        synchronized (set) {
+            admitted = set.tryAcquire(address, now);
+        }
+
+        if (!admitted)
+            drops.increment();
+
+        return admitted;
+    }
+
+    /**
+     * The amount of sources that can be tracked at once
+     *
+     * @return The capacity of the table
+     */
+    public int capacity() {
+        return sets.length * WAYS;
+    }
+
+    /**
+     * The amount of datagrams dropped because their source was over its rate
+     *
+     * @return The amount of drops
+     */
+    public long getDrops() {
+        return drops.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "SourceRateLimiter{" +
+                "rate=" + tokensPerNano * TimeUnit.SECONDS.toNanos(1) +
+                ", burst=" + (long) burst +
+                ", sources=" + capacity() +
+                ", drops=" + getDrops() +
+                '}';
+    }
+
+    /**
+     * A set of buckets sharing a lock
+     */
+    private final class BucketSet {
+
+        private final InetAddress[] addresses = new InetAddress[WAYS];
+        private final double[] tokens = new double[WAYS];
+        private final long[] updated = new long[WAYS];
+
+        private boolean tryAcquire(InetAddress address, long now) {
+            int idlest = 0;
+
+            for (int i = 0; i < WAYS; i++) {
+
+                if (addresses[i] == null) {
+                    idlest = i;
+                    break;
+                }
+
+                if (addresses[i].equals(address)) {
+
+                    // Refill for the time since the last datagram, up to the burst size
+                    tokens[i] = Math.min(burst, tokens[i] + (now - updated[i]) * tokensPerNano);
+                    updated[i] = now;
+
+                    if (tokens[i] < 1)
+                        return false;
+
+                    tokens[i]--;
+                    return true;
+
+                }
+
+                if (updated[i] - updated[idlest] < 0)
+                    idlest = i;
+
+            }
+
+            // A new source evicts the bucket that has been idle the longest, and starts with a full bucket
+            addresses[idlest] = address;
+            tokens[idlest] = burst - 1;
+            updated[idlest] = now;
+            return true;
+        }
+
+    }
+
+}
@@ -0,0 +1,85 @@
+package cnt4004.server.network;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reads the amount of datagrams the kernel dropped on UDP sockets, usually because the socket receive buffer
+ * was full. This is only available on Linux, where the counters are exposed in {@code /proc/net/udp}
+ * and {@code /proc/net/udp6}.
+ */
+public final class UdpDropStatistics {
+
+    private static final Path[] TABLES = {Paths.get("/proc/net/udp"), Paths.get("/proc/net/udp6")};
+
+    /**
+     * Column indexes of a socket entry
+     */
+    private static final int LOCAL_ADDRESS_COLUMN = 1;
+    private static final int DROPS_COLUMN = 12;
+
+    private UdpDropStatistics() {
+    }
+
+    /**
+     * Determines if kernel drop statistics can be read on this platform
+     *
+     * @return True if the statistics are available, false otherwise
+     */
+    public static boolean isAvailable() {
+        return Files.isReadable(TABLES[0]);
+    }
+
+    /**
+     * Reads the kernel drop counters of the sockets bound to some local ports.
+     * The counters of every socket bound to the same port (such as receive shards) are added together.
+     *
+     * @param ports The local ports
+     * @return The amount of dropped datagrams for each port that has at least one socket, ordered by port
+     * @throws IOException If the statistics could not be read
+     */
+    public static Map<Integer, Long> read(Collection<Integer> ports) throws IOException {
+        Map<Integer, Long> drops = new TreeMap<>();
+
+        for (Path table : TABLES) {
+
+            if (!Files.isReadable(table))
+                continue;
+
+            try (BufferedReader reader = Files.newBufferedReader(table)) {
+
+                // Skip the header
+                String line = reader.readLine();
+
+                while ((line = reader.readLine()) != null) {
+
+                    String[] columns = line.trim().split("\\s+");
+
+                    if (columns.length <= DROPS_COLUMN)
+                        continue;
+
+                    // The local address is formatted as <hex address>:<hex port>
+                    String localAddress = columns[LOCAL_ADDRESS_COLUMN];
+                    int port = Integer.parseInt(localAddress.substring(localAddress.indexOf(':') + 1), 16);
+
+                    if (ports.contains(port))
+                        drops.merge(port, Long.parseLong(columns[DROPS_COLUMN]), Long::sum);
+
+                }
+
+            } catch (NumberFormatException e) {
+                throw new IOException("Unexpected format of " + table, e);
+            }
+
+        }
+
+        return drops;
+    }
+
+}
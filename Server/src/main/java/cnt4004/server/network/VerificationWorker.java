@@ -0,0 +1,216 @@
+package cnt4004.server.network;
+
+import cnt4004.protocol.KnockPacketView;
+import cnt4004.protocol.ProtocolMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * A worker of the verification stage. Listeners copy received datagrams into the queue of a worker and go back to
+ * receiving, and the worker runs them through the {@link ProtocolMap#getPipeline() filter pipeline}, including the
+ * MAC check, on its own thread. Verified packets are passed on to the {@link ConsumerShard} of their client.
+ * Like the queue of a shard, the queue of a worker has a {@link PriorityRing priority lane}.
+ */
+public final class VerificationWorker implements Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(VerificationWorker.class);
+
+    /**
+     * The maximum amount of datagrams verified before the drained slots are handed back to the listeners
+     */
+    private static final int BATCH_SIZE = 64;
+
+    private final int index;
+    private final PacketConsumer packetConsumer;
+    private final int datagramSize;
+
+    /**
+     * Ring of datagrams waiting to be verified. The slots are allocated once, up front.
+     */
+    private final PriorityRing<ReceivedDatagram> ring;
+
+    private final KnockPacketView view = new KnockPacketView();
+
+    private final Consumer<ReceivedDatagram> datagramHandler = datagram -> {
+        try {
+            verify(datagram);
+        } catch (RuntimeException e) {
+            // A datagram that cannot be verified must not stop the worker, and every listener queueing to it
+            LOGGER.error("Failed to verify a datagram from " + datagram.clientAddress, e);
+        } finally {
+            datagram.clear();
+        }
+    };
+
+    private final LongAdder oversized = new LongAdder();
+
+    /* Statistics, only written by the worker's thread */
+    private volatile long processed;
+    private volatile long verified;
+
+    /**
+     * Creates a new verification worker
+     *
+     * @param index          The index of the worker
+     * @param packetConsumer The consumer to pass verified packets to
+     * @param settings       The listener settings, which configure the queue of the worker
+     */
+    VerificationWorker(int index, PacketConsumer packetConsumer, ListenerSettings settings) {
+        this.index = index;
+        this.packetConsumer = packetConsumer;
+        this.datagramSize = settings.getDatagramSize();
+        this.ring = new PriorityRing<>(settings.getQueueCapacity(),
+                packetConsumer.getPrioritySources() != null ? settings.getPriorityQueueCapacity() : 0,
+                settings.getWaitStrategy(), () -> new ReceivedDatagram(settings.getDatagramSize()));
+    }
+
+    /**
+     * Copies a received datagram into the queue of this worker. This method drops the datagram if the queue is full,
+     * or if it is larger than the datagram size.
+     *
+     * @param payload       The datagram payload, from its position to its limit
+     * @param clientAddress The source address of the datagram
+     * @param localAddress  The local address the datagram was received on
+     * @param minute        The unix time in minutes of the schedule the local port belongs to
+     * @param prioritized   True to queue the datagram in the priority lane
+     */
+    void queueDatagram(ByteBuffer payload, SocketAddress clientAddress, SocketAddress localAddress, long minute,
+                       boolean prioritized) {
+        // A claimed slot must always be published, or the consumer would wait on it forever
+        if (payload.remaining() > datagramSize) {
+            oversized.increment();
+            return;
+        }
+
+        PacketRing<ReceivedDatagram> lane = ring.lane(prioritized);
+        long sequence = lane.claim();
+
+        if (sequence >= 0) {
+            lane.slot(sequence).set(payload, clientAddress, localAddress, minute);
+            lane.publish(sequence);
+        }
+    }
+
+    @Override
+    public void run() {
+
+        LOGGER.info("Verification worker {} started", index);
+
+        try {
+
+            //noinspection InfiniteLoopStatement
+            while (true) {
+
+                ring.await();
+                processed += ring.drain(datagramHandler, BATCH_SIZE);
+
+            }
+
+        } catch (InterruptedException e) {
+            LOGGER.info("Verification worker {} interrupted", index);
+        }
+
+    }
+
+    private void verify(ReceivedDatagram datagram) {
+
+        // Only verified packets are queued for further processing
+        if (ProtocolMap.decode(datagram.payload, datagram.clientAddress, view)) {
+
+            verified++;
+            packetConsumer.queuePacket(view, datagram.clientAddress, datagram.localAddress, datagram.minute);
+
+        }
+
+    }
+
+    /**
+     * The index of this worker
+     *
+     * @return The worker index
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * The amount of datagrams processed by this worker
+     *
+     * @return The amount of processed datagrams
+     */
+    public long getProcessed() {
+        return processed;
+    }
+
+    /**
+     * The amount of datagrams that were authentic Knock packets
+     *
+     * @return The amount of verified packets
+     */
+    public long getVerified() {
+        return verified;
+    }
+
+    /**
+     * The amount of datagrams waiting in both lanes of the queue of this worker
+     *
+     * @return The queue occupancy
+     */
+    public int getQueued() {
+        return ring.size();
+    }
+
+    /**
+     * The capacity of both lanes of the queue of this worker
+     *
+     * @return The queue capacity
+     */
+    public int getQueueCapacity() {
+        return ring.capacity();
+    }
+
+    /**
+     * The amount of datagrams dropped because they were larger than the datagram size
+     *
+     * @return The amount of oversized datagrams
+     */
+    public long getOversized() {
+        return oversized.sum();
+    }
+
+    /**
+     * The amount of datagrams dropped because a lane of the queue of this worker was full, or because they were
+     * oversized
+     *
+     * @return The amount of drops
+     */
+    public long getDrops() {
+        return ring.getPriorityDrops() + ring.getBestEffortDrops() + oversized.sum();
+    }
+
+    /**
+     * The amount of datagrams dropped because the priority lane of the queue of this worker was full
+     *
+     * @return The amount of drops
+     */
+    public long getPriorityDrops() {
+        return ring.getPriorityDrops();
+    }
+
+    @Override
+    public String toString() {
+        return "VerificationWorker{" +
+                "index=" + index +
+                ", processed=" + processed +
+                ", verified=" + verified +
+                ", queue={" + ring + "}" +
+                ", oversized=" + getOversized() +
+                '}';
+    }
+
+}
@@ -0,0 +1,152 @@
+package cnt4004.server.network;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * How the {@link PacketConsumer} waits for packets when the {@link PacketRing} is empty,
+ * selected with the {@code queue-wait-strategy} setting
+ */
+public enum WaitStrategy {
+
+    /**
+     * Sleeps on a condition until a listener publishes a packet.
+     * Uses no CPU while idle, but a listener takes a lock to wake the consumer up.
+     */
+    BLOCK {
+        @Override
+        Waiter newWaiter() {
+            return new BlockingWaiter();
+        }
+    },
+
+    /**
+     * Busy-spins on the ring. Has the lowest latency, but keeps a core busy at all times.
+     */
+    SPIN {
+        @Override
+        Waiter newWaiter() {
+            return available -> {
+                while (!available.getAsBoolean()) {
+                    if (Thread.interrupted())
+                        throw new InterruptedException();
+
+                    Thread.onSpinWait();
+                }
+            };
+        }
+    },
+
+    /**
+     * Polls the ring, parking for a short time between polls. Listeners never have to wake the consumer up,
+     * at the cost of up to {@link WaitStrategy#PARK_NANOS} of added latency.
+     */
+    PARK {
+        @Override
+        Waiter newWaiter() {
+            return available -> {
+                while (!available.getAsBoolean()) {
+                    LockSupport.parkNanos(PARK_NANOS);
+
+                    if (Thread.interrupted())
+                        throw new InterruptedException();
+                }
+            };
+        }
+    };
+
+    /**
+     * The time the {@link WaitStrategy#PARK} strategy parks for between polls
+     */
+    static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    /**
+     * Creates the waiter used by a single ring
+     *
+     * @return A new waiter
+     */
+    abstract Waiter newWaiter();
+
+    /**
+     * Parses the name of a wait strategy, ignoring case
+     *
+     * @param name The name, such as "block", "spin" or "park"
+     * @return The wait strategy
+     * @throws IllegalArgumentException If there is no wait strategy with the name
+     */
+    public static WaitStrategy fromName(String name) {
+        return valueOf(name.trim().toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * Waits on behalf of the consumer of a ring, and is signalled by its producers
+     */
+    interface Waiter {
+
+        /**
+         * Waits until the condition is true. Only called by the consumer.
+         *
+         * @param available The condition, true once a packet is available
+         * @throws InterruptedException If the consumer is interrupted while waiting
+         */
+        void await(BooleanSupplier available) throws InterruptedException;
+
+        /**
+         * Wakes up the consumer if it is waiting. Called by producers after publishing.
+         */
+        default void signal() {
+        }
+
+    }
+
+    /**
+     * Waiter of the {@link WaitStrategy#BLOCK} strategy. Producers only take the lock
+     * while the consumer is actually waiting.
+     */
+    private static final class BlockingWaiter implements Waiter {
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition published = lock.newCondition();
+        private volatile boolean waiting;
+
+        @Override
+        public void await(BooleanSupplier available) throws InterruptedException {
+            if (available.getAsBoolean())
+                return;
+
+            lock.lock();
+            try {
+
+                // The condition is checked again after announcing the wait, so a packet published
+                // in between is either seen here or the producer sees the consumer waiting
+                waiting = true;
+
+                while (!available.getAsBoolean())
+                    published.await();
+
+            } finally {
+                waiting = false;
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void signal() {
+            if (!waiting)
+                return;
+
+            lock.lock();
+            try {
+                published.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,82 @@
+package cnt4004.server.network;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+
+public class AddressTableTest {
+
+    @Test
+    public void testPutAndExpire() {
+
+        AddressTable table = new AddressTable(16);
+
+        table.put(1, 1000);
+        table.put(2, 2000);
+
+        Assert.assertEquals(600, table.remaining(1, 400));
+        Assert.assertEquals(0, table.remaining(3, 400));
+        Assert.assertEquals(2, table.count(400));
+
+        Assert.assertEquals(0, table.remaining(1, 1000));
+        Assert.assertEquals(1, table.count(1000));
+
+        // Putting a key again replaces its entry
+        table.put(1, 3000);
+        Assert.assertEquals(2000, table.remaining(1, 1000));
+        Assert.assertEquals(2, table.count(1000));
+
+    }
+
+    @Test
+    public void testFullProbeSequenceReplacesFirstToExpire() {
+
+        // The smallest table has 8 slots, the length of a probe sequence, so every key probes all of them
+        AddressTable table = new AddressTable(1);
+
+        for (long key = 1; key <= 8; key++)
+            table.put(key, key == 5 ? 50 : 100 + key);
+
+        Assert.assertEquals(8, table.count(0));
+
+        table.put(9, 500);
+
+        Assert.assertEquals(8, table.count(0));
+        Assert.assertEquals(500, table.remaining(9, 0));
+        Assert.assertEquals(0, table.remaining(5, 0));
+
+        for (long key = 1; key <= 8; key++) {
+            if (key != 5)
+                Assert.assertEquals(100 + key, table.remaining(key, 0));
+        }
+
+    }
+
+    @Test
+    public void testKeyMasksPrefix() {
+
+        int ipv4Mask = 0xFFFFFF00;
+        long ipv6Mask = 0xFFFFFFFFFFFFFFFFL;
+
+        Assert.assertEquals(AddressTable.key(new InetSocketAddress("10.0.0.1", 1), ipv4Mask, ipv6Mask),
+                AddressTable.key(new InetSocketAddress("10.0.0.254", 2), ipv4Mask, ipv6Mask));
+        Assert.assertNotEquals(AddressTable.key(new InetSocketAddress("10.0.0.1", 1), ipv4Mask, ipv6Mask),
+                AddressTable.key(new InetSocketAddress("10.0.1.1", 1), ipv4Mask, ipv6Mask));
+
+        Assert.assertEquals(AddressTable.key(new InetSocketAddress("2001:db8::1", 1), ipv4Mask, ipv6Mask),
+                AddressTable.key(new InetSocketAddress("2001:db8::ffff:1", 1), ipv4Mask, ipv6Mask));
+
+        // IPv4 keys never collide with IPv6 ones, and no key is the empty slot
+        Assert.assertNotEquals(AddressTable.key(new InetSocketAddress("0.0.0.0", 1), ipv4Mask, ipv6Mask),
+                AddressTable.key(new InetSocketAddress("::", 1), ipv4Mask, ipv6Mask));
+        Assert.assertNotEquals(0, AddressTable.key(new InetSocketAddress("::", 1), ipv4Mask, ipv6Mask));
+
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSize() {
+        new AddressTable(0);
+    }
+
+}
@@ -0,0 +1,128 @@
+package cnt4004.server.network;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class ConsumerShardTest {
+
+    private TestServer server;
+
+    @Before
+    public void setup() throws Exception {
+        server = new TestServer(System.currentTimeMillis(), 3);
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        server.close();
+    }
+
+    @Test(timeout = 10000)
+    public void testInvalidSequenceIsDiscarded() throws Exception {
+
+        long minute = server.clock.currentMinute();
+        int[] ports = server.portSchedule.getSequence(minute).toArray();
+
+        // Authentic packets whose sequence IDs would index outside the session arrays
+        server.queue(server.knock(1, 5, 2), ports[0], minute);
+        server.queue(server.knock(2, -1, 2), ports[0], minute);
+        server.queue(server.knock(3, 0, -1), ports[0], minute);
+        server.queue(server.knock(4, 0, 3), ports[0], minute);
+
+        // The consumer is still processing the packets that follow
+        for (int i = 0; i < ports.length; i++)
+            server.queue(server.knock(10 + i, i, ports.length - 1), ports[i], minute);
+
+        server.awaitOpened(1);
+
+        Assert.assertEquals(1, server.opened.get());
+
+    }
+
+    @Test(timeout = 10000)
+    public void testSharedPortResolvesMinute() throws Exception {
+
+        server.close();
+
+        // The previous and the current minute share a port
+        long minute = TestServer.sharedMinute(3);
+        server = new TestServer(TimeUnit.MINUTES.toMillis(minute + 1) + 1000, 3);
+
+        int shared = TestServer.sharedPort(minute, 3);
+        int[] ports = server.portSchedule.getSequence(minute + 1).toArray();
+
+        // A knock of the previous minute starts a session that the current minute's sequence replaces
+        int previous = server.portSchedule.getSequence(minute).get(0);
+        server.queue(server.knock(1, 0, 2), previous, minute);
+
+        // The listener of the shared port is kept from the previous minute, and tags its packets with it
+        for (int i = 0; i < ports.length; i++) {
+            long tag = ports[i] == shared ? minute : minute + 1;
+            server.queue(server.knock(10 + i, i, ports.length - 1), ports[i], tag);
+        }
+
+        server.awaitOpened(1);
+
+        Assert.assertEquals(1, server.opened.get());
+
+    }
+
+    @Test(timeout = 10000)
+    public void testVerificationWorker() throws Exception {
+
+        server.close();
+        server = new TestServer(System.currentTimeMillis(), 3, 1);
+
+        long minute = server.clock.currentMinute();
+        int[] ports = server.portSchedule.getSequence(minute).toArray();
+
+        // A datagram that is not authentic is dropped by the worker
+        server.queueDatagram(new byte[64], ports[0], minute);
+
+        for (int i = 0; i < ports.length; i++)
+            server.queueDatagram(server.datagram(10 + i, i, ports.length - 1), ports[i], minute);
+
+        server.awaitOpened(1);
+
+        VerificationWorker worker = server.packetConsumer.getVerificationWorkers().get(0);
+
+        // The statistics of a batch are published after the shard has been handed its packets
+        while (worker.getProcessed() < 4)
+            Thread.sleep(1);
+
+        Assert.assertEquals(1, server.opened.get());
+        Assert.assertEquals(3, worker.getVerified());
+
+    }
+
+    @Test(timeout = 10000)
+    public void testOversizedDatagramIsDropped() throws Exception {
+
+        server.close();
+        server = new TestServer(System.currentTimeMillis(), 3, 1);
+
+        long minute = server.clock.currentMinute();
+        int[] ports = server.portSchedule.getSequence(minute).toArray();
+
+        // Larger than a slot of the worker's queue, so it is dropped before a slot is claimed
+        server.queueDatagram(new byte[server.settings.getDatagramSize() + 1], ports[0], minute);
+
+        // The worker is still verifying the datagrams that follow
+        for (int i = 0; i < ports.length; i++)
+            server.queueDatagram(server.datagram(10 + i, i, ports.length - 1), ports[i], minute);
+
+        server.awaitOpened(1);
+
+        VerificationWorker worker = server.packetConsumer.getVerificationWorkers().get(0);
+
+        Assert.assertEquals(1, server.opened.get());
+        Assert.assertEquals(1, worker.getOversized());
+        Assert.assertEquals(1, worker.getDrops());
+
+    }
+
+}
@@ -0,0 +1,66 @@
+package cnt4004.server.network;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CountMinSketchTest {
+
+    @Test
+    public void testEstimateNeverTooLow() {
+
+        CountMinSketch sketch = new CountMinSketch(64);
+
+        // Many more keys than counters, so collisions are certain
+        for (long key = 1; key <= 1000; key++) {
+            for (int i = 0; i < key % 7; i++)
+                sketch.add(key);
+        }
+
+        for (long key = 1; key <= 1000; key++)
+            Assert.assertTrue("Estimate of " + key + " is too low", sketch.estimate(key) >= key % 7);
+
+    }
+
+    @Test
+    public void testAddReturnsEstimate() {
+
+        CountMinSketch sketch = new CountMinSketch(1 << 14);
+
+        for (int i = 1; i <= 10; i++)
+            Assert.assertEquals(i, sketch.add(42));
+
+        Assert.assertEquals(10, sketch.estimate(42));
+        Assert.assertEquals(0, sketch.estimate(43));
+
+    }
+
+    @Test
+    public void testDecay() {
+
+        CountMinSketch sketch = new CountMinSketch(1 << 14);
+
+        for (int i = 0; i < 9; i++)
+            sketch.add(42);
+
+        sketch.decay();
+        Assert.assertEquals(4, sketch.estimate(42));
+
+        sketch.decay();
+        sketch.decay();
+        sketch.decay();
+        Assert.assertEquals(0, sketch.estimate(42));
+
+    }
+
+    @Test
+    public void testWidthRoundedUp() {
+        Assert.assertEquals(128, new CountMinSketch(100).width());
+        Assert.assertEquals(1, new CountMinSketch(1).width());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidWidth() {
+        new CountMinSketch(0);
+    }
+
+}
@@ -0,0 +1,109 @@
+package cnt4004.server.network;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+public class DatagramCaptureTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRoundTrip() throws IOException {
+
+        Path path = folder.getRoot().toPath().resolve("capture.bin");
+        InetSocketAddress[] sources = {new InetSocketAddress("10.0.0.1", 50000), new InetSocketAddress("2001:db8::1", 65535)};
+
+        long before = System.currentTimeMillis();
+
+        // More than the write buffer holds, so the capture is flushed in the middle
+        try (DatagramCapture capture = new DatagramCapture(path)) {
+
+            for (int i = 0; i < 1000; i++) {
+                ByteBuffer payload = ByteBuffer.wrap(payload(i));
+                capture.append(payload, sources[i % 2], new InetSocketAddress(40000 + i), 1000 + i);
+
+                Assert.assertEquals(0, payload.position());
+            }
+
+            Assert.assertEquals(1000, capture.getCaptured());
+
+        }
+
+        try (DatagramCapture.Reader reader = new DatagramCapture.Reader(path)) {
+
+            Assert.assertTrue(reader.getStartMillis() >= before);
+
+            long offset = 0;
+
+            for (int i = 0; i < 1000; i++) {
+                Assert.assertTrue(reader.next());
+
+                Assert.assertTrue(reader.getOffsetNanos() >= offset);
+                offset = reader.getOffsetNanos();
+
+                Assert.assertEquals(1000 + i, reader.getMinute());
+                Assert.assertEquals(sources[i % 2], reader.getClientAddress());
+                Assert.assertEquals(40000 + i, reader.getLocalAddress().getPort());
+
+                ByteBuffer payload = reader.getPayload();
+                byte[] bytes = new byte[payload.remaining()];
+                payload.get(bytes);
+                Assert.assertArrayEquals(payload(i), bytes);
+            }
+
+            Assert.assertFalse(reader.next());
+
+        }
+
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotACapture() throws IOException {
+        Path path = folder.newFile().toPath();
+        Files.write(path, new byte[]{'K', 'N', 'O', 'C', 0, 1, 0, 0, 0, 0, 0, 0, 0, 0});
+
+        new DatagramCapture.Reader(path).close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedCapture() throws IOException {
+
+        Path path = folder.getRoot().toPath().resolve("capture.bin");
+
+        try (DatagramCapture capture = new DatagramCapture(path)) {
+            capture.append(ByteBuffer.wrap(payload(1)), new InetSocketAddress("10.0.0.1", 50000),
+                    new InetSocketAddress(40000), 1000);
+        }
+
+        byte[] bytes = Files.readAllBytes(path);
+        Files.write(path, Arrays.copyOf(bytes, bytes.length - 1));
+
+        try (DatagramCapture.Reader reader = new DatagramCapture.Reader(path)) {
+            reader.next();
+        }
+
+    }
+
+    /**
+     * A payload of 200 to 399 bytes that differs for every datagram
+     */
+    private static byte[] payload(int i) {
+        byte[] payload = new byte[200 + i % 200];
+
+        for (int j = 0; j < payload.length; j++)
+            payload[j] = (byte) (i * 31 + j);
+
+        return payload;
+    }
+
+}
@@ -0,0 +1,66 @@
+package cnt4004.server.network;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+
+public class KnockPortRotationTest {
+
+    @Test(timeout = 30000)
+    public void testRolloverKeepsSharedPort() throws Exception {
+
+        long minute = TestServer.sharedMinute(3);
+        long next = TimeUnit.MINUTES.toMillis(minute + 1);
+
+        try (TestServer server = new TestServer(TimeUnit.MINUTES.toMillis(minute) + 10_000, 3)) {
+
+            int shared = TestServer.sharedPort(minute, 3);
+            int[] previous = server.portSchedule.getSequence(minute).toArray();
+            int[] ports = server.portSchedule.getSequence(minute + 1).toArray();
+
+            server.executor.execute(new KnockPortRotation(server.executor, server.packetConsumer,
+                    server.portSchedule, server.settings, InetAddress.getLoopbackAddress()));
+
+            for (int port : previous)
+                awaitBound(port, true);
+
+            // The next minute has started, and the grace period of the previous minute has not ended yet
+            server.clock.setMillis(next + 1000);
+
+            for (int port : ports)
+                awaitBound(port, true);
+
+            try (DatagramChannel channel = DatagramChannel.open()) {
+                for (int i = 0; i < ports.length; i++) {
+                    channel.send(ByteBuffer.wrap(server.datagram(10 + i, i, ports.length - 1)),
+                            TestServer.local(ports[i]));
+                }
+            }
+
+            server.awaitOpened(1);
+            Assert.assertEquals(1, server.opened.get());
+
+            // Only the ports of the previous minute that are not shared are closed after the grace period
+            server.clock.setMillis(next + server.settings.getGracePeriod() + 1000);
+
+            for (int port : previous) {
+                if (server.portSchedule.getSequence(minute + 1).indexOf(port) < 0)
+                    awaitBound(port, false);
+            }
+
+            Assert.assertTrue("Shared port was closed", TestServer.isBound(shared));
+
+        }
+
+    }
+
+    private static void awaitBound(int port, boolean bound) throws InterruptedException {
+        while (TestServer.isBound(port) != bound)
+            Thread.sleep(10);
+    }
+
+}
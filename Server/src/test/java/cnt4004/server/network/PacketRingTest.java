@@ -0,0 +1,183 @@
+package cnt4004.server.network;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class PacketRingTest {
+
+    @Test
+    public void testCapacityRoundedUp() {
+        Assert.assertEquals(8, new PacketRing<>(5, WaitStrategy.BLOCK, () -> new long[1]).capacity());
+        Assert.assertEquals(1, new PacketRing<>(1, WaitStrategy.BLOCK, () -> new long[1]).capacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCapacity() {
+        new PacketRing<>(0, WaitStrategy.BLOCK, () -> new long[1]);
+    }
+
+    @Test
+    public void testWraparound() {
+
+        PacketRing<long[]> ring = new PacketRing<>(4, WaitStrategy.BLOCK, () -> new long[1]);
+        List<Long> drained = new ArrayList<>();
+        long next = 0;
+
+        // Three slots at a time, so every round starts at a different index
+        for (int round = 0; round < 10; round++) {
+
+            for (int i = 0; i < 3; i++)
+                publish(ring, next++);
+
+            Assert.assertEquals(3, ring.size());
+            Assert.assertEquals(2, ring.drain(slot -> drained.add(slot[0]), 2));
+            Assert.assertEquals(1, ring.drain(slot -> drained.add(slot[0]), 64));
+            Assert.assertEquals(0, ring.drain(slot -> drained.add(slot[0]), 64));
+
+        }
+
+        Assert.assertEquals(30, drained.size());
+
+        for (int i = 0; i < drained.size(); i++)
+            Assert.assertEquals(i, (long) drained.get(i));
+
+        Assert.assertEquals(0, ring.getDrops());
+
+    }
+
+    @Test
+    public void testFullRingDrops() {
+
+        PacketRing<long[]> ring = new PacketRing<>(4, WaitStrategy.BLOCK, () -> new long[1]);
+
+        for (int i = 0; i < 4; i++)
+            publish(ring, i);
+
+        Assert.assertEquals(-1, ring.claim());
+        Assert.assertEquals(-1, ring.claim());
+        Assert.assertEquals(2, ring.getDrops());
+        Assert.assertEquals(4, ring.size());
+
+        // Draining hands the slots back
+        Assert.assertEquals(1, ring.drain(slot -> Assert.assertEquals(0, slot[0]), 1));
+        publish(ring, 4);
+        Assert.assertEquals(-1, ring.claim());
+
+        List<Long> drained = new ArrayList<>();
+        ring.drain(slot -> drained.add(slot[0]), 64);
+
+        Assert.assertEquals(4, drained.size());
+        Assert.assertEquals(4, (long) drained.get(3));
+        Assert.assertEquals(3, ring.getDrops());
+
+    }
+
+    @Test
+    public void testUnpublishedSlotBlocksDrain() {
+
+        PacketRing<long[]> ring = new PacketRing<>(4, WaitStrategy.BLOCK, () -> new long[1]);
+
+        long first = ring.claim();
+        publish(ring, 1);
+
+        // The second slot is published, but must not be drained before the first
+        Assert.assertEquals(0, ring.drain(slot -> Assert.fail(), 64));
+
+        ring.slot(first)[0] = 0;
+        ring.publish(first);
+
+        Assert.assertEquals(2, ring.drain(slot -> { }, 64));
+
+    }
+
+    @Test(timeout = 30000)
+    public void testProducersAndConsumer() throws Exception {
+        for (WaitStrategy waitStrategy : WaitStrategy.values())
+            producersAndConsumer(waitStrategy);
+    }
+
+    /**
+     * Several producers publish their own increasing values, retrying when the ring is full, while a single consumer
+     * drains them. Every value must be drained exactly once, in the order of its producer.
+     */
+    private static void producersAndConsumer(WaitStrategy waitStrategy) throws Exception {
+
+        int producers = 4;
+        int perProducer = 10_000;
+
+        PacketRing<long[]> ring = new PacketRing<>(64, waitStrategy, () -> new long[1]);
+        long[] expected = new long[producers];
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread consumer = new Thread(() -> {
+            int remaining = producers * perProducer;
+
+            try {
+                while (remaining > 0) {
+                    ring.await();
+                    remaining -= ring.drain(slot -> {
+                        int producer = (int) (slot[0] >>> 32);
+                        long value = slot[0] & 0xFFFFFFFFL;
+
+                        if (value != expected[producer])
+                            throw new AssertionError("Producer " + producer + ": expected " + expected[producer] + ", got " + value);
+
+                        expected[producer]++;
+                    }, 16);
+                }
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+
+        consumer.start();
+
+        List<Thread> threads = new ArrayList<>();
+
+        for (int p = 0; p < producers; p++) {
+            long id = (long) p << 32;
+
+            Thread producer = new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    long sequence;
+
+                    while ((sequence = ring.claim()) < 0)
+                        Thread.yield();
+
+                    ring.slot(sequence)[0] = id | i;
+                    ring.publish(sequence);
+                }
+            });
+
+            threads.add(producer);
+            producer.start();
+        }
+
+        for (Thread producer : threads)
+            producer.join();
+
+        consumer.join();
+
+        if (failure.get() != null)
+            throw new AssertionError(waitStrategy + " failed", failure.get());
+
+        for (int p = 0; p < producers; p++)
+            Assert.assertEquals(perProducer, expected[p]);
+
+        Assert.assertEquals(0, ring.size());
+
+    }
+
+    private static void publish(PacketRing<long[]> ring, long value) {
+        long sequence = ring.claim();
+        Assert.assertTrue("Ring is full", sequence >= 0);
+
+        ring.slot(sequence)[0] = value;
+        ring.publish(sequence);
+    }
+
+}
@@ -0,0 +1,97 @@
+package cnt4004.server.network;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class PriorityRingTest {
+
+    @Test
+    public void testPriorityLaneDrainedFirst() {
+
+        PriorityRing<long[]> ring = new PriorityRing<>(8, 4, WaitStrategy.BLOCK, () -> new long[1]);
+
+        publish(ring, false, 1);
+        publish(ring, false, 2);
+        publish(ring, true, 10);
+        publish(ring, true, 11);
+
+        List<Long> drained = new ArrayList<>();
+
+        // The priority lane takes the first part of the batch, the best-effort lane what is left
+        Assert.assertEquals(3, ring.drain(slot -> drained.add(slot[0]), 3));
+        Assert.assertEquals(1, ring.drain(slot -> drained.add(slot[0]), 3));
+
+        Assert.assertEquals(Arrays.asList(10L, 11L, 1L, 2L), drained);
+        Assert.assertEquals(0, ring.size());
+
+    }
+
+    @Test
+    public void testDropsPerLane() {
+
+        PriorityRing<long[]> ring = new PriorityRing<>(2, 2, WaitStrategy.BLOCK, () -> new long[1]);
+
+        for (int i = 0; i < 5; i++)
+            ring.lane(false).claim();
+
+        Assert.assertEquals(3, ring.getBestEffortDrops());
+        Assert.assertEquals(0, ring.getPriorityDrops());
+
+        // A flooded best-effort lane does not take the slots of the priority lane
+        publish(ring, true, 1);
+        publish(ring, true, 2);
+        Assert.assertEquals(-1, ring.lane(true).claim());
+
+        Assert.assertEquals(1, ring.getPriorityDrops());
+        Assert.assertEquals(4, ring.capacity());
+
+    }
+
+    @Test
+    public void testWithoutPriorityLane() {
+
+        PriorityRing<long[]> ring = new PriorityRing<>(4, 0, WaitStrategy.BLOCK, () -> new long[1]);
+
+        Assert.assertSame(ring.lane(false), ring.lane(true));
+        Assert.assertEquals(4, ring.capacity());
+        Assert.assertEquals(0, ring.getPriorityDrops());
+
+    }
+
+    @Test(timeout = 10000)
+    public void testEitherLaneWakesConsumer() throws Exception {
+
+        for (boolean prioritized : new boolean[]{false, true}) {
+
+            PriorityRing<long[]> ring = new PriorityRing<>(4, 4, WaitStrategy.BLOCK, () -> new long[1]);
+
+            Thread consumer = new Thread(() -> {
+                try {
+                    ring.await();
+                } catch (InterruptedException ignored) {
+                }
+            });
+
+            consumer.start();
+            Thread.sleep(50);
+            publish(ring, prioritized, 1);
+            consumer.join();
+
+        }
+
+    }
+
+    private static void publish(PriorityRing<long[]> ring, boolean prioritized, long value) {
+        PacketRing<long[]> lane = ring.lane(prioritized);
+        long sequence = lane.claim();
+        Assert.assertTrue("Lane is full", sequence >= 0);
+
+        lane.slot(sequence)[0] = value;
+        lane.publish(sequence);
+    }
+
+}
@@ -0,0 +1,139 @@
+package cnt4004.server.network;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class SelectorKnockListenerTest {
+
+    private TestServer server;
+
+    @After
+    public void cleanup() throws Exception {
+        if (server != null)
+            server.close();
+    }
+
+    @Test(timeout = 10000)
+    public void testKnockSequenceOverLoopback() throws Exception {
+
+        List<InetAddress> bindAddresses = Collections.singletonList(InetAddress.getLoopbackAddress());
+        start(System.currentTimeMillis(), bindAddresses);
+        knock(server.clock.currentMinute(), bindAddresses);
+
+        Assert.assertEquals(1, server.opened.get());
+
+    }
+
+    @Test(timeout = 10000)
+    public void testKnockSequenceSpansAddresses() throws Exception {
+
+        // Every address of 127.0.0.0/8 is a loopback address on Linux
+        List<InetAddress> bindAddresses = Arrays.asList(InetAddress.getByName("127.0.0.1"),
+                InetAddress.getByName("127.0.0.2"));
+        start(System.currentTimeMillis(), bindAddresses);
+        knock(server.clock.currentMinute(), bindAddresses);
+
+        Assert.assertEquals(1, server.opened.get());
+
+    }
+
+    @Test(timeout = 30000)
+    public void testRolloverKeepsSharedPort() throws Exception {
+
+        long minute = TestServer.sharedMinute(3);
+        long next = TimeUnit.MINUTES.toMillis(minute + 1);
+
+        start(TimeUnit.MINUTES.toMillis(minute) + 10_000, Collections.singletonList(InetAddress.getLoopbackAddress()));
+
+        int shared = TestServer.sharedPort(minute, 3);
+        int[] previous = server.portSchedule.getSequence(minute).toArray();
+        int[] ports = server.portSchedule.getSequence(minute + 1).toArray();
+
+        for (int port : previous)
+            awaitBound(port, true, shared);
+
+        // The next minute has started, and the grace period of the previous minute has not ended yet
+        server.clock.setMillis(next + 1000);
+
+        for (int port : ports)
+            awaitBound(port, true, shared);
+
+        knock(minute + 1, Collections.singletonList(InetAddress.getLoopbackAddress()));
+        Assert.assertEquals(1, server.opened.get());
+
+        // Only the ports of the previous minute that are not shared are closed after the grace period
+        server.clock.setMillis(next + server.settings.getGracePeriod() + 1000);
+
+        for (int port : previous) {
+            if (server.portSchedule.getSequence(minute + 1).indexOf(port) < 0)
+                awaitBound(port, false, shared);
+        }
+
+        Assert.assertTrue("Shared port was closed", TestServer.isBound(shared));
+
+    }
+
+    /**
+     * Starts a server with the selector engine, bound on each of the addresses
+     */
+    private void start(long millis, List<InetAddress> bindAddresses) throws Exception {
+        server = new TestServer(millis, 3, 0, bindAddresses);
+        server.executor.execute(ListenerEngine.SELECTOR.create(server.executor, server.packetConsumer,
+                server.portSchedule, server.settings));
+    }
+
+    /**
+     * Sends the knock sequence of a minute, each packet to the next of the addresses, again and again
+     * until the listeners have bound the ports and the service is opened
+     */
+    private void knock(long minute, List<InetAddress> addresses) throws Exception {
+
+        try (DatagramSocket socket = new DatagramSocket()) {
+
+            long nonce = 1;
+            int[] ports = server.portSchedule.getSequence(minute).toArray();
+
+            while (server.opened.get() == 0) {
+
+                for (int i = 0; i < ports.length; i++) {
+                    byte[] datagram = server.datagram(nonce++, i, ports.length - 1);
+                    InetSocketAddress target = new InetSocketAddress(addresses.get(i % addresses.size()), ports[i]);
+                    socket.send(new DatagramPacket(datagram, datagram.length, target));
+                }
+
+                Thread.sleep(50);
+
+            }
+
+        }
+
+    }
+
+    /**
+     * Waits until a port is bound or closed. The selector only reads the manual clock when it wakes up,
+     * so a datagram is sent to a port that stays bound on every attempt.
+     */
+    private static void awaitBound(int port, boolean bound, int wakePort) throws Exception {
+
+        try (DatagramSocket socket = new DatagramSocket()) {
+
+            while (TestServer.isBound(port) != bound) {
+                socket.send(new DatagramPacket(new byte[1], 1, TestServer.local(wakePort)));
+                Thread.sleep(10);
+            }
+
+        }
+
+    }
+
+}
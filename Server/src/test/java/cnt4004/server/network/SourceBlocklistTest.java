@@ -0,0 +1,130 @@
+package cnt4004.server.network;
+
+import cnt4004.protocol.KnockPacketView;
+import cnt4004.protocol.ManualClock;
+import cnt4004.protocol.PacketFilter;
+import cnt4004.protocol.PacketFilters;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+public class SourceBlocklistTest {
+
+    private final ManualClock clock = new ManualClock(0);
+    private final PacketFilter magic = PacketFilters.magic();
+    private final PacketFilter mac = PacketFilters.mac();
+
+    private final SourceBlocklist blocklist = new SourceBlocklist(3, 1000, 16, 24, 64,
+            new HashSet<>(Arrays.asList("magic", "length")), clock);
+
+    @Test
+    public void testPromotionAtThreshold() {
+
+        reject(magic, "10.0.0.1");
+        reject(magic, "10.0.0.2");
+        Assert.assertFalse(blocklist.isBlocked(source("10.0.0.1")));
+
+        // The third offense from the /24 blocks the whole prefix
+        reject(magic, "10.0.0.3");
+
+        Assert.assertTrue(blocklist.isBlocked(source("10.0.0.1")));
+        Assert.assertTrue(blocklist.isBlocked(source("10.0.0.200")));
+        Assert.assertFalse(blocklist.isBlocked(source("10.0.1.1")));
+
+        Assert.assertEquals(1, blocklist.getPromotions());
+        Assert.assertEquals(1, blocklist.getBlockedCount());
+        Assert.assertEquals(2, blocklist.getDrops());
+
+    }
+
+    @Test
+    public void testOnlyOffensesCount() {
+
+        for (int i = 0; i < 10; i++)
+            reject(mac, "10.0.0.1");
+
+        Assert.assertFalse(blocklist.isBlocked(source("10.0.0.1")));
+
+        // Rejects of packets without a source are ignored
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        for (int i = 0; i < 10; i++)
+            blocklist.rejected(magic, new KnockPacketView().wrap(buffer));
+
+        Assert.assertEquals(0, blocklist.getPromotions());
+
+    }
+
+    @Test
+    public void testExpiry() {
+
+        for (int i = 0; i < 3; i++)
+            reject(magic, "10.0.0.1");
+
+        clock.advance(999, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(blocklist.isBlocked(source("10.0.0.1")));
+
+        clock.advance(1, TimeUnit.MILLISECONDS);
+        Assert.assertFalse(blocklist.isBlocked(source("10.0.0.1")));
+        Assert.assertEquals(0, blocklist.getBlockedCount());
+
+    }
+
+    @Test
+    public void testDecay() {
+
+        reject(magic, "10.0.0.1");
+        reject(magic, "10.0.0.1");
+
+        // The counts are halved before the next offense is counted, so it stays under the threshold
+        clock.advance(SourceBlocklist.DECAY_INTERVAL, TimeUnit.NANOSECONDS);
+        reject(magic, "10.0.0.1");
+        Assert.assertFalse(blocklist.isBlocked(source("10.0.0.1")));
+
+        reject(magic, "10.0.0.1");
+        Assert.assertTrue(blocklist.isBlocked(source("10.0.0.1")));
+
+    }
+
+    @Test
+    public void testIpv6Prefix() {
+
+        for (int i = 0; i < 3; i++)
+            reject(magic, "2001:db8::" + (i + 1));
+
+        Assert.assertTrue(blocklist.isBlocked(source("2001:db8::ffff:1")));
+        Assert.assertFalse(blocklist.isBlocked(source("2001:db8:0:1::1")));
+
+        // IPv4 and IPv6 keys do not collide
+        Assert.assertFalse(blocklist.isBlocked(source("0.0.0.0")));
+
+    }
+
+    @Test
+    public void testDefaultStages() {
+        ListenerSettings settings = new ListenerSettings(InetAddress.getLoopbackAddress());
+        Assert.assertEquals(0, settings.getBlocklistThreshold());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("client", "mac")), settings.getBlocklistStages());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownStageRejected() {
+        new ListenerSettings(InetAddress.getLoopbackAddress())
+                .setBlocklistStages(new HashSet<>(Arrays.asList("mac", "macs")));
+    }
+
+    private void reject(PacketFilter stage, String host) {
+        blocklist.rejected(stage, new KnockPacketView().wrap(ByteBuffer.allocate(4), source(host)));
+    }
+
+    private static SocketAddress source(String host) {
+        return new InetSocketAddress(host, 50000);
+    }
+
+}
@@ -0,0 +1,98 @@
+package cnt4004.server.network;
+
+import cnt4004.protocol.ManualClock;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.TimeUnit;
+
+public class SourceRateLimiterTest {
+
+    private final ManualClock clock = new ManualClock(0);
+
+    @Test
+    public void testRefill() {
+
+        SourceRateLimiter limiter = new SourceRateLimiter(10, 3, 16, clock);
+        SocketAddress source = source(1);
+
+        // A new source starts with a full bucket
+        for (int i = 0; i < 3; i++)
+            Assert.assertTrue(limiter.tryAcquire(source));
+
+        Assert.assertFalse(limiter.tryAcquire(source));
+
+        // 10 per second is one token every 100 ms
+        clock.advance(99, TimeUnit.MILLISECONDS);
+        Assert.assertFalse(limiter.tryAcquire(source));
+
+        clock.advance(1, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(limiter.tryAcquire(source));
+        Assert.assertFalse(limiter.tryAcquire(source));
+
+        // An idle source refills up to the burst size only
+        clock.advance(1, TimeUnit.MINUTES);
+
+        for (int i = 0; i < 3; i++)
+            Assert.assertTrue(limiter.tryAcquire(source));
+
+        Assert.assertFalse(limiter.tryAcquire(source));
+        Assert.assertEquals(4, limiter.getDrops());
+
+    }
+
+    @Test
+    public void testSourcesAreIndependent() {
+
+        SourceRateLimiter limiter = new SourceRateLimiter(1, 1, 16, clock);
+
+        Assert.assertTrue(limiter.tryAcquire(source(1)));
+        Assert.assertFalse(limiter.tryAcquire(source(1)));
+        Assert.assertTrue(limiter.tryAcquire(source(2)));
+
+        // Only the address counts, not the port
+        Assert.assertFalse(limiter.tryAcquire(new InetSocketAddress("10.0.0.1", 9999)));
+
+    }
+
+    @Test
+    public void testEvictsIdlestSource() {
+
+        // A single set of buckets, refilling so slowly that only an eviction gives tokens back
+        SourceRateLimiter limiter = new SourceRateLimiter(0.001, 1, SourceRateLimiter.WAYS, clock);
+        Assert.assertEquals(SourceRateLimiter.WAYS, limiter.capacity());
+
+        for (int i = 1; i <= SourceRateLimiter.WAYS; i++) {
+            Assert.assertTrue(limiter.tryAcquire(source(i)));
+            clock.advance(1, TimeUnit.MILLISECONDS);
+        }
+
+        // Source 1 is still tracked, and its use makes source 2 the idlest
+        Assert.assertFalse(limiter.tryAcquire(source(1)));
+        clock.advance(1, TimeUnit.MILLISECONDS);
+
+        // A new source evicts source 2, which then starts over with a full bucket
+        Assert.assertTrue(limiter.tryAcquire(source(100)));
+        Assert.assertFalse(limiter.tryAcquire(source(1)));
+        Assert.assertTrue(limiter.tryAcquire(source(2)));
+
+    }
+
+    @Test
+    public void testCapacityRoundedUp() {
+        Assert.assertEquals(8, new SourceRateLimiter(1, 1, 5, clock).capacity());
+        Assert.assertEquals(SourceRateLimiter.WAYS, new SourceRateLimiter(1, 1, 1, clock).capacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidRate() {
+        new SourceRateLimiter(0, 1, 16, clock);
+    }
+
+    private static SocketAddress source(int host) {
+        return new InetSocketAddress("10.0.0." + host, 50000);
+    }
+
+}
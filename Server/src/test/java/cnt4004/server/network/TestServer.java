@@ -0,0 +1,196 @@
+package cnt4004.server.network;
+
+import cnt4004.protocol.FilterPipeline;
+import cnt4004.protocol.KnockPacket;
+import cnt4004.protocol.KnockPacketView;
+import cnt4004.protocol.ManualClock;
+import cnt4004.protocol.PortSchedule;
+import cnt4004.protocol.PortSequence;
+import cnt4004.protocol.ProtocolMap;
+import cnt4004.protocol.TrustedClient;
+import cnt4004.protocol.TrustedClientRegistry;
+import cnt4004.protocol.Utils;
+import cnt4004.server.ExecutionMode;
+import cnt4004.server.KnockServer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A knock server on a {@link ManualClock}, with a single trusted client. Opening the service is only counted.
+ * The packet consumer is started, but no port is bound.
+ */
+final class TestServer implements AutoCloseable {
+
+    static final String PORT_SECRET = "portSecret";
+    static final InetSocketAddress SOURCE = new InetSocketAddress(InetAddress.getLoopbackAddress(), 50000);
+
+    final ManualClock clock;
+    final TrustedClient client;
+    final ListenerSettings settings;
+    final PortSchedule portSchedule;
+    final KnockServer knockServer;
+    final PacketConsumer packetConsumer;
+    final ExecutorService executor = ExecutionMode.PLATFORM.newExecutor("test-server");
+    final AtomicInteger opened = new AtomicInteger();
+
+    private final Path flatFile;
+
+    TestServer(long millis, int portCount) throws Exception {
+        this(millis, portCount, 0);
+    }
+
+    TestServer(long millis, int portCount, int verifyWorkers) throws Exception {
+        this(millis, portCount, verifyWorkers, Collections.singletonList(InetAddress.getLoopbackAddress()));
+    }
+
+    TestServer(long millis, int portCount, int verifyWorkers, List<InetAddress> bindAddresses) throws Exception {
+        flatFile = Files.createTempFile("trusted-clients", ".txt");
+        TrustedClient.setFlatFile(flatFile);
+
+        client = new TrustedClient("com1", "testKey", 0);
+        TrustedClientRegistry registry = new TrustedClientRegistry();
+        registry.add(client);
+
+        settings = new ListenerSettings(bindAddresses);
+        settings.setGracePeriod(TimeUnit.SECONDS.toMillis(5));
+        settings.setVerifyWorkers(verifyWorkers);
+
+        clock = new ManualClock(millis);
+        portSchedule = new PortSchedule(PORT_SECRET, portCount, clock);
+
+        knockServer = new KnockServer(registry, PORT_SECRET, portCount, 10, ProtocolMap.DEFAULT_TIMESTAMP_SKEW, settings,
+                ExecutionMode.PLATFORM, clock) {
+            @Override
+            public void openTimedService() {
+                opened.incrementAndGet();
+            }
+        };
+
+        packetConsumer = new PacketConsumer(knockServer, settings);
+        packetConsumer.start(executor);
+    }
+
+    static InetSocketAddress local(int port) {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+    }
+
+    /**
+     * Determines if a port is bound on the loopback address, by trying to bind it
+     */
+    static boolean isBound(int port) {
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            channel.bind(local(port));
+            return false;
+        } catch (BindException e) {
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * The first minute, from 25 000 000 on, whose schedule shares a port with the schedule of the next minute
+     */
+    static long sharedMinute(int portCount) {
+        long minute = 25_000_000L;
+
+        while (sharedPort(minute, portCount) < 0)
+            minute++;
+
+        return minute;
+    }
+
+    /**
+     * A port in the schedules of both a minute and the next minute, or -1
+     */
+    static int sharedPort(long minute, int portCount) {
+        PortSequence previous = Utils.generatePortSequence(PORT_SECRET, portCount, minute);
+
+        for (int port : Utils.generatePortSequence(PORT_SECRET, portCount, minute + 1).toArray()) {
+            if (previous.indexOf(port) >= 0)
+                return port;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Encodes a Knock packet timestamped with the clock, with any sequence IDs, which the packet setters
+     * would reject, signs it,
+     * and decodes it through the filter pipeline like a received datagram
+     */
+    KnockPacketView knock(long nonce, int sequence, int maxSequence) throws IOException {
+        KnockPacketView view = new KnockPacketView();
+
+        if (!ProtocolMap.decode(ByteBuffer.wrap(datagram(nonce, sequence, maxSequence)), view))
+            throw new IllegalStateException("The knock packet was rejected by the filter pipeline");
+
+        return view;
+    }
+
+    /**
+     * Encodes a Knock packet timestamped with the clock, with any sequence IDs, which the packet setters
+     * would reject, and signs it
+     */
+    byte[] datagram(long nonce, int sequence, int maxSequence) throws IOException {
+        KnockPacket packet = new KnockPacket(client.getIdentifier(), nonce, (byte) 0, (byte) 0);
+        packet.setTimestamp(Instant.ofEpochMilli(clock.millis()));
+
+        byte[] payload = ProtocolMap.encodePacket(packet);
+
+        // The sequence IDs follow the magic and packet ID, and the MAC is at the end
+        payload[3] = (byte) sequence;
+        payload[4] = (byte) maxSequence;
+
+        int signed = payload.length - 32;
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        buffer.position(signed);
+        client.writeMAC(buffer, 0, signed);
+
+        return payload;
+    }
+
+    /**
+     * Queues a packet as if it was received on a port by the listener of a minute
+     */
+    void queue(KnockPacketView view, int port, long minute) {
+        packetConsumer.queuePacket(view, SOURCE, local(port), minute);
+    }
+
+    /**
+     * Queues a datagram as if it was received on a port by the listener of a minute, to be verified by a worker
+     */
+    void queueDatagram(byte[] datagram, int port, long minute) {
+        packetConsumer.queueDatagram(ByteBuffer.wrap(datagram), SOURCE, local(port), minute);
+    }
+
+    /**
+     * Waits until the service has been opened an amount of times
+     */
+    void awaitOpened(int count) throws InterruptedException {
+        while (opened.get() < count)
+            Thread.sleep(1);
+    }
+
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        ProtocolMap.setPipeline(FilterPipeline.standard(ProtocolMap.DEFAULT_TIMESTAMP_SKEW));
+        Files.deleteIfExists(flatFile);
+    }
+
+}
@@ -1,5 +1,7 @@
 package cnt4004.service;
 
+import java.util.concurrent.Executor;
+
 /**
  * Interface representing a service
  */
@@ -26,4 +28,13 @@ public interface Service {
      */
     void close();
 
+    /**
+     * Sets the executor the service runs its tasks on, such as client connections.
+     * Services that manage their own threads may ignore this.
+     *
+     * @param executor The executor
+     */
+    default void setExecutor(Executor executor) {
+    }
+
 }
@@ -13,6 +13,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.Properties;
+import java.util.concurrent.Executor;
 
 /**
  * The service manager is a singleton instance used for managing a single service
@@ -77,6 +78,15 @@ public class ServiceManager {
         service.initialize();
     }
 
+    /**
+     * Sets the executor the service runs its tasks on. See {@link Service#setExecutor(Executor)}
+     *
+     * @param executor The executor
+     */
+    public void setExecutor(Executor executor) {
+        service.setExecutor(executor);
+    }
+
     /**
      * Shuts down the service. See {@link Service#shutdown()}
      */
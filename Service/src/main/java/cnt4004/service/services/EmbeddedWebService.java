@@ -6,6 +6,7 @@ import fi.iki.elonen.NanoHTTPD;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ThreadLocalRandom;
 
 public class EmbeddedWebService extends NanoHTTPD implements Service {
@@ -24,6 +25,11 @@ public class EmbeddedWebService extends NanoHTTPD implements Service {
         close();
     }
 
+    @Override
+    public void setExecutor(Executor executor) {
+        setAsyncRunner(new ExecutorAsyncRunner(executor));
+    }
+
     @Override
     public void open() {
         try {
@@ -0,0 +1,46 @@
+package cnt4004.service.services;
+
+import fi.iki.elonen.NanoHTTPD;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs the HTTP connections of the embedded web server on an executor,
+ * instead of starting a new thread for every connection
+ */
+public class ExecutorAsyncRunner implements NanoHTTPD.AsyncRunner {
+
+    private final Executor executor;
+    private final List<NanoHTTPD.ClientHandler> running = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * Creates a new runner
+     *
+     * @param executor The executor to run the connections on
+     */
+    public ExecutorAsyncRunner(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public void closeAll() {
+        // Copy the list, because closing a handler removes it from the list
+        for (NanoHTTPD.ClientHandler handler : new ArrayList<>(running))
+            handler.close();
+    }
+
+    @Override
+    public void closed(NanoHTTPD.ClientHandler handler) {
+        running.remove(handler);
+    }
+
+    @Override
+    public void exec(NanoHTTPD.ClientHandler handler) {
+        running.add(handler);
+        executor.execute(handler);
+    }
+
+}